@@ -0,0 +1,173 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.db;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares random tile read latency of SAS.Planet folder cache and tile database packed
+ * from it. Cache is created on external storage if it is available because real caches
+ * are kept there. Benchmark needs device, it is run by <code>gradlew connectedAndroidTest</code>
+ * and reports to log with "TileStorageBenchmark" tag.
+ */
+public class TileStorageBenchmark extends AndroidTestCase
+{
+	private static final String TAG = "TileStorageBenchmark";
+
+	// SAS.Planet zoom levels start from 1
+	private static final int ZOOM = 14;
+	private static final int X = 9900;
+	private static final int Y = 5120;
+	private static final int SIZE = 64;
+	private static final int READS = 2000;
+
+	private File root;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		File dir = getContext().getExternalCacheDir();
+		if (dir == null)
+			dir = getContext().getCacheDir();
+		root = new File(dir, "benchmark");
+		delete(root);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		delete(root);
+		super.tearDown();
+	}
+
+	public void testRandomTileRead() throws IOException
+	{
+		File cache = new File(root, "cache");
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		for (int x = X; x < X + SIZE; x++)
+		{
+			for (int y = Y; y < Y + SIZE; y++)
+			{
+				// Tiles of typical size, content does not matter
+				byte[] tile = new byte[2000 + random.nextInt(15000)];
+				random.nextBytes(tile);
+				File file = getTileFile(cache, ZOOM, x, y);
+				file.getParentFile().mkdirs();
+				FileOutputStream out = new FileOutputStream(file);
+				out.write(tile);
+				out.close();
+			}
+		}
+		Log.i(TAG, String.format(Locale.US, "Folder cache of %d tiles written in %d ms", SIZE * SIZE, (System.nanoTime() - start) / 1000000));
+
+		File target = TileDatabaseConverter.getTarget(cache);
+		start = System.nanoTime();
+		assertEquals(SIZE * SIZE, TileDatabaseConverter.convert(cache, target, null));
+		Log.i(TAG, String.format(Locale.US, "Database packed in %d ms, %d KB", (System.nanoTime() - start) / 1000000, target.length() / 1024));
+
+		TileDatabase database = TileDatabase.open(target);
+		try
+		{
+			int[] tiles = new int[READS];
+			for (int i = 0; i < READS; i++)
+				tiles[i] = random.nextInt(SIZE * SIZE);
+
+			for (int i = 0; i < 100; i++)
+			{
+				int x = X + tiles[i] / SIZE;
+				int y = Y + tiles[i] % SIZE;
+				assertTrue(Arrays.equals(readFile(getTileFile(cache, ZOOM, x, y)), database.getTile(ZOOM, x, y)));
+			}
+
+			long[] folder = new long[READS];
+			long[] db = new long[READS];
+			for (int i = 0; i < READS; i++)
+			{
+				int x = X + tiles[i] / SIZE;
+				int y = Y + tiles[i] % SIZE;
+				start = System.nanoTime();
+				readFile(getTileFile(cache, ZOOM, x, y));
+				folder[i] = System.nanoTime() - start;
+				start = System.nanoTime();
+				database.getTile(ZOOM, x, y);
+				db[i] = System.nanoTime() - start;
+			}
+			report("Folder", folder);
+			report("Database", db);
+		}
+		finally
+		{
+			database.close();
+		}
+	}
+
+	private static void report(String name, long[] latency)
+	{
+		Arrays.sort(latency);
+		Log.i(TAG, String.format(Locale.US, "%s read: median %d us, p95 %d us", name, latency[latency.length / 2] / 1000, latency[latency.length * 95 / 100] / 1000));
+	}
+
+	/**
+	 * Returns tile file in SAS.Planet layout: z/x1024/x/y1024/y.ext
+	 */
+	private static File getTileFile(File cache, int z, int x, int y)
+	{
+		return new File(cache, "z" + (z + 1) + "/" + (x >> 10) + "/x" + x + "/" + (y >> 10) + "/y" + y + ".png");
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			in.readFully(data);
+		}
+		finally
+		{
+			in.close();
+		}
+		return data;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+}
@@ -72,15 +72,25 @@ import com.androzic.location.LocationService;
 import com.androzic.map.BaseMap;
 import com.androzic.map.ozf.OzfMap;
 import com.androzic.map.MapIndex;
+import com.androzic.map.MapLoader;
+import com.androzic.map.MapThumbnails;
 import com.androzic.map.MockMap;
 import com.androzic.map.ozf.OzfDecoder;
 import com.androzic.map.SASMapLoader;
+import com.androzic.map.TileScheduler;
+import com.androzic.map.db.DatabaseMap;
+import com.androzic.map.db.TileDatabaseConverter;
 import com.androzic.map.forge.ForgeMap;
+import com.androzic.map.online.ArchivedOnlineMap;
 import com.androzic.map.online.OnlineMap;
 import com.androzic.map.online.OpenStreetMapTileProvider;
+import com.androzic.map.online.TileArchive;
+import com.androzic.map.online.TileDownloadJob;
+import com.androzic.map.online.TileFetcher;
 import com.androzic.map.online.TileFactory;
 import com.androzic.map.online.TileProvider;
 import com.androzic.map.online.TileProviderFactory;
+import com.androzic.map.sas.SASMap;
 import com.androzic.navigation.NavigationService;
 import com.androzic.overlay.NavigationOverlay;
 import com.androzic.overlay.OverlayManager;
@@ -121,6 +131,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -139,12 +150,22 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	public static final int PATH_SAS = 0x002;
 	public static final int PATH_ICONS = 0x008;
 	public static final int PATH_MARKERICONS = 0x010;
+
+	/**
+	 * Zoom levels downloaded for offline use after current one
+	 */
+	private static final int DOWNLOAD_ZOOM_LEVELS = 2;
+	private static final int MAX_DOWNLOAD_ZOOM = 19;
 	
 	public boolean angleMagnetic = false;
 	public int sunriseType = 0;
 
 	private List<TileProvider> onlineMaps;
+	private final HashMap<String, TileArchive> tileArchives = new HashMap<>();
+	private TileFetcher tileFetcher;
+	private TileDownloadJob tileDownloadJob;
 	private MapIndex maps;
+	private MapThumbnails thumbnails;
 	private List<BaseMap> suitableMaps;
 	private List<BaseMap> coveringMaps;
 	private BaseMap currentMap;
@@ -222,6 +243,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	public int iconY = 0;
 	private int onlineMapPrescaleFactor;
 	private int onlineMapTileExpiration;
+	private long onlineMapCacheQuota;
 	
 	public boolean isPaid = false;
 
@@ -1226,6 +1248,205 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		return onlineMaps;
 	}
 
+	/**
+	 * Returns packed tile cache of online map provider, it is opened on first request.
+	 */
+	public TileArchive getTileArchive(TileProvider provider) throws IOException
+	{
+		synchronized (tileArchives)
+		{
+			TileArchive archive = tileArchives.get(provider.code);
+			if (archive == null)
+			{
+				File cache = getCacheDir();
+				if (cache == null)
+					throw new IOException("Cache is not available");
+				archive = new TileArchive(new File(cache, "archive"), provider.code);
+				tileArchives.put(provider.code, archive);
+				archive.setQuota(onlineMapCacheQuota);
+			}
+			return archive;
+		}
+	}
+
+	/**
+	 * Returns usage of tile caches keyed by provider name. Only existing caches are reported,
+	 * their indexes are loaded but tile files are not scanned.
+	 */
+	public java.util.Map<String, TileArchive.Statistics> getTileCacheStatistics()
+	{
+		java.util.Map<String, TileArchive.Statistics> statistics = new LinkedHashMap<>();
+		File cache = getCacheDir();
+		if (cache == null || onlineMaps == null)
+			return statistics;
+		for (TileProvider provider : onlineMaps)
+		{
+			if (! new File(new File(cache, "archive"), provider.code + ".dat").exists())
+				continue;
+			try
+			{
+				statistics.put(provider.name, getTileArchive(provider).getStatistics());
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns shared downloader of online map tiles.
+	 */
+	public TileFetcher getTileFetcher()
+	{
+		synchronized (tileArchives)
+		{
+			if (tileFetcher == null)
+				tileFetcher = new TileFetcher(getUserAgent());
+			return tileFetcher;
+		}
+	}
+
+	/**
+	 * Creates job that downloads area tiles of online map provider for offline use. Job
+	 * position is kept in tile cache, job with the same parameters continues interrupted one.
+	 */
+	public TileDownloadJob createTileDownloadJob(TileProvider provider, TileDownloadJob.Area area, int minZoom, int maxZoom) throws IOException
+	{
+		TileArchive archive = getTileArchive(provider);
+		File state = new File(new File(getCacheDir(), "archive"), provider.code + ".download");
+		return new TileDownloadJob(provider, archive, area, minZoom, maxZoom, state, getUserAgent());
+	}
+
+	/**
+	 * Starts download of visible area of current online map at current zoom level and several
+	 * next levels, previous download is stopped. Returns number of tiles in the area or -1 if
+	 * current map is not online map. Result is reported by toast.
+	 */
+	public long downloadVisibleArea() throws IOException
+	{
+		if (! (currentMap instanceof OnlineMap))
+			return -1;
+		TileProvider provider = ((OnlineMap) currentMap).tileProvider;
+
+		int[] xy = new int[2];
+		double[] nw = new double[2];
+		double[] se = new double[2];
+		currentMap.getXYByLatLon(mapCenter[0], mapCenter[1], xy);
+		currentMap.getLatLonByXY(xy[0] + (int) coveringScreen.left, xy[1] + (int) coveringScreen.top, nw);
+		currentMap.getLatLonByXY(xy[0] + (int) coveringScreen.right, xy[1] + (int) coveringScreen.bottom, se);
+		// West is greater than east if screen crosses antimeridian
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(nw[0], normalizeLongitude(nw[1]), se[0], normalizeLongitude(se[1]));
+
+		int zoom = (int) Math.round(TileScheduler.getZoom(mapCenter[0], currentMap.getMPP()));
+		zoom = Math.max(0, Math.min(MAX_DOWNLOAD_ZOOM, zoom));
+		TileDownloadJob job = createTileDownloadJob(provider, area, zoom, Math.min(MAX_DOWNLOAD_ZOOM, zoom + DOWNLOAD_ZOOM_LEVELS));
+		job.setOnDownloadProgressListener(new TileDownloadJob.OnDownloadProgressListener() {
+			@Override
+			public void onProgress(TileDownloadJob job, final TileDownloadJob.Progress progress)
+			{
+				if (progress.running)
+					return;
+				uiHandler.post(new Runnable() {
+					@Override
+					public void run()
+					{
+						String message;
+						if (progress.finished && progress.failed > 0)
+							message = getString(R.string.msg_tiledownloadfailed, progress.failed, progress.downloaded);
+						else if (progress.finished)
+							message = getString(R.string.msg_tiledownloadfinished, progress.downloaded, progress.missing);
+						else
+							message = getString(R.string.msg_tiledownloadstopped, progress.completed, progress.total);
+						Toast.makeText(Androzic.this, message, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		});
+		long tiles = job.getEstimate().totalTiles;
+		synchronized (tileArchives)
+		{
+			if (tileDownloadJob != null)
+				tileDownloadJob.stop();
+			tileDownloadJob = job;
+		}
+		job.start();
+		return tiles;
+	}
+
+	public boolean isDownloadingTiles()
+	{
+		synchronized (tileArchives)
+		{
+			return tileDownloadJob != null && tileDownloadJob.isRunning();
+		}
+	}
+
+	/**
+	 * Stops area download, it continues from the same position if the same area is requested again.
+	 */
+	public void stopTileDownload()
+	{
+		synchronized (tileArchives)
+		{
+			if (tileDownloadJob != null)
+				tileDownloadJob.stop();
+			tileDownloadJob = null;
+		}
+	}
+
+	private static double normalizeLongitude(double lon)
+	{
+		return ((lon + 180) % 360 + 360) % 360 - 180;
+	}
+
+	private String getUserAgent()
+	{
+		String version = "";
+		try
+		{
+			version = "/" + getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+		}
+		catch (NameNotFoundException e)
+		{
+			e.printStackTrace();
+		}
+		return "Androzic" + version;
+	}
+
+	/**
+	 * Passes point user looks at to tile downloader so that nearby tiles are fetched first.
+	 */
+	public void setTileFocus(double lat, double lon, double zoom, double bearing)
+	{
+		synchronized (tileArchives)
+		{
+			if (tileFetcher != null)
+				tileFetcher.setFocus(lat, lon, zoom, bearing);
+		}
+	}
+
+	private void closeTileArchives()
+	{
+		synchronized (tileArchives)
+		{
+			if (tileDownloadJob != null)
+			{
+				tileDownloadJob.stop();
+				tileDownloadJob = null;
+			}
+			if (tileFetcher != null)
+			{
+				tileFetcher.stop();
+				tileFetcher = null;
+			}
+			for (TileArchive archive : tileArchives.values())
+				archive.close();
+			tileArchives.clear();
+		}
+	}
+
 	@Nullable
 	public String getMapTitle()
 	{
@@ -1255,7 +1476,22 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	{
 		return maps.getMaps();
 	}
+
+	public boolean hasMaps(Class<? extends BaseMap> type)
+	{
+		return maps.hasMaps(type);
+	}
+
+	public List<String> getMapPaths(Class<? extends BaseMap> type)
+	{
+		return maps.getMapPaths(type);
+	}
 			
+	public MapThumbnails getMapThumbnails()
+	{
+		return thumbnails;
+	}
+
 	public List<BaseMap> getMaps(double[] loc)
 	{
 		return maps.getMaps(loc[0], loc[1]);
@@ -1346,6 +1582,11 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		// TODO should override equals()?
 		if (newMap != null && ! newMap.equals(currentMap))
 		{
+			if (maps != null)
+				maps.initializeMap(newMap);
+			// Map is reported as bad
+			if (newMap.loadError != null)
+				return false;
 			double mpp = currentMap != null ? currentMap.getMPP() : newMap.getAbsoluteMPP();
 			Log.w(TAG, "Set map: " + newMap.title + " " + mpp);
 			if (mapHolder != null)
@@ -1400,7 +1641,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 			}
 			if (selectedProviders.contains(map.code) && map.instance == null)
 			{
-				OnlineMap onlineMap = new OnlineMap(map, zoom);
+				OnlineMap onlineMap = new ArchivedOnlineMap(map, zoom);
 				onlineMap.setPrescaleFactor(onlineMapPrescaleFactor);
 				maps.addMap(onlineMap);
 				map.instance = onlineMap;
@@ -1941,56 +2182,52 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	}
 
 	public void initializeMaps()
+	{
+		initializeMaps(null);
+	}
+
+	public void initializeMaps(@Nullable MapIndex.OnIndexProgressListener listener)
 	{
 		AndroidGraphicFactory.createInstance(this);
 		initializeRenderTheme();
 		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
 		boolean useIndex = settings.getBoolean(getString(R.string.pref_usemapindex), getResources().getBoolean(R.bool.def_usemapindex));
 		maps = null;
+		boolean updated = false;
 		File indexFile = new File(rootPath, "maps.idx");
+		if (thumbnails == null)
+			thumbnails = new MapThumbnails(new File(rootPath, "thumbnails.dat"));
 		if (useIndex && indexFile.exists())
 		{
 			try
 			{
 		    	maps = MapIndex.loadIndex(indexFile);
-		    	int hash = MapIndex.getMapsHash(mapPath);
-				if (hash != maps.hashCode())
-					maps = null;
+				updated = maps.update(mapPath, charset, listener);
 			}
 			catch (Throwable e)
 			{
 				e.printStackTrace();
+				maps = null;
 			}
 		}
 		if (maps == null)
 		{
-			maps = new MapIndex(mapPath, charset);
-			StringBuilder sb = new StringBuilder();
-			for (BaseMap mp : maps.getMaps())
-			{
-				if (mp.loadError != null)
-				{
-					String fn = mp.path;
-					if (fn.startsWith(mapPath))
-					{
-						fn = fn.substring(mapPath.length() + 1);
-					}
-					sb.append("<b>");
-					sb.append(fn);
-					sb.append(":</b> ");
-					if (mp.loadError instanceof ProjectionException)
-					{
-						sb.append("projection error: ");					
-					}
-					sb.append(mp.loadError.getMessage());
-					sb.append("<br />\n");
-				}
-			}
-			if (sb.length() > 0)
+			maps = new MapIndex(mapPath, charset, listener);
+			updated = true;
+		}
+		maps.setOnMapErrorListener(new MapIndex.OnMapErrorListener() {
+			@Override
+			public void onMapError(BaseMap map)
 			{
-				maps.cleanBadMaps();
-				startActivity(new Intent(this, ErrorDialog.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK).putExtra("title", getString(R.string.badmaps)).putExtra("message", sb.toString()));
+				// Maps are initialized in batches, report them together
+				uiHandler.removeCallbacks(reportBadMaps);
+				uiHandler.post(reportBadMaps);
 			}
+		});
+		if (updated)
+		{
+			thumbnails.invalidate();
+			reportBadMaps.run();
 			
 			if (useIndex)
 			{
@@ -2011,13 +2248,18 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		File[] files = sasRoot.listFiles();
 		if (files != null)
 		{
+			File cache = getCacheDir();
+			File layoutDir = cache != null ? new File(cache, "sas") : null;
 			for (File file: files)
 			{
 				if (file.isDirectory())
 				{
+					// Packed cache supersedes folder cache
+					if (TileDatabaseConverter.getTarget(file).exists())
+						continue;
 					try
 					{
-						BaseMap map = SASMapLoader.load(file);
+						BaseMap map = SASMapLoader.load(file, layoutDir);
 						maps.addMap(map);
 					}
 					catch (IOException e)
@@ -2026,6 +2268,10 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 						e.printStackTrace();
 					}
 				}
+				else if (DatabaseMap.isDatabase(file))
+				{
+					maps.addMap(new DatabaseMap(file.getAbsolutePath()));
+				}
 			}
 		}
 				
@@ -2078,12 +2324,76 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		mapsInited = true;
 	}
 
+	/**
+	 * Shows maps that failed to load or initialize and removes them from index.
+	 */
+	private final Runnable reportBadMaps = new Runnable() {
+		@Override
+		public void run()
+		{
+			MapIndex index = maps;
+			if (index == null)
+				return;
+			StringBuilder sb = new StringBuilder();
+			for (BaseMap mp : index.getBadMaps())
+			{
+				String fn = mp.path;
+				if (fn.startsWith(mapPath))
+				{
+					fn = fn.substring(mapPath.length() + 1);
+				}
+				sb.append("<b>");
+				sb.append(fn);
+				sb.append(":</b> ");
+				if (mp.loadError instanceof ProjectionException)
+				{
+					sb.append("projection error: ");
+				}
+				sb.append(mp.loadError.getMessage());
+				sb.append("<br />\n");
+			}
+			if (sb.length() > 0)
+			{
+				index.cleanBadMaps();
+				startActivity(new Intent(Androzic.this, ErrorDialog.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK).putExtra("title", getString(R.string.badmaps)).putExtra("message", sb.toString()));
+			}
+		}
+	};
+
+	/**
+	 * Packs SAS.Planet folder caches into tile databases, databases supersede folder
+	 * caches when maps are initialized next time. Returns number of packed caches.
+	 */
+	public int packSASMaps()
+	{
+		int packed = 0;
+		for (String path : getMapPaths(SASMap.class))
+		{
+			File dir = new File(path);
+			try
+			{
+				int count = TileDatabaseConverter.convert(dir, TileDatabaseConverter.getTarget(dir), null);
+				Log.i(TAG, "Packed " + count + " tiles of " + dir.getName());
+				packed++;
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "Failed to pack SAS cache: " + dir.getName(), e);
+			}
+		}
+		return packed;
+	}
+
 	public void resetMaps()
 	{
 		File index = new File(rootPath, "maps.idx");
 		if (index.exists())
 			//noinspection ResultOfMethodCallIgnored
 			index.delete();
+		File cache = getCacheDir();
+		if (cache != null)
+			SASMapLoader.clearLayouts(new File(cache, "sas"));
+		MapLoader.clearCaches();
 		clearMaps();
 		ForgeMap.reset();
 		initializeMaps();
@@ -2544,6 +2854,26 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 					provider.tileExpiration = onlineMapTileExpiration;
 			}
 		}
+		else if (getString(R.string.pref_onlinemapcachesize).equals(key))
+		{
+			// in tens of megabytes
+			onlineMapCacheQuota = sharedPreferences.getInt(key, resources.getInteger(R.integer.def_onlinemapcachesize)) * 10L * 1024 * 1024;
+			ForgeMap.setFileSystemCacheQuota(onlineMapCacheQuota);
+			synchronized (tileArchives)
+			{
+				for (TileArchive archive : tileArchives.values())
+				{
+					try
+					{
+						archive.setQuota(onlineMapCacheQuota);
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}
 		else if (getString(R.string.pref_mapcropborder).equals(key))
 		{
 			cropMapBorder = sharedPreferences.getBoolean(key, resources.getBoolean(R.bool.def_mapcropborder));
@@ -2679,6 +3009,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		onSharedPreferenceChanged(settings, getString(R.string.pref_vectormap_textscale));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_onlinemapprescalefactor));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_onlinemapexpiration));
+		onSharedPreferenceChanged(settings, getString(R.string.pref_onlinemapcachesize));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_mapcropborder));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_mapdrawborder));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_showwaypoints));
@@ -2692,6 +3023,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	private void clearMaps()
 	{
 		setOnlineMaps("");
+		closeTileArchives();
 		ForgeMap.clear();
 		if (coveringMaps != null)
 		{
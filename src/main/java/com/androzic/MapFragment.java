@@ -20,6 +20,7 @@
 
 package com.androzic;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -80,6 +81,7 @@ import com.androzic.data.Route;
 import com.androzic.data.Waypoint;
 import com.androzic.location.LocationService;
 import com.androzic.map.BaseMap;
+import com.androzic.map.online.OnlineMap;
 import com.androzic.navigation.NavigationService;
 import com.androzic.route.OnRouteActionListener;
 import com.androzic.route.RouteEdit;
@@ -466,6 +468,10 @@ public class MapFragment extends Fragment implements MapHolder, OnSharedPreferen
 
 		menu.findItem(R.id.action_locate).setVisible(!fixed);
 
+		MenuItem download = menu.findItem(R.id.action_download_area);
+		download.setVisible(application.getCurrentMap() instanceof OnlineMap);
+		download.setTitle(application.isDownloadingTiles() ? R.string.action_stop_download : R.string.action_download_area);
+
 		menu.findItem(R.id.action_locating).setChecked(application.isLocating());
 		menu.findItem(R.id.action_tracking).setChecked(application.isTracking());
 		
@@ -1512,6 +1518,24 @@ public class MapFragment extends Fragment implements MapHolder, OnSharedPreferen
 				}
 				return true;
 			}
+			case R.id.action_download_area:
+				if (application.isDownloadingTiles())
+				{
+					application.stopTileDownload();
+					return true;
+				}
+				try
+				{
+					long tiles = application.downloadVisibleArea();
+					if (tiles >= 0)
+						Toast.makeText(application, getString(R.string.msg_tiledownloadstarted, tiles), Toast.LENGTH_SHORT).show();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					Toast.makeText(application, R.string.err_nosdcard, Toast.LENGTH_LONG).show();
+				}
+				return true;
 			case R.id.action_locating:
 				application.enableLocating(!application.isLocating());
 				return true;
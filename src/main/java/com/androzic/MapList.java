@@ -35,6 +35,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -50,13 +51,17 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.androzic.map.BaseMap;
+import com.androzic.map.MapThumbnails;
 import com.androzic.map.OnMapActionListener;
+import com.androzic.map.db.DatabaseMap;
 import com.androzic.map.online.OnlineMap;
+import com.androzic.map.ozf.OzfMap;
 import com.androzic.map.sas.SASMap;
 
 public class MapList extends ListFragment
@@ -165,6 +170,7 @@ public class MapList extends ListFragment
 		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(getActivity());
 		boolean useIndex = settings.getBoolean(getString(R.string.pref_usemapindex), getResources().getBoolean(R.bool.def_usemapindex));
 		menu.findItem(R.id.action_reset_index).setEnabled(useIndex);
+		menu.findItem(R.id.action_pack_sas).setEnabled(Androzic.getApplication().hasMaps(SASMap.class));
 	}
 	
 	@SuppressLint("NewApi")
@@ -225,7 +231,7 @@ public class MapList extends ListFragment
 							onlinemaps = mapsTree.addChild(getResources().getString(R.string.online_maps));
 						onlinemaps.addChild(map.path, map);
 					}
-					else if (map instanceof SASMap)
+					else if (map instanceof SASMap || map instanceof DatabaseMap)
 					{
 						if (sasmaps == null)
 							sasmaps = mapsTree.addChild(getResources().getString(R.string.sas_maps));
@@ -255,6 +261,14 @@ public class MapList extends ListFragment
 				}
 
 				handler.post(updateResults);
+
+				application.getMapThumbnails().generate(application.getMapPaths(OzfMap.class), application.charset, new MapThumbnails.OnThumbnailsUpdateListener() {
+					@Override
+					public void onThumbnailsUpdated()
+					{
+						handler.post(updateThumbnails);
+					}
+				});
 			} 
 		}).start(); 
 	}
@@ -276,6 +290,14 @@ public class MapList extends ListFragment
         }
 	};
 
+	final Runnable updateThumbnails = new Runnable()
+	{
+		public void run()
+		{
+			adapter.notifyDataSetChanged();
+		}
+	};
+
 	@Override
 	public void onListItemClick(ListView l, View v, int position, long id) 
 	{
@@ -314,6 +336,23 @@ public class MapList extends ListFragment
 					} 
 				}).start(); 
 				break;
+			case R.id.action_pack_sas:
+				crossfade(false);
+				mapsTree.clear();
+				currentTree = mapsTree;
+				adapter.notifyDataSetChanged();
+
+				new Thread(new Runnable() 
+				{ 
+					public void run() 
+					{
+						Androzic application = Androzic.getApplication();
+						if (application.packSASMaps() > 0)
+							application.resetMaps();
+						handler.post(updateList);
+					} 
+				}).start(); 
+				break;
 		}
 		return true;
 	}
@@ -325,10 +364,12 @@ public class MapList extends ListFragment
 
 		private LayoutInflater mInflater;
 		private double ppcm;
+		private MapThumbnails thumbnails;
 
 		public MapListAdapter(Context context)
 		{
 			mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+			thumbnails = Androzic.getApplication().getMapThumbnails();
 
 			SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
 			Resources resources = getResources();
@@ -399,6 +440,7 @@ public class MapList extends ListFragment
 					itemHolder.name = (TextView) convertView.findViewById(R.id.name);
 					itemHolder.scale = (TextView) convertView.findViewById(R.id.scale);
 					itemHolder.filename = (TextView) convertView.findViewById(R.id.filename);
+					itemHolder.icon = (ImageView) convertView.findViewById(R.id.icon);
 				}
 				convertView.setTag(itemHolder);
 			}
@@ -416,6 +458,11 @@ public class MapList extends ListFragment
 				itemHolder.name.setText(item.data.title);
 				itemHolder.filename.setText(item.name);
 				itemHolder.scale.setText(String.format("1:%,d", (int) (item.data.getAbsoluteMPP() * ppcm)));
+				Bitmap thumbnail = thumbnails.getThumbnail(item.data);
+				if (thumbnail != null)
+					itemHolder.icon.setImageBitmap(thumbnail);
+				else
+					itemHolder.icon.setImageResource(R.drawable.ic_map_white_24dp);
 			}
 
 			return convertView;
@@ -433,6 +480,7 @@ public class MapList extends ListFragment
 		TextView name;
 		TextView scale;
 		TextView filename;
+		ImageView icon;
 	}
 
 	public class TreeNode<T>
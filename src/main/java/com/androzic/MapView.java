@@ -58,6 +58,7 @@ import android.widget.Toast;
 
 import com.androzic.data.Bounds;
 import com.androzic.map.BaseMap;
+import com.androzic.map.TileScheduler;
 import com.androzic.overlay.MapOverlay;
 import com.androzic.overlay.OverlayManager;
 import com.androzic.ui.Viewport;
@@ -1161,6 +1162,7 @@ public class MapView extends SurfaceView implements SurfaceHolder.Callback, Mult
 		currentViewport.mapCenter = application.getMapCenter();
 		application.getXYbyLatLon(currentViewport.mapCenter[0], currentViewport.mapCenter[1], currentViewport.mapCenterXY);
 		calculateViewportBounds();
+		updateTileFocus();
 		refreshBuffer();
 		
 		try
@@ -1172,6 +1174,19 @@ public class MapView extends SurfaceView implements SurfaceHolder.Callback, Mult
 		}
 	}
 
+	/**
+	 * Tiles around visible center, which is shifted by look ahead, are loaded first,
+	 * tiles ahead of movement are preferred.
+	 */
+	private void updateTileFocus()
+	{
+		double[] ll = new double[2];
+		application.getLatLonByXY(currentViewport.mapCenterXY[0] - currentViewport.lookAheadXY[0], currentViewport.mapCenterXY[1] - currentViewport.lookAheadXY[1], ll);
+		double zoom = mpp > 0 ? TileScheduler.getZoom(ll[0], mpp) : Double.NaN;
+		double bearing = isFollowing && currentViewport.speed > 0 ? currentViewport.bearing : Double.NaN;
+		application.setTileFocus(ll[0], ll[1], zoom, bearing);
+	}
+
 	private final void onDrag(int deltaX, int deltaY)
 	{
 		lastDragTime = SystemClock.uptimeMillis();
@@ -61,6 +61,7 @@ import android.support.v4.app.ListFragment;
 import android.support.v4.preference.PreferenceFragment;
 import android.support.v7.app.ActionBarActivity;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.*;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -73,6 +74,7 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.androzic.map.online.TileArchive;
 import com.androzic.map.online.TileProvider;
 import com.androzic.ui.SeekbarPreference;
 import com.androzic.util.XmlUtils;
@@ -862,6 +864,7 @@ public class Preferences extends ListFragment
 			initThemeList();
 			initPoiList();
 			initProviderList();
+			initCacheStatistics();
 
 			super.onResume();
 		}
@@ -883,6 +886,18 @@ public class Preferences extends ListFragment
 				editor.commit();
 			}
 			super.onSharedPreferenceChanged(sharedPreferences, key);
+			// Posted so that application listener trims caches first
+			if (key.equals(getString(R.string.pref_onlinemapcachesize)) && getView() != null)
+			{
+				getView().post(new Runnable() {
+					@Override
+					public void run()
+					{
+						if (isAdded())
+							initCacheStatistics();
+					}
+				});
+			}
 		}
 
 		private void initThemeList()
@@ -1003,5 +1018,23 @@ public class Preferences extends ListFragment
 			mapPreference.setEntries(entries);
 			mapPreference.setEntryValues(values);
 		}
+
+		private void initCacheStatistics()
+		{
+			Androzic application = Androzic.getApplication();
+
+			Preference statsPreference = findPreference(getString(R.string.pref_onlinemapcachestats));
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, TileArchive.Statistics> entry : application.getTileCacheStatistics().entrySet())
+			{
+				TileArchive.Statistics statistics = entry.getValue();
+				if (sb.length() > 0)
+					sb.append("\n");
+				sb.append(getString(R.string.pref_onlinemapcachestats_summary, entry.getKey(), Formatter.formatFileSize(getActivity(), statistics.size), statistics.count, statistics.expired));
+			}
+			if (sb.length() == 0)
+				sb.append(getString(R.string.pref_onlinemapcachestats_empty));
+			statsPreference.setSummary(sb.toString());
+		}
 	}
 }
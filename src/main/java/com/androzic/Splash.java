@@ -58,6 +58,7 @@ import android.widget.TextView;
 
 import com.androzic.data.Route;
 import com.androzic.data.Track;
+import com.androzic.map.MapIndex;
 import com.androzic.overlay.CurrentTrackOverlay;
 import com.androzic.util.AutoloadedRouteFilenameFilter;
 import com.androzic.util.FileList;
@@ -483,7 +484,18 @@ public class Splash extends Activity implements OnClickListener
 			mHandler.sendMessage(msg);
 
 			// initialize maps
-			application.initializeMaps();
+			final int mapsTotal = total;
+			application.initializeMaps(new MapIndex.OnIndexProgressListener() {
+				@Override
+				public void onProgress(int loaded, int count)
+				{
+					Message msg = mHandler.obtainMessage(MSG_PROGRESS);
+					Bundle b = new Bundle();
+					b.putInt("total", mapsTotal + PROGRESS_STEP * loaded / count);
+					msg.setData(b);
+					mHandler.sendMessage(msg);
+				}
+			});
 			application.moveTileCache();
 
 			total += PROGRESS_STEP;
@@ -7,6 +7,7 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.LightingColorFilter;
 import android.graphics.Typeface;
 import android.os.Bundle;
@@ -23,10 +24,12 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 
 import com.androzic.map.BaseMap;
+import com.androzic.map.MapThumbnails;
 import com.androzic.map.OnMapActionListener;
 import com.androzic.ui.TooltipManager;
 
@@ -107,9 +110,23 @@ public class SuitableMapsList extends DialogFragment implements OnItemClickListe
 		currentMap = application.getCurrentMap();
 		mapsPath = application.getMapPath();
 
-		SuitableMapListAdapter adapter = new SuitableMapListAdapter(getActivity());
+		final SuitableMapListAdapter adapter = new SuitableMapListAdapter(getActivity());
 		listView.setAdapter(adapter);
 		listView.setOnItemClickListener(this);
+
+		application.getMapThumbnails().generate(maps, application.charset, new MapThumbnails.OnThumbnailsUpdateListener() {
+			@Override
+			public void onThumbnailsUpdated()
+			{
+				listView.post(new Runnable() {
+					@Override
+					public void run()
+					{
+						adapter.notifyDataSetChanged();
+					}
+				});
+			}
+		});
 	}
 
 	@Override
@@ -161,11 +178,13 @@ public class SuitableMapsList extends DialogFragment implements OnItemClickListe
 		private Context mContext;
 		private LayoutInflater mInflater;
 		private double ppcm;
+		private MapThumbnails thumbnails;
 
 		public SuitableMapListAdapter(Context context)
 		{
 			mContext = context;
 			mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+			thumbnails = Androzic.getApplication().getMapThumbnails();
 
 			SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
 			Resources resources = getResources();
@@ -215,6 +234,12 @@ public class SuitableMapsList extends DialogFragment implements OnItemClickListe
 			double pct = 100 * currentMap.getAbsoluteMPP() / map.getAbsoluteMPP();
 			String fmt = pct < 0.1 ? "1:%,d (%.2f%%)" : pct < 1 ? "1:%,d (%.1f%%)" : "1:%,d (%.0f%%)";
 			scale.setText(String.format(fmt, mpcm, pct));
+			ImageView icon = (ImageView) v.findViewById(R.id.icon);
+			Bitmap thumbnail = thumbnails.getThumbnail(map);
+			if (thumbnail != null)
+				icon.setImageBitmap(thumbnail);
+			else
+				icon.setImageResource(R.drawable.ic_map_white_24dp);
 			TextView path = (TextView) v.findViewById(R.id.filename);
 			if (map.path != null)
 			{
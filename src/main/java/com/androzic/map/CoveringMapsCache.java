@@ -0,0 +1,164 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.androzic.data.Bounds;
+
+/**
+ * LRU cache of covering maps candidates. Query area is snapped outward to a grid
+ * which cell size is proportional to area size, so that small viewport movements
+ * produce the same key. Cached list holds maps of suitable scale that intersect
+ * snapped area, it includes every map that covers any area inside snapped one. It
+ * can contain maps that do not cover the viewport, so caller has to check coverage
+ * of the actual area.
+ */
+class CoveringMapsCache
+{
+	private static final int CACHE_SIZE = 16;
+	/**
+	 * Number of grid cells per area span
+	 */
+	private static final int CELLS_PER_SPAN = 4;
+
+	private final LinkedHashMap<Key, List<BaseMap>> entries;
+	private int hits;
+	private int misses;
+
+	CoveringMapsCache()
+	{
+		entries = new LinkedHashMap<Key, List<BaseMap>>(CACHE_SIZE + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, List<BaseMap>> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * Creates query key and snaps area to the grid. Snapped area is returned in key.area.
+	 */
+	static Key key(BaseMap refMap, Bounds area, boolean covered, boolean bestmap)
+	{
+		double span = Math.max(area.maxLat - area.minLat, area.maxLon - area.minLon) / CELLS_PER_SPAN;
+		// Power of two cell size keeps grid stable when area size slightly changes
+		int scale = span > 0 ? (int) Math.floor(Math.log(span) / Math.log(2)) : -30;
+		double cell = Math.pow(2, scale);
+
+		Key key = new Key();
+		key.scale = scale;
+		key.minLat = (long) Math.floor(area.minLat / cell);
+		key.minLon = (long) Math.floor(area.minLon / cell);
+		key.maxLat = (long) Math.ceil(area.maxLat / cell);
+		key.maxLon = (long) Math.ceil(area.maxLon / cell);
+		key.mapId = refMap.id;
+		key.mpp = Double.doubleToLongBits(refMap.mpp);
+		key.covered = covered;
+		key.bestmap = bestmap;
+
+		key.area = new Bounds();
+		key.area.minLat = Math.max(key.minLat * cell, -90);
+		key.area.minLon = Math.max(key.minLon * cell, -180);
+		key.area.maxLat = Math.min(key.maxLat * cell, 90);
+		key.area.maxLon = Math.min(key.maxLon * cell, 180);
+		return key;
+	}
+
+	synchronized List<BaseMap> get(Key key)
+	{
+		List<BaseMap> result = entries.get(key);
+		if (result != null)
+			hits++;
+		else
+			misses++;
+		return result;
+	}
+
+	synchronized void put(Key key, List<BaseMap> result)
+	{
+		entries.put(key, result);
+	}
+
+	synchronized void invalidate()
+	{
+		entries.clear();
+	}
+
+	synchronized int getHits()
+	{
+		return hits;
+	}
+
+	synchronized int getMisses()
+	{
+		return misses;
+	}
+
+	static class Key
+	{
+		int scale;
+		long minLat;
+		long minLon;
+		long maxLat;
+		long maxLon;
+		int mapId;
+		long mpp;
+		boolean covered;
+		boolean bestmap;
+		/**
+		 * Snapped area, candidates are searched in it, not part of the key
+		 */
+		Bounds area;
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return scale == k.scale && minLat == k.minLat && minLon == k.minLon && maxLat == k.maxLat && maxLon == k.maxLon
+					&& mapId == k.mapId && mpp == k.mpp && covered == k.covered && bestmap == k.bestmap;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = scale;
+			result = 31 * result + (int) (minLat ^ (minLat >>> 32));
+			result = 31 * result + (int) (minLon ^ (minLon >>> 32));
+			result = 31 * result + (int) (maxLat ^ (maxLat >>> 32));
+			result = 31 * result + (int) (maxLon ^ (maxLon >>> 32));
+			result = 31 * result + mapId;
+			result = 31 * result + (int) (mpp ^ (mpp >>> 32));
+			result = 31 * result + (covered ? 1 : 0);
+			result = 31 * result + (bestmap ? 1 : 0);
+			return result;
+		}
+	}
+}
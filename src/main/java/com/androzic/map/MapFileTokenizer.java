@@ -0,0 +1,354 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line tokenizer for OziExplorer map files. Lines are read into reused character buffer
+ * and are split into comma separated, trimmed fields which are kept as offsets into it.
+ * Numbers are parsed in place, strings are created only when explicitly requested.
+ */
+class MapFileTokenizer
+{
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	/**
+	 * Decimal mantissa with up to 15 digits is exactly representable by double
+	 */
+	private static final int MAX_FAST_DIGITS = 15;
+
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+	private boolean skipLineFeed;
+
+	private char[] line = new char[256];
+	private int length;
+	private int[] starts = new int[20];
+	private int[] ends = new int[20];
+	private int count;
+
+	MapFileTokenizer(Reader reader)
+	{
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads next line and splits it into fields.
+	 *
+	 * @return false if end of file is reached
+	 */
+	boolean next() throws IOException
+	{
+		if (!nextLine())
+			return false;
+		split();
+		return true;
+	}
+
+	/**
+	 * Returns whole current line. Line is returned as read only if it was read
+	 * by {@link #nextLine()}, splitting unescapes quoted fields in place.
+	 */
+	String line()
+	{
+		return new String(line, 0, length);
+	}
+
+	boolean lineStartsWith(String prefix)
+	{
+		int n = prefix.length();
+		if (n > length)
+			return false;
+		for (int i = 0; i < n; i++)
+		{
+			if (line[i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	int fieldCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns first character of the field or zero if field is empty.
+	 */
+	char firstChar(int field)
+	{
+		check(field);
+		return ends[field] > starts[field] ? line[starts[field]] : 0;
+	}
+
+	String field(int field)
+	{
+		check(field);
+		return new String(line, starts[field], ends[field] - starts[field]);
+	}
+
+	/**
+	 * Returns all fields of current line, used for rare lines which are not worth in place parsing.
+	 */
+	String[] fields()
+	{
+		String[] fields = new String[count];
+		for (int i = 0; i < count; i++)
+			fields[i] = field(i);
+		return fields;
+	}
+
+	boolean fieldEquals(int field, String value)
+	{
+		check(field);
+		int start = starts[field];
+		int n = value.length();
+		if (ends[field] - start != n)
+			return false;
+		for (int i = 0; i < n; i++)
+		{
+			if (line[start + i] != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	boolean fieldStartsWith(int field, String prefix)
+	{
+		check(field);
+		int start = starts[field];
+		int n = prefix.length();
+		if (ends[field] - start < n)
+			return false;
+		for (int i = 0; i < n; i++)
+		{
+			if (line[start + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses field as integer, behaves like {@link Integer#parseInt(String)}.
+	 */
+	int intField(int field)
+	{
+		check(field);
+		int start = starts[field];
+		int end = ends[field];
+		int i = start;
+		boolean negative = false;
+		if (i < end && (line[i] == '-' || line[i] == '+'))
+		{
+			negative = line[i] == '-';
+			i++;
+		}
+		// Longer values may overflow, let library handle them
+		if (i == end || end - i > 9)
+			return Integer.parseInt(field(field));
+		int value = 0;
+		for (; i < end; i++)
+		{
+			char c = line[i];
+			if (c < '0' || c > '9')
+				throw new NumberFormatException("For input string: \"" + field(field) + "\"");
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses field as double, behaves like {@link Double#parseDouble(String)}. Plain decimal
+	 * numbers with exactly representable mantissa are parsed in place, the result is correctly
+	 * rounded because it is obtained by single division of two exact values.
+	 */
+	double doubleField(int field)
+	{
+		check(field);
+		int start = starts[field];
+		int end = ends[field];
+		// Empty fields are common in map files, do not spend time on library call
+		if (start == end)
+			throw new NumberFormatException("empty String");
+		int i = start;
+		boolean negative = false;
+		if (i < end && (line[i] == '-' || line[i] == '+'))
+		{
+			negative = line[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		for (; i < end; i++)
+		{
+			char c = line[i];
+			if (c >= '0' && c <= '9')
+			{
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point)
+					scale++;
+			}
+			else if (c == '.' && !point)
+			{
+				point = true;
+			}
+			else
+			{
+				break;
+			}
+		}
+		if (i < end || digits == 0 || digits > MAX_FAST_DIGITS || scale >= POWERS_OF_TEN.length)
+			return Double.parseDouble(field(field));
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	private void check(int field)
+	{
+		if (field < 0 || field >= count)
+			throw new ArrayIndexOutOfBoundsException(field);
+	}
+
+	/**
+	 * Reads next line without splitting it into fields, recognizes the same line
+	 * terminators as BufferedReader.
+	 *
+	 * @return false if end of file is reached
+	 */
+	boolean nextLine() throws IOException
+	{
+		count = 0;
+		length = 0;
+		boolean read = false;
+		while (true)
+		{
+			if (position >= limit)
+			{
+				limit = reader.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0)
+				{
+					limit = 0;
+					return read;
+				}
+			}
+			if (skipLineFeed)
+			{
+				skipLineFeed = false;
+				if (buffer[position] == '\n')
+				{
+					position++;
+					continue;
+				}
+			}
+			read = true;
+			char c = buffer[position++];
+			if (c == '\n')
+				return true;
+			if (c == '\r')
+			{
+				skipLineFeed = true;
+				return true;
+			}
+			if (length == line.length)
+			{
+				char[] expanded = new char[line.length * 2];
+				System.arraycopy(line, 0, expanded, 0, length);
+				line = expanded;
+			}
+			line[length++] = c;
+		}
+	}
+
+	/**
+	 * Splits line into trimmed comma separated fields. Quoted fields may contain commas,
+	 * doubled quote inside quoted field stands for quote character, such fields are unescaped
+	 * in place.
+	 */
+	private void split()
+	{
+		count = 0;
+		if (length == 0)
+			return;
+		int i = 0;
+		while (true)
+		{
+			if (count == starts.length)
+			{
+				int[] s = new int[count * 2];
+				int[] e = new int[count * 2];
+				System.arraycopy(starts, 0, s, 0, count);
+				System.arraycopy(ends, 0, e, 0, count);
+				starts = s;
+				ends = e;
+			}
+			while (i < length && line[i] <= ' ')
+				i++;
+			int start = i;
+			int end;
+			if (i < length && line[i] == '"')
+			{
+				// Unescape quoted field in place, output never outruns input
+				start = ++i;
+				int out = i;
+				while (i < length)
+				{
+					char c = line[i++];
+					if (c == '"')
+					{
+						if (i < length && line[i] == '"')
+							i++;
+						else
+							break;
+					}
+					line[out++] = c;
+				}
+				end = out;
+				while (i < length && line[i] != ',')
+					i++;
+			}
+			else
+			{
+				while (i < length && line[i] != ',')
+					i++;
+				end = i;
+				while (end > start && line[end - 1] <= ' ')
+					end--;
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+			if (i >= length)
+				break;
+			// Skip comma
+			i++;
+		}
+	}
+}
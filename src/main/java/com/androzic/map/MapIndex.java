@@ -21,8 +21,6 @@
 package com.androzic.map;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -32,193 +30,448 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.annotation.SuppressLint;
+import android.util.Log;
 
 import com.androzic.data.Bounds;
-import com.androzic.map.forge.ForgeMap;
-import com.androzic.map.ozf.Grid;
-import com.androzic.map.ozf.OzfMap;
 import com.androzic.util.FileList;
 import com.androzic.util.MapFilenameFilter;
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import com.jhlabs.map.proj.Projection;
 
 public class MapIndex implements Serializable
 {
-	private static final long serialVersionUID = 8L;
+	private static final long serialVersionUID = 11L;
+
+	private static final String TAG = "MapIndex";
+
+	private static final int MAX_LOADER_THREADS = 4;
+	/**
+	 * Id of indexed file that failed to load, such file is not parsed again until it changes
+	 */
+	static final int NO_MAP = 0;
 	
-	private HashSet<Integer>[][] maps;
+	/**
+	 * Maps that are not stored in index file
+	 */
+	private MapRTree maps;
+	/**
+	 * Maps that are not stored in index file and maps already read from it
+	 */
 	private HashMap<Integer,BaseMap> mapIndex;
-	private int hashCode;
+	/**
+	 * Indexed map files keyed by absolute path
+	 */
+	private HashMap<String,IndexedFile> files;
+	/**
+	 * Memory mapped index file, maps are read from it on demand
+	 */
+	private transient MapIndexFile indexFile;
+	/**
+	 * Ids of index file maps that were removed or replaced
+	 */
+	private HashSet<Integer> removedMaps;
+	/**
+	 * Ids of maps that were initialized, maps are initialized only when they are selected
+	 */
+	private HashSet<Integer> initializedMaps;
+	private int initializedCount;
+	private transient CoveringMapsCache coveringCache;
+	private transient OnMapErrorListener errorListener;
+	private transient int loaderThreads;
 	private transient Comparator<BaseMap> comparator = new MapComparator();
 
-	@SuppressWarnings("unused")
+	@SuppressLint("UseSparseArrays")
 	MapIndex()
 	{
+		maps = new MapRTree();
+		mapIndex = new HashMap<>();
+		files = new HashMap<>();
+		removedMaps = new HashSet<>();
+		initializedMaps = new HashSet<>();
+		coveringCache = new CoveringMapsCache();
 	}
 
-	@SuppressLint("UseSparseArrays")
-	@SuppressWarnings("unchecked")
 	public MapIndex(String path, String charset)
 	{
-		maps = new HashSet[181][361];
-		mapIndex = new HashMap<>();
+		this(path, charset, null);
+	}
+
+	public MapIndex(String path, String charset, OnIndexProgressListener listener)
+	{
+		this();
+		update(path, charset, listener);
+	}
+
+	public boolean update(String path, String charset)
+	{
+		return update(path, charset, null);
+	}
+
+	/**
+	 * Synchronizes index with map folder. Only added and modified map files are loaded,
+	 * maps of deleted files are removed from index, all other maps are left untouched.
+	 *
+	 * @param path map folder
+	 * @param charset map files charset
+	 * @param listener map loading progress listener, can be null
+	 * @return true if index was changed
+	 */
+	public boolean update(String path, String charset, OnIndexProgressListener listener)
+	{
+		boolean changed = false;
 		File root = new File(path);
-		List<File> files = FileList.getFileListing(root, new MapFilenameFilter());
-		for (File file: files)
+		List<File> list = FileList.getFileListing(root, new MapFilenameFilter());
+		HashSet<String> existing = new HashSet<>();
+		List<File> added = new ArrayList<>();
+		List<IndexedFile> stamps = new ArrayList<>();
+		for (File file: list)
+		{
+			String name = file.getAbsolutePath();
+			long length = file.length();
+			long lastModified = file.lastModified();
+			existing.add(name);
+			IndexedFile indexed = files.get(name);
+			if (indexed != null)
+			{
+				if (indexed.length == length && indexed.lastModified == lastModified)
+					continue;
+				removeFile(name);
+			}
+			added.add(file);
+			stamps.add(new IndexedFile(0, length, lastModified));
+		}
+		if (!added.isEmpty())
+		{
+			loadFiles(added, stamps, charset, listener);
+			changed = true;
+		}
+		List<String> deleted = new ArrayList<>();
+		for (String name : files.keySet())
+		{
+			if (!existing.contains(name))
+				deleted.add(name);
+		}
+		for (String name : deleted)
+		{
+			removeFile(name);
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Parses map files on a bounded thread pool. Maps are added to index in the order of
+	 * file list to keep index deterministic.
+	 */
+	private void loadFiles(List<File> list, List<IndexedFile> stamps, final String charset, OnIndexProgressListener listener)
+	{
+		int threads = loaderThreads > 0 ? loaderThreads : Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADER_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<BaseMap>> results = new ArrayList<>(list.size());
+			for (final File file: list)
+			{
+				results.add(executor.submit(new Callable<BaseMap>() {
+					@Override
+					public BaseMap call() throws Exception
+					{
+						return MapLoader.load(file, charset);
+					}
+				}));
+			}
+			int count = list.size();
+			for (int i = 0; i < count; i++)
+			{
+				try
+				{
+					BaseMap map = results.get(i).get();
+					addMap(map);
+					IndexedFile indexed = stamps.get(i);
+					indexed.id = map.id;
+					files.put(list.get(i).getAbsolutePath(), indexed);
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					Log.e(TAG, "Failed to load map: " + list.get(i).getAbsolutePath(), cause);
+					// Remember file so that it is not parsed on each update
+					IndexedFile indexed = stamps.get(i);
+					indexed.id = NO_MAP;
+					files.put(list.get(i).getAbsolutePath(), indexed);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (listener != null && (i + 1) * 100 / count != i * 100 / count)
+					listener.onProgress(i + 1, count);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private void removeFile(String name)
+	{
+		IndexedFile indexed = files.remove(name);
+		if (indexed.id == NO_MAP)
+			return;
+		BaseMap map = mapIndex.get(indexed.id);
+		if (map != null)
+			removeMap(map);
+		else if (isStored(indexed.id))
+			removedMaps.add(indexed.id);
+	}
+
+	/**
+	 * Returns true if map is present in index file and was not removed.
+	 */
+	private boolean isStored(int id)
+	{
+		return indexFile != null && !removedMaps.contains(id) && indexFile.findRecord(id) >= 0;
+	}
+
+	/**
+	 * Returns map read from index file, map is deserialized on first request.
+	 */
+	private synchronized BaseMap getStoredMap(int record)
+	{
+		int id = indexFile.getId(record);
+		if (removedMaps.contains(id))
+			return null;
+		BaseMap map = mapIndex.get(id);
+		if (map == null)
 		{
 			try
 			{
-				BaseMap map = MapLoader.load(file, charset);
-				addMap(map);
+				map = indexFile.readMap(record);
 			}
 			catch (IOException e)
 			{
-				// TODO Auto-generated catch block
 				e.printStackTrace();
+				removedMaps.add(id);
+				return null;
 			}
+			mapIndex.put(id, map);
 		}
-		hashCode = getMapsHash(files);
-	}
-	
-	public static int getMapsHash(String path)
-	{
-		File root = new File(path);
-		List<File> files = FileList.getFileListing(root, new MapFilenameFilter());
-		return getMapsHash(files);
+		return map;
 	}
 
-	private static int getMapsHash(List<File> files)
+	/**
+	 * Initializes map if it was not initialized yet. Indexed maps are kept uninitialized
+	 * until they are selected by query or are going to be activated. Map that fails to
+	 * initialize is excluded from queries and is reported by {@link #getBadMaps()}.
+	 */
+	public synchronized void initializeMap(BaseMap map)
 	{
-		int result = 13;
-		for (File file: files)
+		if (map.loadError != null || initializedMaps.contains(map.id))
+			return;
+		map.initialize();
+		initializedMaps.add(map.id);
+		initializedCount++;
+		if (map.loadError != null)
 		{
-			result = 31 * result + file.getAbsolutePath().hashCode();
+			Log.e(TAG, "Failed to initialize map: " + map.path, map.loadError);
+			maps.remove(map.id);
+			coveringCache.invalidate();
+			if (errorListener != null)
+				errorListener.onMapError(map);
 		}
-		return result;
 	}
 
-	@Override
-	public int hashCode()
+	/**
+	 * Sets number of map parsing threads, by default it is the number of processors
+	 * but not more than MAX_LOADER_THREADS.
+	 */
+	void setLoaderThreads(int threads)
+	{
+		loaderThreads = threads;
+	}
+
+	/**
+	 * Sets listener which is notified when map fails to initialize after index was built.
+	 */
+	public void setOnMapErrorListener(OnMapErrorListener listener)
+	{
+		errorListener = listener;
+	}
+
+	/**
+	 * Returns number of maps that were initialized since index creation.
+	 */
+	public synchronized int getInitializedCount()
+	{
+		return initializedCount;
+	}
+
+	/**
+	 * Returns number of indexed maps.
+	 */
+	public synchronized int getMapCount()
+	{
+		int count = maps.size();
+		if (indexFile != null)
+			count += indexFile.getCount() - removedMaps.size();
+		return count;
+	}
+
+	/**
+	 * Returns all valid maps which bounds intersect specified area. Returned maps are initialized.
+	 */
+	private synchronized List<BaseMap> findMaps(double minLat, double minLon, double maxLat, double maxLon)
 	{
-		return hashCode;
+		List<BaseMap> candidates = new ArrayList<>();
+		List<Integer> ids = new ArrayList<>();
+		maps.search(minLat, minLon, maxLat, maxLon, ids);
+		for (Integer id : ids)
+			candidates.add(mapIndex.get(id));
+		if (indexFile != null)
+		{
+			ids.clear();
+			indexFile.search(minLat, minLon, maxLat, maxLon, ids);
+			for (Integer record : ids)
+			{
+				BaseMap map = getStoredMap(record);
+				if (map != null)
+					candidates.add(map);
+			}
+		}
+		List<BaseMap> result = new ArrayList<>(candidates.size());
+		for (BaseMap map : candidates)
+		{
+			initializeMap(map);
+			// Error can be raised during initialization.
+			if (map.loadError == null)
+				result.add(map);
+		}
+		return result;
 	}
 
-	public void addMap(BaseMap map)
+	public synchronized void addMap(BaseMap map)
 	{
-		if (mapIndex.containsKey(map.id))
+		if (mapIndex.containsKey(map.id) || isStored(map.id))
 			return;
 
 		mapIndex.put(map.id, map);
 		if (map.loadError != null)
 			return;
 
-		map.initialize();
-		// Error can be raised during initialization.
-		if (map.loadError != null)
-			return;
+		// Bounds of some maps are known only after initialization
+		if (map.cornerMarkers == null)
+		{
+			initializeMap(map);
+			// Error can be raised during initialization.
+			if (map.loadError != null)
+				return;
+		}
 
-		// TODO Use corner markers instead
-		Bounds bounds = map.getBounds();
-		int minLat = (int) Math.floor(bounds.minLat);
-		int maxLat = (int) Math.ceil(bounds.maxLat);
-		int minLon = (int) Math.floor(bounds.minLon);
-		int maxLon = (int) Math.ceil(bounds.maxLon);
-		for (int lat = minLat; lat <= maxLat; lat++)
+		double[] bounds = getMapBounds(map);
+		if (bounds[0] < -90 || bounds[2] > 90 || bounds[1] < -180 || bounds[3] > 180)
 		{
-			for (int lon = minLon; lon <= maxLon; lon++)
-			{
-				HashSet<Integer> lli;
-				try
-				{
-					lli = maps[lat + 90][lon + 180];
-				}
-				catch (IndexOutOfBoundsException e)
-				{
-					e.printStackTrace();
-					map.loadError = e;
-					return;
-				}
-				if (lli == null)
-				{
-					lli = new HashSet<>();
-					maps[lat + 90][lon + 180] = lli;
-				}
-				lli.add(map.id);
-			}
+			map.loadError = new IndexOutOfBoundsException("Map bounds are out of range: " + map.path);
+			return;
 		}
+		maps.insert(map.id, bounds[0], bounds[1], bounds[2], bounds[3]);
+		coveringCache.invalidate();
 	}
 
-	public void removeMap(BaseMap map)
+	public synchronized void removeMap(BaseMap map)
 	{
 		mapIndex.remove(map.id);
-		if (map.loadError != null)
-			return;
-		map.destroy();
-		// TODO Use corner markers instead
-		Bounds bounds = map.getBounds();
-		int minLat = (int) Math.floor(bounds.minLat);
-		int maxLat = (int) Math.ceil(bounds.maxLat);
-		int minLon = (int) Math.floor(bounds.minLon);
-		int maxLon = (int) Math.ceil(bounds.maxLon);
-		for (int lat = minLat; lat <= maxLat; lat++)
+		maps.remove(map.id);
+		if (indexFile != null && indexFile.findRecord(map.id) >= 0)
+			removedMaps.add(map.id);
+		if (initializedMaps.remove(map.id) && map.loadError == null)
+			map.destroy();
+		coveringCache.invalidate();
+	}
+
+	/**
+	 * Returns map bounds calculated from corner markers: {minLat, minLon, maxLat, maxLon}
+	 */
+	private static double[] getMapBounds(BaseMap map)
+	{
+		if (map.cornerMarkers == null || map.cornerMarkers.length == 0)
 		{
-			for (int lon = minLon; lon <= maxLon; lon++)
-			{
-				HashSet<Integer> lli = maps[lat+90][lon+180];
-				if (lli != null)
-					lli.remove(map.id);
-			}
+			Bounds bounds = map.getBounds();
+			return new double[] {bounds.minLat, bounds.minLon, bounds.maxLat, bounds.maxLon};
+		}
+		double[] bounds = new double[] {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (MapPoint mp : map.cornerMarkers)
+		{
+			if (mp.lat < bounds[0])
+				bounds[0] = mp.lat;
+			if (mp.lon < bounds[1])
+				bounds[1] = mp.lon;
+			if (mp.lat > bounds[2])
+				bounds[2] = mp.lat;
+			if (mp.lon > bounds[3])
+				bounds[3] = mp.lon;
 		}
+		return bounds;
 	}
 
+	/**
+	 * Returns maps that cover specified area and are suitable to be drawn together with
+	 * reference map. Candidate maps are cached for the area snapped to a coarse grid, see
+	 * {@link CoveringMapsCache}, coverage of the area itself is checked on every call.
+	 */
 	public List<BaseMap> getCoveringMaps(BaseMap refMap, Bounds area, boolean covered, boolean bestmap)
+	{
+		CoveringMapsCache.Key key = CoveringMapsCache.key(refMap, area, covered, bestmap);
+		List<BaseMap> candidates = coveringCache.get(key);
+		if (candidates == null)
+		{
+			candidates = findCoveringCandidates(refMap, key.area, covered, bestmap);
+			coveringCache.put(key, candidates);
+		}
+
+		List<BaseMap> llmaps = new ArrayList<>(candidates.size());
+		for (BaseMap map : candidates)
+		{
+			// If map does not cover referencing area do not use it
+			// We put it at last place because this check is expensive
+			if (map.containsArea(area))
+				llmaps.add(map);
+		}
+		return llmaps;
+	}
+
+	/**
+	 * Returns maps of suitable scale which intersect specified area, in order of preference.
+	 */
+	private List<BaseMap> findCoveringCandidates(BaseMap refMap, Bounds area, boolean covered, boolean bestmap)
 	{
 		List<BaseMap> llmaps = new ArrayList<>();
-		Set<BaseMap> llmapsidx = new HashSet<>();
 
-		int minLat = (int) Math.floor(area.minLat);
-		int maxLat = (int) Math.ceil(area.maxLat);
-		int minLon = (int) Math.floor(area.minLon);
-		int maxLon = (int) Math.ceil(area.maxLon);
-		
-		for (int lat = minLat; lat <= maxLat; lat++)
+		for (BaseMap map : findMaps(area.minLat, area.minLon, area.maxLat, area.maxLon))
 		{
-			for (int lon = minLon; lon <= maxLon; lon++)
-			{
-				HashSet<Integer> lli = maps[lat+90][lon+180];
-				if (lli != null)
-				{
-					for (Integer id : lli)
-					{
-						BaseMap map = mapIndex.get(id);
-						if (llmapsidx.contains(map))
-							continue;
-						if (map.equals(refMap))
-							continue;
-						double ratio = map.getCoveringRatio(refMap.mpp);
-						// If map has smaller scale and reference map covers all screen do not use it
-						if ((covered || ratio < 0.2) && ratio < 0.99)
-							continue;
-
-						// If map has bigger scale but best map is not enabled do not use it
-						if ((! bestmap && covered) || ratio > 5d)
-							continue;
-
-						// If map does not cover referencing area do not use it
-						// We put it at last place because this check is expensive
-						if (!map.containsArea(area))
-							continue;
-
-						llmaps.add(map);
-						llmapsidx.add(map);
-					}
-				}
-			}
+			if (map.equals(refMap))
+				continue;
+			double ratio = map.getCoveringRatio(refMap.mpp);
+			// If map has smaller scale and reference map covers all screen do not use it
+			if ((covered || ratio < 0.2) && ratio < 0.99)
+				continue;
+
+			// If map has bigger scale but best map is not enabled do not use it
+			if ((! bestmap && covered) || ratio > 5d)
+				continue;
+
+			llmaps.add(map);
 		}
 
 		Collections.sort(llmaps, comparator);
@@ -227,32 +480,31 @@ public class MapIndex implements Serializable
 		return llmaps;
 	}
 
+	/**
+	 * Returns number of covering maps queries served from cache.
+	 */
+	public int getCoveringCacheHits()
+	{
+		return coveringCache.getHits();
+	}
+
+	/**
+	 * Returns number of covering maps queries that required index lookup.
+	 */
+	public int getCoveringCacheMisses()
+	{
+		return coveringCache.getMisses();
+	}
+
 	public List<BaseMap> getMaps(double latitude, double longitude)
 	{
 		List<BaseMap> llmaps = new ArrayList<>();
-		
-		int minLat = (int) Math.floor(latitude);
-		int maxLat = (int) Math.ceil(latitude);
-		int minLon = (int) Math.floor(longitude);
-		int maxLon = (int) Math.ceil(longitude);
 
-		for (int lat = minLat; lat <= maxLat; lat++)
+		// Bounding boxes give fast rejection, exact check is done against map polygon
+		for (BaseMap map : findMaps(latitude, longitude, latitude, longitude))
 		{
-			for (int lon = minLon; lon <= maxLon; lon++)
-			{
-				HashSet<Integer> lli = maps[lat+90][lon+180];
-				if (lli != null)
-				{
-					for (Integer id : lli)
-					{
-						BaseMap map = mapIndex.get(id);
-						if (!llmaps.contains(map) && map.coversLatLon(latitude, longitude))
-						{
-							llmaps.add(map);
-						}
-					}
-				}
-			}
+			if (map.coversLatLon(latitude, longitude))
+				llmaps.add(map);
 		}
 		
 		Collections.sort(llmaps, comparator);
@@ -260,93 +512,173 @@ public class MapIndex implements Serializable
 		return llmaps;
 	}
 
-	public Collection<BaseMap> getMaps()
+	/**
+	 * Returns all indexed maps. Maps stored in index file are read from it.
+	 */
+	public synchronized Collection<BaseMap> getMaps()
 	{
+		if (indexFile != null)
+		{
+			for (int i = 0; i < indexFile.getCount(); i++)
+				getStoredMap(i);
+		}
 		return mapIndex.values();
 	}
 
-	public void cleanBadMaps()
+	/**
+	 * Returns true if index contains valid maps of specified type. Maps stored in index
+	 * file are not read, their type is taken from index records.
+	 */
+	public synchronized boolean hasMaps(Class<? extends BaseMap> type)
 	{
-		HashSet<BaseMap> badMaps = new HashSet<>();
-		
-		for (Integer id : mapIndex.keySet())
+		for (BaseMap map : mapIndex.values())
 		{
-			BaseMap map = mapIndex.get(id);
-			if (map.loadError != null)
+			if (map.loadError == null && type.isInstance(map))
+				return true;
+		}
+		if (indexFile != null)
+		{
+			for (int i = 0; i < indexFile.getCount(); i++)
 			{
-				badMaps.add(map);
+				int id = indexFile.getId(i);
+				if (!removedMaps.contains(id) && !mapIndex.containsKey(id) && type.isAssignableFrom(indexFile.getType(i)))
+					return true;
 			}
 		}
-		for (BaseMap map : badMaps)
+		return false;
+	}
+
+	/**
+	 * Returns paths of valid maps of specified type. Maps stored in index file are not
+	 * read, their paths are taken from the list of indexed files.
+	 */
+	public synchronized List<String> getMapPaths(Class<? extends BaseMap> type)
+	{
+		List<String> paths = new ArrayList<>();
+		for (BaseMap map : mapIndex.values())
+		{
+			if (map.loadError == null && map.path != null && type.isInstance(map))
+				paths.add(map.path);
+		}
+		if (indexFile != null)
+		{
+			for (Map.Entry<String, IndexedFile> entry : files.entrySet())
+			{
+				int id = entry.getValue().id;
+				if (id == NO_MAP || mapIndex.containsKey(id) || removedMaps.contains(id))
+					continue;
+				int record = indexFile.findRecord(id);
+				if (record >= 0 && type.isAssignableFrom(indexFile.getType(record)))
+					paths.add(entry.getKey());
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Returns maps that failed to load or initialize.
+	 */
+	public synchronized List<BaseMap> getBadMaps()
+	{
+		List<BaseMap> badMaps = new ArrayList<>();
+		for (BaseMap map : mapIndex.values())
+		{
+			if (map.loadError != null)
+				badMaps.add(map);
+		}
+		return badMaps;
+	}
+
+	public synchronized void cleanBadMaps()
+	{
+		for (BaseMap map : getBadMaps())
 		{
 			removeMap(map);
 		}		
 	}
 
-	public void clear()
+	public synchronized void clear()
 	{
 		for (BaseMap map : mapIndex.values())
-			map.destroy();
-		mapIndex.clear();
-		for (int lat = 0; lat < 181; lat++)
 		{
-			for (int lon = 0; lon < 361; lon++)
-			{
-				HashSet<Integer> lli = maps[lat][lon];
-				if (lli != null)
-				{
-					lli.clear();
-					maps[lat][lon] = null;
-				}
-			}
+			if (initializedMaps.contains(map.id))
+				map.destroy();
 		}
+		initializedMaps.clear();
+		mapIndex.clear();
+		maps.clear();
 		maps = null;
+		indexFile = null;
+		coveringCache.invalidate();
 	}
 
 	public static MapIndex loadIndex(File file) throws Throwable
 	{
-		//com.esotericsoftware.minlog.Log.DEBUG();
-		Kryo kryo = new Kryo();
-		kryo.register(MapIndex.class);
-		kryo.register(BaseMap.class);
-		kryo.register(OzfMap.class);
-		kryo.register(ForgeMap.class);
-		kryo.register(Grid.class);
-		kryo.register(MapPoint.class);
-		kryo.register(MapPoint[].class);
-		kryo.register(Projection.class);
-		kryo.register(Integer.class);
-		kryo.register(String.class);
-		kryo.register(ArrayList.class);
-		kryo.register(HashSet.class);
-		kryo.register(HashMap.class);
-		Input input = new Input(new FileInputStream(file));
-		MapIndex index = kryo.readObject(input, MapIndex.class);
-		input.close();
-		for (BaseMap map : index.getMaps())
-			map.initialize();
+		MapIndex index = new MapIndex();
+		index.indexFile = MapIndexFile.open(file);
+		index.indexFile.readManifest(index.files);
 		return index;
 	}
 
 	public static void saveIndex(MapIndex index, File file) throws Throwable
 	{
-		Kryo kryo = new Kryo();
-		kryo.register(MapIndex.class);
-		kryo.register(BaseMap.class);
-		kryo.register(OzfMap.class);
-		kryo.register(ForgeMap.class);
-		kryo.register(Grid.class);
-		kryo.register(MapPoint.class);
-		kryo.register(MapPoint[].class);
-		kryo.register(Projection.class);
-		kryo.register(Integer.class);
-		kryo.register(String.class);
-		kryo.register(ArrayList.class);
-		kryo.register(HashSet.class);
-		kryo.register(HashMap.class);
-		Output output = new Output(new FileOutputStream(file));
-		kryo.writeObject(output, index);
-		output.close();
+		index.save(file);
+	}
+
+	private synchronized void save(File file) throws IOException
+	{
+		List<MapIndexFile.Entry> entries = new ArrayList<>();
+		if (indexFile != null)
+		{
+			// Stored maps are copied as is, without deserialization
+			for (int i = 0; i < indexFile.getCount(); i++)
+			{
+				if (!removedMaps.contains(indexFile.getId(i)))
+					entries.add(new MapIndexFile.Entry(indexFile, i));
+			}
+		}
+		for (BaseMap map : mapIndex.values())
+		{
+			if (isStored(map.id))
+				continue;
+			double[] bounds = maps.get(map.id);
+			if (bounds != null)
+				entries.add(new MapIndexFile.Entry(map, bounds));
+		}
+		// Index file can be mapped by this index so it is replaced, not overwritten
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		MapIndexFile.write(tmp, entries, files);
+		if (!tmp.renameTo(file))
+			throw new IOException("Failed to replace map index: " + file.getAbsolutePath());
+	}
+
+	public interface OnIndexProgressListener
+	{
+		void onProgress(int loaded, int total);
+	}
+
+	public interface OnMapErrorListener
+	{
+		/**
+		 * Called with index locked, from the thread that initialized the map.
+		 */
+		void onMapError(BaseMap map);
+	}
+
+	static class IndexedFile implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		int id;
+		long length;
+		long lastModified;
+
+		IndexedFile(int id, long length, long lastModified)
+		{
+			this.id = id;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
 	}
 
 	private class MapComparator implements Comparator<BaseMap>, Serializable
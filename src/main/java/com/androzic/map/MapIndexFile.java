@@ -0,0 +1,462 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.androzic.map.db.DatabaseMap;
+import com.androzic.map.forge.ForgeMap;
+import com.androzic.map.ozf.Grid;
+import com.androzic.map.ozf.OzfMap;
+import com.androzic.map.sas.SASMap;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.jhlabs.map.proj.Projection;
+
+/**
+ * Flat binary map index file which is accessed through memory mapped buffer. Map bounds,
+ * scale, priority, type, title and spatial tree are read directly from the buffer, map
+ * objects are deserialized only on request.
+ *
+ * <pre>
+ * header:   magic, version, node size, record count, tree height, file count,
+ *           tree offset, data offset, manifest offset
+ * records:  id, minLat, minLon, maxLat, maxLon, mpp, priority, data offset,
+ *           title length, map length, map type (sorted by id)
+ * tree:     record indexes in leaf order, then for every level (leaves first)
+ *           node count and node bounds
+ * data:     title and serialized map of every record
+ * manifest: map id, file length, file modification time, path of every indexed file
+ * </pre>
+ */
+class MapIndexFile
+{
+	private static final int MAGIC = 0x414D4958; // AMIX
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 48;
+	private static final int RECORD_SIZE = 68;
+	/**
+	 * Map types stored in records, subclasses follow their superclasses
+	 */
+	private static final Class<?>[] TYPES = {BaseMap.class, OzfMap.class, ForgeMap.class, SASMap.class, DatabaseMap.class};
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int nodeSize;
+	private final int fileCount;
+	private final int leavesOffset;
+	private final int[] levelOffsets;
+	private final int[] levelSizes;
+	private final int manifestOffset;
+	private final Kryo kryo;
+
+	private MapIndexFile(ByteBuffer buffer) throws IOException
+	{
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported map index format");
+		nodeSize = buffer.getInt(8);
+		count = buffer.getInt(12);
+		int height = buffer.getInt(16);
+		fileCount = buffer.getInt(20);
+		leavesOffset = (int) buffer.getLong(24);
+		manifestOffset = (int) buffer.getLong(40);
+
+		levelOffsets = new int[height];
+		levelSizes = new int[height];
+		int offset = leavesOffset + count * 4;
+		for (int level = 0; level < height; level++)
+		{
+			levelSizes[level] = buffer.getInt(offset);
+			levelOffsets[level] = offset + 4;
+			offset += 4 + levelSizes[level] * 32;
+		}
+		kryo = createKryo();
+	}
+
+	static MapIndexFile open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MapIndexFile(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	int getCount()
+	{
+		return count;
+	}
+
+	int getId(int record)
+	{
+		return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE);
+	}
+
+	/**
+	 * Returns index of record with specified map id or -1 if there is no such record.
+	 */
+	int findRecord(int id)
+	{
+		int low = 0;
+		int high = count - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int midId = getId(mid);
+			if (midId < id)
+				low = mid + 1;
+			else if (midId > id)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	double[] getBounds(int record)
+	{
+		int offset = HEADER_SIZE + record * RECORD_SIZE + 4;
+		return new double[] {buffer.getDouble(offset), buffer.getDouble(offset + 8), buffer.getDouble(offset + 16), buffer.getDouble(offset + 24)};
+	}
+
+	double getMPP(int record)
+	{
+		return buffer.getDouble(HEADER_SIZE + record * RECORD_SIZE + 36);
+	}
+
+	int getPriority(int record)
+	{
+		return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 44);
+	}
+
+	/**
+	 * Returns class of the stored map or its closest known superclass.
+	 */
+	Class<?> getType(int record)
+	{
+		int type = buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 64);
+		return type >= 0 && type < TYPES.length ? TYPES[type] : BaseMap.class;
+	}
+
+	String getTitle(int record)
+	{
+		int offset = HEADER_SIZE + record * RECORD_SIZE;
+		return readString((int) buffer.getLong(offset + 48), buffer.getInt(offset + 56));
+	}
+
+	/**
+	 * Adds indexes of all records which bounds intersect specified area to result.
+	 */
+	void search(double minLat, double minLon, double maxLat, double maxLon, List<Integer> result)
+	{
+		if (count == 0)
+			return;
+		int top = levelSizes.length - 1;
+		search(top, 0, levelSizes[top], minLat, minLon, maxLat, maxLon, result);
+	}
+
+	private void search(int level, int from, int to, double minLat, double minLon, double maxLat, double maxLon, List<Integer> result)
+	{
+		int offset = levelOffsets[level];
+		for (int i = from; i < to; i++)
+		{
+			int j = offset + i * 32;
+			if (buffer.getDouble(j) > maxLat || buffer.getDouble(j + 16) < minLat || buffer.getDouble(j + 8) > maxLon || buffer.getDouble(j + 24) < minLon)
+				continue;
+			if (level == 0)
+			{
+				result.add(buffer.getInt(leavesOffset + i * 4));
+			}
+			else
+			{
+				int child = i * nodeSize;
+				search(level - 1, child, Math.min(child + nodeSize, levelSizes[level - 1]), minLat, minLon, maxLat, maxLon, result);
+			}
+		}
+	}
+
+	BaseMap readMap(int record) throws IOException
+	{
+		byte[] data = readData(record);
+		try
+		{
+			synchronized (kryo)
+			{
+				Input input = new Input(data);
+				BaseMap map = (BaseMap) kryo.readClassAndObject(input);
+				input.close();
+				return map;
+			}
+		}
+		catch (KryoException | ClassCastException e)
+		{
+			throw new IOException("Failed to read map " + getId(record) + " from index: " + e.getMessage());
+		}
+	}
+
+	private byte[] readData(int record)
+	{
+		int offset = HEADER_SIZE + record * RECORD_SIZE;
+		int position = (int) buffer.getLong(offset + 48) + buffer.getInt(offset + 56);
+		byte[] data = new byte[buffer.getInt(offset + 60)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.get(data);
+		return data;
+	}
+
+	void readManifest(Map<String, MapIndex.IndexedFile> files)
+	{
+		int offset = manifestOffset;
+		for (int i = 0; i < fileCount; i++)
+		{
+			int id = buffer.getInt(offset);
+			long length = buffer.getLong(offset + 4);
+			long lastModified = buffer.getLong(offset + 12);
+			int pathLength = buffer.getInt(offset + 20);
+			files.put(readString(offset + 24, pathLength), new MapIndex.IndexedFile(id, length, lastModified));
+			offset += 24 + pathLength;
+		}
+	}
+
+	private String readString(int offset, int length)
+	{
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		try
+		{
+			return new String(bytes, "UTF-8");
+		}
+		catch (java.io.UnsupportedEncodingException e)
+		{
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static void write(File file, List<Entry> entries, Map<String, MapIndex.IndexedFile> files) throws IOException
+	{
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry lhs, Entry rhs)
+			{
+				return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+			}
+		});
+		int count = entries.size();
+
+		MapRTree tree = new MapRTree();
+		for (int i = 0; i < count; i++)
+		{
+			double[] bounds = entries.get(i).bounds;
+			tree.insert(i, bounds[0], bounds[1], bounds[2], bounds[3]);
+		}
+		int[] leaves = tree.ids();
+		double[][] levels = tree.levels();
+
+		int treeOffset = HEADER_SIZE + count * RECORD_SIZE;
+		int dataOffset = treeOffset + count * 4;
+		for (double[] level : levels)
+			dataOffset += 4 + level.length * 8;
+
+		Kryo kryo = createKryo();
+		long[] offsets = new long[count];
+		int[] titleLengths = new int[count];
+		int[] dataLengths = new int[count];
+		long manifestOffset;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+
+			// Write variable length sections first to learn their offsets
+			channel.position(dataOffset);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			for (int i = 0; i < count; i++)
+			{
+				Entry entry = entries.get(i);
+				byte[] title = entry.title != null ? entry.title.getBytes("UTF-8") : new byte[0];
+				byte[] data = entry.getData(kryo);
+				offsets[i] = dataOffset + out.size();
+				titleLengths[i] = title.length;
+				dataLengths[i] = data.length;
+				out.write(title);
+				out.write(data);
+			}
+			manifestOffset = dataOffset + out.size();
+			for (Map.Entry<String, MapIndex.IndexedFile> indexed : files.entrySet())
+			{
+				byte[] path = indexed.getKey().getBytes("UTF-8");
+				out.writeInt(indexed.getValue().id);
+				out.writeLong(indexed.getValue().length);
+				out.writeLong(indexed.getValue().lastModified);
+				out.writeInt(path.length);
+				out.write(path);
+			}
+			out.flush();
+
+			ByteBuffer head = ByteBuffer.allocate(dataOffset);
+			head.putInt(MAGIC);
+			head.putInt(VERSION);
+			head.putInt(MapRTree.NODE_SIZE);
+			head.putInt(count);
+			head.putInt(levels.length);
+			head.putInt(files.size());
+			head.putLong(treeOffset);
+			head.putLong(dataOffset);
+			head.putLong(manifestOffset);
+			for (int i = 0; i < count; i++)
+			{
+				Entry entry = entries.get(i);
+				head.putInt(entry.id);
+				for (double b : entry.bounds)
+					head.putDouble(b);
+				head.putDouble(entry.mpp);
+				head.putInt(entry.priority);
+				head.putLong(offsets[i]);
+				head.putInt(titleLengths[i]);
+				head.putInt(dataLengths[i]);
+				head.putInt(entry.type);
+			}
+			for (int leaf : leaves)
+				head.putInt(leaf);
+			for (double[] level : levels)
+			{
+				head.putInt(level.length / 4);
+				for (double b : level)
+					head.putDouble(b);
+			}
+			head.flip();
+			long position = 0;
+			while (head.hasRemaining())
+				position += channel.write(head, position);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static Kryo createKryo()
+	{
+		Kryo kryo = new Kryo();
+		kryo.register(BaseMap.class);
+		kryo.register(OzfMap.class);
+		kryo.register(ForgeMap.class);
+		kryo.register(Grid.class);
+		kryo.register(MapPoint.class);
+		kryo.register(MapPoint[].class);
+		kryo.register(Projection.class);
+		kryo.register(Integer.class);
+		kryo.register(String.class);
+		kryo.register(double[].class);
+		kryo.register(ArrayList.class);
+		kryo.register(HashSet.class);
+		kryo.register(HashMap.class);
+		return kryo;
+	}
+
+	/**
+	 * Index record to be written. Map is either serialized or copied as is from another index file.
+	 */
+	static class Entry
+	{
+		final int id;
+		final double[] bounds;
+		final double mpp;
+		final int priority;
+		final String title;
+		final int type;
+		private final BaseMap map;
+		private final MapIndexFile source;
+		private final int record;
+
+		Entry(BaseMap map, double[] bounds)
+		{
+			this.id = map.id;
+			this.bounds = bounds;
+			this.mpp = map.getAbsoluteMPP();
+			this.priority = map.getPriority();
+			this.title = map.title;
+			int type = 0;
+			for (int i = 1; i < TYPES.length; i++)
+			{
+				if (TYPES[i].isInstance(map))
+					type = i;
+			}
+			this.type = type;
+			this.map = map;
+			this.source = null;
+			this.record = -1;
+		}
+
+		Entry(MapIndexFile source, int record)
+		{
+			this.id = source.getId(record);
+			this.bounds = source.getBounds(record);
+			this.mpp = source.getMPP(record);
+			this.priority = source.getPriority(record);
+			this.title = source.getTitle(record);
+			this.type = source.buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 64);
+			this.map = null;
+			this.source = source;
+			this.record = record;
+		}
+
+		private byte[] getData(Kryo kryo)
+		{
+			if (source != null)
+				return source.readData(record);
+			Output output = new Output(4096, -1);
+			kryo.writeClassAndObject(output, map);
+			output.close();
+			return output.toBytes();
+		}
+	}
+}
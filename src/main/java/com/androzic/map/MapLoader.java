@@ -20,34 +20,42 @@
 
 package com.androzic.map;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 
 import com.androzic.map.forge.ForgeMap;
 import com.androzic.map.ozf.Grid;
 import com.androzic.map.ozf.OzfMap;
-import com.androzic.util.CSV;
 import com.androzic.util.OziExplorerFiles;
 import com.jhlabs.Point2D;
 import com.jhlabs.map.Datum;
 import com.jhlabs.map.Ellipsoid;
 import com.jhlabs.map.GeodeticPosition;
 import com.jhlabs.map.proj.ConicProjection;
+import com.jhlabs.map.proj.Projection;
 import com.jhlabs.map.proj.ProjectionException;
 import com.jhlabs.map.proj.ProjectionFactory;
 import com.jhlabs.map.proj.UniversalTransverseMercatorProjection;
 
 public class MapLoader
 {
-	private static Hashtable<String,String> projections;
+	private static volatile Hashtable<String,String> projections;
+	/**
+	 * Parsed projections keyed by PROJ.4 specification, maps get their own clones and
+	 * templates are never modified. Both caches are limited by the number of known
+	 * projections and datums, they are cleared when map index is rebuilt.
+	 */
+	private static final ConcurrentHashMap<String,Projection> projectionTemplates = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String,Datum> datums = new ConcurrentHashMap<>();
 	private static Ellipsoid[] ellipsoids = new Ellipsoid[]
 	                                        {
 												Ellipsoid.AIRY,
@@ -100,116 +108,123 @@ public class MapLoader
 			return new ForgeMap(file.getCanonicalPath());
 		}
 
-	    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
+	    Reader reader = new InputStreamReader(new FileInputStream(file), charset);
+	    MapFileTokenizer tokenizer = new MapFileTokenizer(reader);
 	    
 	    OzfMap map = new OzfMap(file.getCanonicalPath());
 	    try
 	    {
-		    String[] fields;
-		    String line = reader.readLine();
-		    if (line == null || ! line.startsWith("OziExplorer Map Data File"))
+		    if (! tokenizer.nextLine() || ! tokenizer.lineStartsWith("OziExplorer Map Data File"))
 		    {
 		    	reader.close();
 				throw new IllegalArgumentException("Bad map header: " + map.path);
 		    }
-		    line = reader.readLine();
-		    map.title = line;
-		    line = reader.readLine();
-		    map.imagePath = line;
-		    reader.readLine(); // Map Code
-		    line = reader.readLine();
-		    fields = CSV.parseLine(line);
-		    map.datum = fields[0];
-		    line = reader.readLine();
-		    fields = CSV.parseLine(line);
-		    if (fields[0].equals("MSF"))
-		    	map.scaleFactor = 1 / Double.parseDouble(fields[1]);
-		    //noinspection UnusedAssignment
-		    line = reader.readLine(); // Reserved
-		    while ((line = reader.readLine()) != null)
+		    map.title = tokenizer.nextLine() ? tokenizer.line() : null;
+		    map.imagePath = tokenizer.nextLine() ? tokenizer.line() : null;
+		    tokenizer.nextLine(); // Map Code
+		    if (! tokenizer.next())
+		    {
+		    	reader.close();
+				throw new IllegalArgumentException("Bad map header: " + map.path);
+		    }
+		    map.datum = tokenizer.field(0);
+		    if (tokenizer.next() && tokenizer.fieldEquals(0, "MSF"))
+		    	map.scaleFactor = 1 / tokenizer.doubleField(1);
+		    tokenizer.nextLine(); // Reserved
+		    while (tokenizer.next())
 			{
-				fields = CSV.parseLine(line);
-				if (fields.length == 0)
+				int n = tokenizer.fieldCount();
+				if (n == 0)
 					continue;
-				
-				if (fields[0].startsWith("Point") && fields.length == 17)
-				{
-					MapPoint point = parsePoint(map, fields);
-					if (point != null)
-						map.addCalibrationPoint(point);
-				}
-				if ("LLGRID".equals(fields[0]) && fields.length == 14)
-				{
-					parseLLGrid(map, fields);
-				}
-				if ("GRGRID".equals(fields[0]) && fields.length == 15)
-				{
-					parseOtherGrid(map, fields);
-				}
-				if ("IWH".equals(fields[0]))
-				{
-					map.width = (int) (Integer.parseInt(fields[2]) * map.scaleFactor);
-					map.height = (int) (Integer.parseInt(fields[3]) * map.scaleFactor);
-				}
-				if ("MMPNUM".equals(fields[0]))
-				{
-					map.setCornersAmount(Integer.parseInt(fields[1]));
-				}
-				if ("MMPXY".equals(fields[0]))
-				{
-					try
-					{
-						int i = Integer.parseInt(fields[1]) - 1;
-						int x = (int) (Integer.parseInt(fields[2]) * map.scaleFactor);
-						int y = (int) (Integer.parseInt(fields[3]) * map.scaleFactor);
-						map.cornerMarkers[i].x = x;
-						map.cornerMarkers[i].y = y;
-					}
-					catch (Exception e)
-					{
-				    	reader.close();
-						e.printStackTrace();
-						throw new IllegalArgumentException("Bad XY corner marker: " + map.path);
-					}
-				}
-				if ("MMPLL".equals(fields[0]))
-				{
-					try
-					{
-						int i = Integer.parseInt(fields[1]) - 1;
-						double lon = Double.parseDouble(fields[2]);
-						double lat = Double.parseDouble(fields[3]);
-						map.cornerMarkers[i].lat = lat;
-						map.cornerMarkers[i].lon = lon;
-					}
-					catch (Exception e)
-					{
-				    	reader.close();
-						e.printStackTrace();
-						throw new IllegalArgumentException("Bad LL corner marker: " + map.path);
-					}
-				}
-				if ("MM1B".equals(fields[0]))
-				{
-					map.mpp = Double.parseDouble(fields[1]);
-				}
-				if ("Map Projection".equals(fields[0]))
-				{
-					map.prjName = fields[1];
-					String prj4spec = projections.get(map.prjName);
-					if (prj4spec == null)
-					{
-				    	reader.close();
-						throw new ProjectionException("Unimplemented projection: "+map.prjName);
-					}
-					map.projection = ProjectionFactory.fromPROJ4Specification(prj4spec.split(" "));
-				}
-				if ("Projection Setup".equals(fields[0]))
+
+				// Dispatch on the first keyword character to avoid comparing against every keyword
+				switch (tokenizer.firstChar(0))
 				{
-					parseProjectionParams(map, fields);
+					case 'P':
+						if (n == 17 && tokenizer.fieldStartsWith(0, "Point"))
+						{
+							MapPoint point = parsePoint(map, tokenizer);
+							if (point != null)
+								map.addCalibrationPoint(point);
+						}
+						else if (tokenizer.fieldEquals(0, "Projection Setup"))
+						{
+							parseProjectionParams(map, tokenizer);
+						}
+						break;
+					case 'L':
+						if (n == 14 && tokenizer.fieldEquals(0, "LLGRID"))
+							parseLLGrid(map, tokenizer.fields());
+						break;
+					case 'G':
+						if (n == 15 && tokenizer.fieldEquals(0, "GRGRID"))
+							parseOtherGrid(map, tokenizer.fields());
+						break;
+					case 'I':
+						if (tokenizer.fieldEquals(0, "IWH"))
+						{
+							map.width = (int) (tokenizer.intField(2) * map.scaleFactor);
+							map.height = (int) (tokenizer.intField(3) * map.scaleFactor);
+						}
+						break;
+					case 'M':
+						if (tokenizer.fieldEquals(0, "MMPNUM"))
+						{
+							map.setCornersAmount(tokenizer.intField(1));
+						}
+						else if (tokenizer.fieldEquals(0, "MMPXY"))
+						{
+							try
+							{
+								int i = tokenizer.intField(1) - 1;
+								int x = (int) (tokenizer.intField(2) * map.scaleFactor);
+								int y = (int) (tokenizer.intField(3) * map.scaleFactor);
+								map.cornerMarkers[i].x = x;
+								map.cornerMarkers[i].y = y;
+							}
+							catch (Exception e)
+							{
+						    	reader.close();
+								e.printStackTrace();
+								throw new IllegalArgumentException("Bad XY corner marker: " + map.path);
+							}
+						}
+						else if (tokenizer.fieldEquals(0, "MMPLL"))
+						{
+							try
+							{
+								int i = tokenizer.intField(1) - 1;
+								double lon = tokenizer.doubleField(2);
+								double lat = tokenizer.doubleField(3);
+								map.cornerMarkers[i].lat = lat;
+								map.cornerMarkers[i].lon = lon;
+							}
+							catch (Exception e)
+							{
+						    	reader.close();
+								e.printStackTrace();
+								throw new IllegalArgumentException("Bad LL corner marker: " + map.path);
+							}
+						}
+						else if (tokenizer.fieldEquals(0, "MM1B"))
+						{
+							map.mpp = tokenizer.doubleField(1);
+						}
+						else if (tokenizer.fieldEquals(0, "Map Projection"))
+						{
+							map.prjName = tokenizer.field(1);
+							String prj4spec = projections.get(map.prjName);
+							if (prj4spec == null)
+							{
+						    	reader.close();
+								throw new ProjectionException("Unimplemented projection: "+map.prjName);
+							}
+							map.projection = createProjection(prj4spec);
+						}
+						break;
 				}
 			}
-			Datum datum = Datum.get(map.datum);
+			Datum datum = getDatum(map.datum);
 			if (datum == null)
 			{
 		    	reader.close();
@@ -252,6 +267,44 @@ public class MapLoader
 		return map;
 	}
 
+	/**
+	 * Returns new projection instance for PROJ.4 specification. Specification is parsed
+	 * only once, subsequent requests get clones of parsed projection.
+	 */
+	private static Projection createProjection(String prj4spec)
+	{
+		Projection template = projectionTemplates.get(prj4spec);
+		if (template == null)
+		{
+			template = ProjectionFactory.fromPROJ4Specification(prj4spec.split(" "));
+			Projection existing = projectionTemplates.putIfAbsent(prj4spec, template);
+			if (existing != null)
+				template = existing;
+		}
+		return (Projection) template.clone();
+	}
+
+	/**
+	 * Releases cached projection templates and datums.
+	 */
+	public static void clearCaches()
+	{
+		projectionTemplates.clear();
+		datums.clear();
+	}
+
+	private static Datum getDatum(String name)
+	{
+		Datum datum = datums.get(name);
+		if (datum == null)
+		{
+			datum = Datum.get(name);
+			if (datum != null)
+				datums.putIfAbsent(name, datum);
+		}
+		return datum;
+	}
+
 	private static void fixCoords(OzfMap map, Datum datum)
 	{
 		Log.d("OZI", "map datum: " + datum);
@@ -390,11 +443,11 @@ public class MapLoader
 		}
 	}
 	
-	private static void parseProjectionParams(OzfMap map, String[] fields)
+	private static void parseProjectionParams(OzfMap map, MapFileTokenizer tokenizer)
 	{
 		try
 		{
-			double origin_latitude = Double.parseDouble(fields[1]);
+			double origin_latitude = tokenizer.doubleField(1);
 			map.projection.setProjectionLatitudeDegrees(origin_latitude);
 		}
 		catch (NumberFormatException e)
@@ -402,7 +455,7 @@ public class MapLoader
 		}
 		try
 		{
-			double central_meridian = Double.parseDouble(fields[2]);
+			double central_meridian = tokenizer.doubleField(2);
 			map.projection.setProjectionLongitudeDegrees(central_meridian);
 		}
 		catch (NumberFormatException e)
@@ -410,7 +463,7 @@ public class MapLoader
 		}
 		try
 		{
-			double scale_factor = Double.parseDouble(fields[3]);
+			double scale_factor = tokenizer.doubleField(3);
 			map.projection.setScaleFactor(scale_factor);
 		}
 		catch (NumberFormatException e)
@@ -418,7 +471,7 @@ public class MapLoader
 		}
 		try
 		{
-			double false_easting = Double.parseDouble(fields[4]);
+			double false_easting = tokenizer.doubleField(4);
 			map.projection.setFalseEasting(false_easting);
 		}
 		catch (NumberFormatException e)
@@ -426,7 +479,7 @@ public class MapLoader
 		}
 		try
 		{
-			double false_northing = Double.parseDouble(fields[5]);
+			double false_northing = tokenizer.doubleField(5);
 			map.projection.setFalseNorthing(false_northing);
 		}
 		catch (NumberFormatException e)
@@ -434,7 +487,7 @@ public class MapLoader
 		}
 		try
 		{
-			double latitude_1 = Double.parseDouble(fields[6]);
+			double latitude_1 = tokenizer.doubleField(6);
 	        if (map.projection instanceof ConicProjection)
 	        {
 	            ((ConicProjection) map.projection).setProjectionLatitude1Degrees(latitude_1);
@@ -445,7 +498,7 @@ public class MapLoader
 		}
 		try
 		{
-			double latitude_2 = Double.parseDouble(fields[7]);
+			double latitude_2 = tokenizer.doubleField(7);
 	        if (map.projection instanceof ConicProjection)
 	        {
 	            ((ConicProjection) map.projection).setProjectionLatitude2Degrees(latitude_2);
@@ -456,15 +509,15 @@ public class MapLoader
 		}
 	}
 
-	private static MapPoint parsePoint(OzfMap map, String[] fields)
+	private static MapPoint parsePoint(OzfMap map, MapFileTokenizer tokenizer)
 	{
 		MapPoint point = new MapPoint();
-		//int n = Integer.parseInt(fields[0].substring("Point".length()));
-		if ("ex".equals(fields[4]))
+		//int n = Integer.parseInt(tokenizer.field(0).substring("Point".length()));
+		if (tokenizer.fieldEquals(4, "ex"))
 			return null;
 		try
 		{
-			point.x = (int) (Integer.parseInt(fields[2]) * map.scaleFactor);
+			point.x = (int) (tokenizer.intField(2) * map.scaleFactor);
 		}
 		catch (NumberFormatException e)
 		{
@@ -472,7 +525,7 @@ public class MapLoader
 		}
 		try
 		{
-			point.y = (int) (Integer.parseInt(fields[3]) * map.scaleFactor);
+			point.y = (int) (tokenizer.intField(3) * map.scaleFactor);
 		}
 		catch (NumberFormatException e)
 		{
@@ -480,11 +533,10 @@ public class MapLoader
 		}
 		try
 		{
-			int dlat = Integer.parseInt(fields[6]);
-			double mlat = Double.parseDouble(fields[7]);
-			String hlat = fields[8];
+			int dlat = tokenizer.intField(6);
+			double mlat = tokenizer.doubleField(7);
 			point.lat = dms_to_deg(dlat, mlat, 0);
-			if ("S".equals(hlat))
+			if (tokenizer.fieldEquals(8, "S"))
 				point.lat = -point.lat;
 		}
 		catch (NumberFormatException e)
@@ -492,11 +544,10 @@ public class MapLoader
 		}
 		try
 		{
-			int dlon = Integer.parseInt(fields[9]);
-			double mlon = Double.parseDouble(fields[10]);
-			String hlon = fields[11];
+			int dlon = tokenizer.intField(9);
+			double mlon = tokenizer.doubleField(10);
 			point.lon = dms_to_deg(dlon, mlon, 0);
-			if ("W".equals(hlon))
+			if (tokenizer.fieldEquals(11, "W"))
 				point.lon = -point.lon;
 		}
 		catch (NumberFormatException e)
@@ -504,26 +555,26 @@ public class MapLoader
 		}
 		try
 		{
-			point.zone = Integer.parseInt(fields[13]);
+			point.zone = tokenizer.intField(13);
 		}
 		catch (NumberFormatException e)
 		{
 		}
 		try
 		{
-			point.e = Double.parseDouble(fields[14]);
+			point.e = tokenizer.doubleField(14);
 		}
 		catch (NumberFormatException e)
 		{
 		}
 		try
 		{
-			point.n = Double.parseDouble(fields[15]);
+			point.n = tokenizer.doubleField(15);
 		}
 		catch (NumberFormatException e)
 		{
 		}
-		point.hemisphere = "S".equals(fields[16]) ? 1 : 0;
+		point.hemisphere = tokenizer.fieldEquals(16, "S") ? 1 : 0;
 		return point;
 	}
 
@@ -719,9 +770,13 @@ public class MapLoader
 		return ellipsoids[index];
 	}
 
-    private static void initialize()
+    private static synchronized void initialize()
     {
-        projections = new Hashtable<String,String>();
+		// Maps are loaded concurrently so table should be published only when it is filled
+		if (projections != null)
+			return;
+
+        Hashtable<String,String> projections = new Hashtable<String,String>();
 
 		projections.put("Latitude/Longitude", "+proj=longlat");
         projections.put("Mercator", "+proj=merc");
@@ -762,5 +817,7 @@ public class MapLoader
 		projections.put("(VICMAP-TM) Victoria Aust.(pseudo AMG)", "+proj=tmerc +lat_0=145 +x_0=500000 +y_0=10000000");
 		projections.put("(VICGRID) Victoria Australia", "+proj=lcc +lat_1=-36 +lat_2=-38 +lat_0=-37 +lon_0=145 +x_0=2500000 +y_0=4500000");
 		projections.put("(VG94) VICGRID94 Victoria Australia", "+proj=lcc +lat_1=-36 +lat_2=-38 +lat_0=-37 +lon_0=145 +x_0=2500000 +y_0=2500000");
+
+		MapLoader.projections = projections;
     }
 }
@@ -0,0 +1,230 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+
+/**
+ * Packed R-tree of map bounding boxes. Tree is bulk loaded with Sort-Tile-Recursive
+ * algorithm and is lazily rebuilt on first search after entries were modified.
+ */
+class MapRTree implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	static final int NODE_SIZE = 16;
+
+	/**
+	 * Map id to bounds: {minLat, minLon, maxLat, maxLon}
+	 */
+	private HashMap<Integer, double[]> entries;
+
+	private transient boolean built;
+	private transient int[] ids;
+	private transient double[][] levels;
+
+	@SuppressLint("UseSparseArrays")
+	MapRTree()
+	{
+		entries = new HashMap<>();
+	}
+
+	synchronized void insert(int id, double minLat, double minLon, double maxLat, double maxLon)
+	{
+		entries.put(id, new double[] {minLat, minLon, maxLat, maxLon});
+		built = false;
+	}
+
+	synchronized void remove(int id)
+	{
+		if (entries.remove(id) != null)
+			built = false;
+	}
+
+	synchronized void clear()
+	{
+		entries.clear();
+		ids = null;
+		levels = null;
+		built = false;
+	}
+
+	synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Returns bounds of specified entry or null if entry is not present.
+	 */
+	synchronized double[] get(int id)
+	{
+		double[] bounds = entries.get(id);
+		return bounds != null ? bounds.clone() : null;
+	}
+
+	/**
+	 * Returns entry ids in the order of tree leaves.
+	 */
+	synchronized int[] ids()
+	{
+		if (!built)
+			build();
+		return ids;
+	}
+
+	/**
+	 * Returns packed node bounds of all tree levels, leaves first. Children of node
+	 * i are nodes i * NODE_SIZE ... i * NODE_SIZE + NODE_SIZE - 1 of the level below.
+	 */
+	synchronized double[][] levels()
+	{
+		if (!built)
+			build();
+		return levels;
+	}
+
+	/**
+	 * Adds ids of all entries which bounds intersect specified area to result.
+	 */
+	synchronized void search(double minLat, double minLon, double maxLat, double maxLon, List<Integer> result)
+	{
+		if (!built)
+			build();
+		if (ids.length == 0)
+			return;
+		int top = levels.length - 1;
+		search(top, 0, levels[top].length / 4, minLat, minLon, maxLat, maxLon, result);
+	}
+
+	private void search(int level, int from, int to, double minLat, double minLon, double maxLat, double maxLon, List<Integer> result)
+	{
+		double[] bounds = levels[level];
+		for (int i = from; i < to; i++)
+		{
+			int j = i * 4;
+			if (bounds[j] > maxLat || bounds[j + 2] < minLat || bounds[j + 1] > maxLon || bounds[j + 3] < minLon)
+				continue;
+			if (level == 0)
+			{
+				result.add(ids[i]);
+			}
+			else
+			{
+				int child = i * NODE_SIZE;
+				search(level - 1, child, Math.min(child + NODE_SIZE, levels[level - 1].length / 4), minLat, minLon, maxLat, maxLon, result);
+			}
+		}
+	}
+
+	private void build()
+	{
+		int n = entries.size();
+		final int[] keys = new int[n];
+		final double[][] boxes = new double[n][];
+		int k = 0;
+		for (Map.Entry<Integer, double[]> entry : entries.entrySet())
+		{
+			keys[k] = entry.getKey();
+			boxes[k] = entry.getValue();
+			k++;
+		}
+
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+
+		// Sort by longitude, cut into vertical slices and sort each slice by latitude
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				double[] b1 = boxes[o1];
+				double[] b2 = boxes[o2];
+				return Double.compare(b1[1] + b1[3], b2[1] + b2[3]);
+			}
+		});
+		int leafCount = (n + NODE_SIZE - 1) / NODE_SIZE;
+		int sliceSize = (int) Math.ceil(Math.sqrt(leafCount)) * NODE_SIZE;
+		Comparator<Integer> latComparator = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				double[] b1 = boxes[o1];
+				double[] b2 = boxes[o2];
+				return Double.compare(b1[0] + b1[2], b2[0] + b2[2]);
+			}
+		};
+		for (int s = 0; s < n; s += sliceSize)
+			Arrays.sort(order, s, Math.min(s + sliceSize, n), latComparator);
+
+		ids = new int[n];
+		double[] leaves = new double[n * 4];
+		for (int i = 0; i < n; i++)
+		{
+			ids[i] = keys[order[i]];
+			System.arraycopy(boxes[order[i]], 0, leaves, i * 4, 4);
+		}
+
+		int height = 1;
+		for (int count = n; count > 1; count = (count + NODE_SIZE - 1) / NODE_SIZE)
+			height++;
+		levels = new double[height][];
+		levels[0] = leaves;
+
+		int count = n;
+		for (int level = 1; level < height; level++)
+		{
+			double[] children = levels[level - 1];
+			int parents = (count + NODE_SIZE - 1) / NODE_SIZE;
+			double[] nodes = new double[parents * 4];
+			for (int p = 0; p < parents; p++)
+			{
+				int first = p * NODE_SIZE;
+				int last = Math.min(first + NODE_SIZE, count);
+				double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+				double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+				for (int c = first; c < last; c++)
+				{
+					int j = c * 4;
+					minLat = Math.min(minLat, children[j]);
+					minLon = Math.min(minLon, children[j + 1]);
+					maxLat = Math.max(maxLat, children[j + 2]);
+					maxLon = Math.max(maxLon, children[j + 3]);
+				}
+				nodes[p * 4] = minLat;
+				nodes[p * 4 + 1] = minLon;
+				nodes[p * 4 + 2] = maxLat;
+				nodes[p * 4 + 3] = maxLon;
+			}
+			levels[level] = nodes;
+			count = parents;
+		}
+		built = true;
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.util.Log;
+
+import com.androzic.map.ozf.OzfMap;
+import com.androzic.ui.Viewport;
+
+/**
+ * Overview images of maps used to preview maps in lists. Thumbnails are rendered in
+ * background from separately loaded copy of the map scaled to thumbnail size, so that
+ * the coarsest scale level is used and maps used by application are not touched. They
+ * are kept in single packed file accessed through memory mapped buffer. Lists only
+ * decode stored images and never touch map decoder. Each map is checked once until
+ * thumbnails are invalidated. Rendered thumbnails are appended to the file in batches,
+ * later record of the same map supersedes earlier one. File is compacted when most of
+ * it is taken by superseded records.
+ *
+ * <pre>
+ * header:  magic, version
+ * records: map file modification time, data length, path length, path, PNG compressed thumbnail
+ * </pre>
+ */
+public class MapThumbnails
+{
+	private static final String TAG = "MapThumbnails";
+
+	private static final int MAGIC = 0x414D5448; // AMTH
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 16;
+	/**
+	 * Number of rendered thumbnails stored at once
+	 */
+	private static final int BATCH_SIZE = 16;
+	/**
+	 * Size of the longer thumbnail side in pixels
+	 */
+	public static final int THUMBNAIL_SIZE = 96;
+	/**
+	 * Number of decoded thumbnails kept in memory
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	private final File file;
+	private ByteBuffer buffer;
+	private final HashMap<String, Record> records = new HashMap<>();
+	// size of superseded records
+	private long stale;
+	// file has broken tail and can not be appended
+	private boolean broken;
+	private final LinkedHashMap<String, Bitmap> bitmaps;
+	// maps that were checked or rendered, they are not checked again until invalidation
+	private final HashSet<String> checked = new HashSet<>();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	public interface OnThumbnailsUpdateListener
+	{
+		void onThumbnailsUpdated();
+	}
+
+	public MapThumbnails(File file)
+	{
+		this.file = file;
+		bitmaps = new LinkedHashMap<String, Bitmap>(CACHE_SIZE + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+		try
+		{
+			open();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			records.clear();
+			buffer = null;
+		}
+	}
+
+	private void open() throws IOException
+	{
+		records.clear();
+		buffer = null;
+		stale = 0;
+		broken = false;
+		if (!file.exists())
+			return;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported thumbnail file format");
+
+		int limit = buffer.limit();
+		int offset = HEADER_SIZE;
+		while (offset < limit)
+		{
+			// Interrupted append leaves incomplete record
+			if (offset + RECORD_HEADER_SIZE > limit)
+			{
+				broken = true;
+				break;
+			}
+			Record record = new Record();
+			record.modified = buffer.getLong(offset);
+			record.length = buffer.getInt(offset + 8);
+			int length = buffer.getInt(offset + 12);
+			int size = RECORD_HEADER_SIZE + length * 2 + record.length;
+			if (length < 0 || record.length < 0 || offset + size > limit)
+			{
+				broken = true;
+				break;
+			}
+			offset += RECORD_HEADER_SIZE;
+			char[] path = new char[length];
+			for (int j = 0; j < length; j++)
+				path[j] = buffer.getChar(offset + j * 2);
+			offset += length * 2;
+			record.offset = offset;
+			offset += record.length;
+			Record old = records.put(new String(path), record);
+			if (old != null)
+				stale += RECORD_HEADER_SIZE + length * 2 + old.length;
+		}
+	}
+
+	/**
+	 * Returns stored thumbnail of the map or null if it is not rendered yet.
+	 */
+	public synchronized Bitmap getThumbnail(BaseMap map)
+	{
+		if (map.path == null)
+			return null;
+		Bitmap bitmap = bitmaps.get(map.path);
+		if (bitmap != null)
+			return bitmap;
+		Record record = records.get(map.path);
+		if (record == null)
+			return null;
+		bitmap = BitmapFactory.decodeByteArray(getData(record), 0, record.length);
+		if (bitmap != null)
+			bitmaps.put(map.path, bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Renders in background thumbnails of the map files that are missing or outdated. Maps that
+	 * were already checked are skipped. Listener is called from background thread each
+	 * time a batch of thumbnails is stored.
+	 */
+	public void generate(Collection<String> maps, final String charset, final OnThumbnailsUpdateListener listener)
+	{
+		final List<String> paths = new ArrayList<>();
+		synchronized (this)
+		{
+			for (String path : maps)
+			{
+				if (checked.add(path))
+					paths.add(path);
+			}
+		}
+		if (paths.isEmpty())
+			return;
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				update(paths, charset, listener);
+			}
+		});
+	}
+
+	/**
+	 * Makes all maps to be checked again, should be called when map index is updated.
+	 */
+	public synchronized void invalidate()
+	{
+		checked.clear();
+	}
+
+	private void update(List<String> paths, String charset, OnThumbnailsUpdateListener listener)
+	{
+		Map<String, Thumbnail> rendered = new HashMap<>();
+		for (String path : paths)
+		{
+			long modified = new File(path).lastModified();
+			synchronized (this)
+			{
+				Record record = records.get(path);
+				if (record != null && record.modified == modified)
+					continue;
+			}
+			byte[] data = render(path, charset);
+			if (data != null)
+				rendered.put(path, new Thumbnail(modified, data));
+			if (rendered.size() >= BATCH_SIZE)
+			{
+				store(rendered, listener);
+				rendered.clear();
+			}
+		}
+		if (!rendered.isEmpty())
+			store(rendered, listener);
+	}
+
+	private void store(Map<String, Thumbnail> rendered, OnThumbnailsUpdateListener listener)
+	{
+		try
+		{
+			append(rendered);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		if (listener != null)
+			listener.onThumbnailsUpdated();
+	}
+
+	/**
+	 * Renders thumbnail of the map file. Map is loaded anew so that its decoder is not
+	 * shared with the map used by application.
+	 */
+	private byte[] render(String path, String charset)
+	{
+		BaseMap map;
+		try
+		{
+			map = MapLoader.load(new File(path), charset);
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Failed to load map " + path + ": " + e.getMessage());
+			return null;
+		}
+		if (!(map instanceof OzfMap) || map.loadError != null)
+			return null;
+
+		map.initialize();
+		if (map.loadError != null)
+			return null;
+
+		OzfMap ozfMap = (OzfMap) map;
+		Bitmap bitmap = null;
+		try
+		{
+			double scale = THUMBNAIL_SIZE * 1. / Math.max(ozfMap.width, ozfMap.height);
+			if (!(scale > 0))
+				return null;
+			int width = Math.max(1, (int) Math.round(ozfMap.width * scale));
+			int height = Math.max(1, (int) Math.round(ozfMap.height * scale));
+
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			map.activate(new OnMapTileStateChangeListener() {
+				@Override
+				public void onTileObtained()
+				{
+				}
+			}, width, height, map.getAbsoluteMPP() / scale, false);
+
+			Canvas canvas = new Canvas(bitmap);
+			canvas.drawRGB(0xFF, 0xFF, 0xFF);
+			Viewport viewport = new Viewport();
+			viewport.width = width;
+			viewport.height = height;
+			map.getMapCenter(viewport.mapCenter);
+			map.drawMap(viewport, false, false, canvas);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			return out.toByteArray();
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			if (map.activated())
+				map.deactivate();
+			map.destroy();
+			if (bitmap != null)
+				bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Appends rendered thumbnails to the file, file is compacted instead if it is broken
+	 * or mostly stale.
+	 */
+	private synchronized void append(Map<String, Thumbnail> rendered) throws IOException
+	{
+		if (buffer == null || broken || stale * 2 > buffer.limit())
+		{
+			compact(rendered);
+		}
+		else
+		{
+			// Mapped buffer still covers the old part of the file
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			try
+			{
+				for (Map.Entry<String, Thumbnail> entry : rendered.entrySet())
+					write(out, entry.getKey(), entry.getValue());
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		for (String path : rendered.keySet())
+			bitmaps.remove(path);
+		open();
+	}
+
+	/**
+	 * Writes stored thumbnails of existing maps along with rendered ones to new file
+	 * and replaces old file with it.
+	 */
+	private void compact(Map<String, Thumbnail> rendered) throws IOException
+	{
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<String, Record> entry : records.entrySet())
+			{
+				Record record = entry.getValue();
+				if (!rendered.containsKey(entry.getKey()) && new File(entry.getKey()).exists())
+					write(out, entry.getKey(), new Thumbnail(record.modified, getData(record)));
+			}
+			for (Map.Entry<String, Thumbnail> entry : rendered.entrySet())
+				write(out, entry.getKey(), entry.getValue());
+		}
+		finally
+		{
+			out.close();
+		}
+		// File can be mapped so it is replaced, not overwritten
+		if (!tmp.renameTo(file))
+			throw new IOException("Failed to replace thumbnail file: " + file.getAbsolutePath());
+	}
+
+	private static void write(DataOutputStream out, String path, Thumbnail thumbnail) throws IOException
+	{
+		out.writeLong(thumbnail.modified);
+		out.writeInt(thumbnail.data.length);
+		out.writeInt(path.length());
+		out.writeChars(path);
+		out.write(thumbnail.data);
+	}
+
+	private byte[] getData(Record record)
+	{
+		byte[] data = new byte[record.length];
+		ByteBuffer b = buffer.duplicate();
+		b.position(record.offset);
+		b.get(data);
+		return data;
+	}
+
+	private static class Record
+	{
+		long modified;
+		int offset;
+		int length;
+	}
+
+	private static class Thumbnail
+	{
+		final long modified;
+		final byte[] data;
+
+		Thumbnail(long modified, byte[] data)
+		{
+			this.modified = modified;
+			this.data = data;
+		}
+	}
+}
@@ -20,44 +20,55 @@
 
 package com.androzic.map;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.androzic.map.sas.SASMap;
 
 public class SASMapLoader
 {
-	public static SASMap load(File file) throws IOException
+	private static final String LAYOUT_EXT = ".layout";
+	private static final int MAGIC = 0x41534153; // ASAS
+	private static final int VERSION = 3;
+	private static final int MAX_LISTING_THREADS = 4;
+
+	/**
+	 * Loads SAS.Planet cache directory as map. Calculated cache layout is kept in
+	 * <code>layoutDir</code> (application cache) keyed by cache path, it is not stored
+	 * if <code>layoutDir</code> is null.
+	 */
+	public static SASMap load(File file, File layoutDir) throws IOException
 	{
 		String name = file.getName();
-		String ext;
-		boolean ellipsoid = false;
-		String[] zooms = file.list();
-		if (zooms == null)
-			throw new IOException("Invalid SAS cache dir: " + name);
-		int minZoom = Integer.MAX_VALUE;
-		int maxZoom = Integer.MIN_VALUE;
-		for (String zoom: zooms)
+		String path = file.getAbsolutePath();
+		File layoutFile = layoutDir != null ? new File(layoutDir, Integer.toHexString(path.hashCode()) + LAYOUT_EXT) : null;
+		Layout layout = layoutFile != null ? readLayout(file, layoutFile) : null;
+		if (layout == null)
 		{
-			if ("ellipsoid".equals(zoom))
-				ellipsoid = true;
-			if (! zoom.startsWith("z"))
-				continue;
-			int z = Integer.parseInt(zoom.substring(1));
-			if (z < minZoom)
-				minZoom = z;
-			if (z > maxZoom)
-				maxZoom = z;
+			layout = calculateLayout(file);
+			if (layout != null && layoutFile != null)
+				writeLayout(file, layoutFile, layout);
 		}
 		
-		int[] corners = new int[4];
-		ext = calculateCorners(file, maxZoom, corners);
-		
-		if (maxZoom > 0 && ext != null)
+		if (layout != null)
 		{
-			
-			SASMap map = new SASMap(name, file.getAbsolutePath(), ext, minZoom - 1, maxZoom - 1);
-			map.ellipsoid = ellipsoid;
+			int[] corners = layout.corners;
+			SASMap map = new SASMap(name, file.getAbsolutePath(), layout.ext, layout.minZoom - 1, layout.maxZoom - 1);
+			map.ellipsoid = layout.ellipsoid;
 			
 			map.setCornersAmount(4);
 			map.cornerMarkers[0].x = corners[0] * SASMap.TILE_SIZE;
@@ -84,19 +95,175 @@ public class SASMapLoader
 		}
 	}
 
+	private static Layout calculateLayout(File file) throws IOException
+	{
+		String[] zooms = file.list();
+		if (zooms == null)
+			throw new IOException("Invalid SAS cache dir: " + file.getName());
+		Layout layout = new Layout();
+		layout.minZoom = Integer.MAX_VALUE;
+		layout.maxZoom = Integer.MIN_VALUE;
+		for (String zoom: zooms)
+		{
+			if ("ellipsoid".equals(zoom))
+				layout.ellipsoid = true;
+			if (! zoom.startsWith("z"))
+				continue;
+			int z = Integer.parseInt(zoom.substring(1));
+			if (z < layout.minZoom)
+				layout.minZoom = z;
+			if (z > layout.maxZoom)
+				layout.maxZoom = z;
+		}
+		if (layout.maxZoom <= 0)
+			return null;
+
+		layout.ext = calculateCorners(file, layout.maxZoom, layout.corners);
+		if (layout.ext == null)
+			return null;
+		layout.signature = getSignature(file, layout.maxZoom);
+		return layout;
+	}
+
+	/**
+	 * Returns stored layout if cache directories have not changed since it was calculated.
+	 */
+	private static Layout readLayout(File file, File layoutFile)
+	{
+		if (! layoutFile.exists())
+			return null;
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(layoutFile)));
+			try
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				// Different caches can have the same path hash
+				if (! file.getAbsolutePath().equals(in.readUTF()))
+					return null;
+				Layout layout = new Layout();
+				layout.signature = in.readLong();
+				layout.minZoom = in.readInt();
+				layout.maxZoom = in.readInt();
+				layout.ellipsoid = in.readBoolean();
+				layout.ext = in.readUTF();
+				for (int i = 0; i < 4; i++)
+					layout.corners[i] = in.readInt();
+				if (layout.signature != getSignature(file, layout.maxZoom))
+					return null;
+				return layout;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void writeLayout(File file, File layoutFile, Layout layout)
+	{
+		File dir = layoutFile.getParentFile();
+		if (! dir.exists() && ! dir.mkdirs())
+			return;
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(layoutFile)));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(file.getAbsolutePath());
+				out.writeLong(layout.signature);
+				out.writeInt(layout.minZoom);
+				out.writeInt(layout.maxZoom);
+				out.writeBoolean(layout.ellipsoid);
+				out.writeUTF(layout.ext);
+				for (int i = 0; i < 4; i++)
+					out.writeInt(layout.corners[i]);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		// Layout will be calculated every time then
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Combines names and modification times of zoom level directories and of column
+	 * group (x1024) directories of the maximum zoom. New zoom levels and new columns
+	 * change it, tiles added to existing columns are noticed only by manual re-scan
+	 * which clears stored layouts.
+	 */
+	private static long getSignature(File file, int maxZoom)
+	{
+		long signature = 17;
+		String[] zooms = file.list();
+		if (zooms == null)
+			return 0;
+		Arrays.sort(zooms);
+		for (String zoom: zooms)
+		{
+			if (! zoom.startsWith("z") && ! "ellipsoid".equals(zoom))
+				continue;
+			signature = 31 * signature + zoom.hashCode();
+			signature = 31 * signature + new File(file, zoom).lastModified();
+		}
+		File root = new File(file, "z" + maxZoom);
+		String[] x1024 = root.list();
+		if (x1024 == null)
+			return signature;
+		Arrays.sort(x1024);
+		for (String x1024name: x1024)
+		{
+			signature = 31 * signature + x1024name.hashCode();
+			signature = 31 * signature + new File(root, x1024name).lastModified();
+		}
+		return signature;
+	}
+
+	/**
+	 * Removes all stored layouts so that they are calculated again.
+	 */
+	public static void clearLayouts(File layoutDir)
+	{
+		File[] files = layoutDir.listFiles();
+		if (files == null)
+			return;
+		for (File file: files)
+		{
+			if (file.getName().endsWith(LAYOUT_EXT))
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+		}
+	}
+
+	/**
+	 * Calculates tile bounds of the zoom level. Columns are taken from directory names,
+	 * rows are searched only in the lowest and highest row groups (y1024 directories).
+	 * Directories are listed in parallel.
+	 */
 	private static String calculateCorners(File file, int zoom, int[] corners)
 	{
 		int minX = Integer.MAX_VALUE;
-		int minY = Integer.MAX_VALUE;
 		int maxX = Integer.MIN_VALUE;
-		int maxY = Integer.MIN_VALUE;
-		String ext = null;
 
 		File root = new File(file, "z" + zoom);
 		File[] x1024 = root.listFiles();
 		if (x1024 == null)
 			return null;
 
+		List<File> columns = new ArrayList<>();
 		for (File x1024file: x1024)
 		{
 			File[] xs = x1024file.listFiles();
@@ -116,42 +283,160 @@ public class SASMapLoader
 				{
 					e.printStackTrace();
 				}
-				
-				File[] y1024 = xfile.listFiles();
+				columns.add(xfile);
+			}
+		}
+
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LISTING_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<File[]>> listings = new ArrayList<>(columns.size());
+			for (final File xfile: columns)
+			{
+				listings.add(executor.submit(new Callable<File[]>() {
+					@Override
+					public File[] call()
+					{
+						return xfile.listFiles();
+					}
+				}));
+			}
+
+			List<File> groups = new ArrayList<>();
+			int minGroup = Integer.MAX_VALUE;
+			int maxGroup = Integer.MIN_VALUE;
+			for (Future<File[]> listing: listings)
+			{
+				File[] y1024 = listing.get();
 				if (y1024 == null)
 					continue;
 				for (File y1024file: y1024)
 				{
-					String[] ys = y1024file.list();
-					if (ys == null)
-						continue;
-					for (String yf: ys)
-					{
-						int dot = yf.lastIndexOf(".");
-						try
-						{
-							int y = Integer.parseInt(yf.substring(1, dot));
-							if (y < minY)
-								minY = y;
-							if (y > maxY)
-								maxY = y;
-							if (ext == null)
-								ext = yf.substring(dot);
-						}
-						catch (NumberFormatException e)
-						{
-							e.printStackTrace();
-						}
-					}
+					groups.add(y1024file);
+					int group = parseGroup(y1024file);
+					if (group < minGroup)
+						minGroup = group;
+					if (group > maxGroup && group != Integer.MAX_VALUE)
+						maxGroup = group;
 				}
 			}
+
+			// Directories with unexpected names are always listed
+			List<File> lowest = new ArrayList<>();
+			List<File> highest = new ArrayList<>();
+			for (File y1024file: groups)
+			{
+				int group = parseGroup(y1024file);
+				if (group == minGroup || group == Integer.MAX_VALUE)
+					lowest.add(y1024file);
+				if (group == maxGroup || group == Integer.MAX_VALUE)
+					highest.add(y1024file);
+			}
+
+			Rows low = listRows(executor, lowest);
+			Rows high = lowest.equals(highest) ? low : listRows(executor, highest);
+			// Boundary groups do not contain tiles, look through all groups
+			if (low.ext == null || high.ext == null)
+			{
+				low = listRows(executor, groups);
+				high = low;
+			}
+
+			corners[0] = minX;
+			corners[1] = low.minY;
+			corners[2] = maxX;
+			corners[3] = high.maxY;
+
+			return low.ext != null ? low.ext : high.ext;
 		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			e.getCause().printStackTrace();
+			return null;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
 
-		corners[0] = minX;
-		corners[1] = minY;
-		corners[2] = maxX;
-		corners[3] = maxY;
+	/**
+	 * Returns row group number or Integer.MAX_VALUE if directory name is not a number.
+	 */
+	private static int parseGroup(File y1024file)
+	{
+		try
+		{
+			return Integer.parseInt(y1024file.getName());
+		}
+		catch (NumberFormatException e)
+		{
+			return Integer.MAX_VALUE;
+		}
+	}
 
-		return ext;
+	private static Rows listRows(ExecutorService executor, List<File> groups) throws InterruptedException, ExecutionException
+	{
+		List<Future<String[]>> listings = new ArrayList<>(groups.size());
+		for (final File y1024file: groups)
+		{
+			listings.add(executor.submit(new Callable<String[]>() {
+				@Override
+				public String[] call()
+				{
+					return y1024file.list();
+				}
+			}));
+		}
+
+		Rows rows = new Rows();
+		for (Future<String[]> listing: listings)
+		{
+			String[] ys = listing.get();
+			if (ys == null)
+				continue;
+			for (String yf: ys)
+			{
+				int dot = yf.lastIndexOf(".");
+				try
+				{
+					int y = Integer.parseInt(yf.substring(1, dot));
+					if (y < rows.minY)
+						rows.minY = y;
+					if (y > rows.maxY)
+						rows.maxY = y;
+					if (rows.ext == null)
+						rows.ext = yf.substring(dot);
+				}
+				catch (NumberFormatException | StringIndexOutOfBoundsException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static class Layout
+	{
+		long signature;
+		int minZoom;
+		int maxZoom;
+		boolean ellipsoid;
+		String ext;
+		int[] corners = new int[4];
+	}
+
+	private static class Rows
+	{
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		String ext;
 	}
 }
@@ -0,0 +1,212 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Orders pending tile tasks by importance. Tiles are ranked by distance from focus point,
+ * which is the point user looks at (map center shifted by look ahead), tiles in direction
+ * of movement are preferred and tiles of other zoom levels are postponed. Tasks are kept
+ * in list sorted by rank, they are re-ranked only when focus changes. Tasks are kept in
+ * order of addition until focus is set. Scheduler is not thread safe, it is guarded by
+ * its owner.
+ */
+public class TileScheduler<T>
+{
+	private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+	private static final int TILE_SIZE = 256;
+	/**
+	 * Rank penalty of each zoom level difference, in tiles
+	 */
+	private static final double ZOOM_PENALTY = 4;
+	/**
+	 * Part of distance along movement direction which is subtracted from rank
+	 */
+	private static final double AHEAD_WEIGHT = 0.5;
+	/**
+	 * Tasks farther from new focus, in tiles of focus zoom, are returned as stale
+	 */
+	private static final double STALE_DISTANCE = 16;
+	private static final int STALE_ZOOM_DIFFERENCE = 2;
+
+	private final ArrayList<Entry<T>> entries = new ArrayList<>();
+	private boolean focused;
+	// Focus in normalized mercator coordinates (0..1)
+	private double focusX;
+	private double focusY;
+	private double focusZoom;
+	private double directionX;
+	private double directionY;
+
+	/**
+	 * Returns zoom level of square mercator tiles corresponding to map resolution.
+	 */
+	public static double getZoom(double latitude, double mpp)
+	{
+		return Math.log(EARTH_CIRCUMFERENCE * Math.cos(Math.toRadians(latitude)) / (TILE_SIZE * mpp)) / Math.log(2);
+	}
+
+	/**
+	 * Sets new focus and re-ranks tasks. Stale tasks, which are far from focus or belong to
+	 * distant zoom level, are removed from scheduler and returned.
+	 *
+	 * @param zoom focus zoom level, NaN if unknown
+	 * @param bearing direction of movement in degrees, NaN if not moving
+	 */
+	public List<T> setFocus(double latitude, double longitude, double zoom, double bearing)
+	{
+		focused = true;
+		focusX = (longitude + 180) / 360;
+		double sin = Math.sin(Math.toRadians(latitude));
+		focusY = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+		focusZoom = zoom;
+		if (Double.isNaN(bearing))
+		{
+			directionX = 0;
+			directionY = 0;
+		}
+		else
+		{
+			// North is up in tile coordinates
+			directionX = Math.sin(Math.toRadians(bearing));
+			directionY = -Math.cos(Math.toRadians(bearing));
+		}
+
+		List<T> stale = new ArrayList<>();
+		ArrayList<Entry<T>> ranked = new ArrayList<>(entries.size());
+		for (Entry<T> entry : entries)
+		{
+			if (rank(entry))
+				ranked.add(entry);
+			else
+				stale.add(entry.task);
+		}
+		Collections.sort(ranked);
+		entries.clear();
+		entries.addAll(ranked);
+		return stale;
+	}
+
+	/**
+	 * Adds task for tile in OSM tile coordinates.
+	 */
+	public void add(T task, int z, int x, int y)
+	{
+		Entry<T> entry = new Entry<>(task, z, x, y);
+		rank(entry);
+		// Insert after tasks of the same rank to keep addition order
+		int low = 0;
+		int high = entries.size();
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (entries.get(mid).rank <= entry.rank)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		entries.add(low, entry);
+	}
+
+	/**
+	 * Returns task in rank order, zero index is the most important task.
+	 */
+	public T get(int index)
+	{
+		return entries.get(index).task;
+	}
+
+	public T remove(int index)
+	{
+		return entries.remove(index).task;
+	}
+
+	public boolean remove(T task)
+	{
+		for (int i = 0; i < entries.size(); i++)
+		{
+			if (entries.get(i).task == task)
+			{
+				entries.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Calculates rank of the entry and returns false if entry is stale.
+	 */
+	private boolean rank(Entry<T> entry)
+	{
+		if (! focused)
+		{
+			entry.rank = 0;
+			return true;
+		}
+		int z = entry.z;
+		double zoom = Double.isNaN(focusZoom) ? z : focusZoom;
+		double scale = Math.pow(2, zoom);
+		double dx = ((entry.x + 0.5) / (1 << z) - focusX) * scale;
+		double dy = ((entry.y + 0.5) / (1 << z) - focusY) * scale;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		double ahead = dx * directionX + dy * directionY;
+		double zoomDifference = Math.abs(z - Math.round(zoom));
+		entry.rank = distance - AHEAD_WEIGHT * ahead + ZOOM_PENALTY * zoomDifference;
+		return distance <= STALE_DISTANCE && zoomDifference <= STALE_ZOOM_DIFFERENCE;
+	}
+
+	private static class Entry<T> implements Comparable<Entry<T>>
+	{
+		final T task;
+		final int z;
+		final int x;
+		final int y;
+		double rank;
+
+		Entry(T task, int z, int x, int y)
+		{
+			this.task = task;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public int compareTo(Entry<T> another)
+		{
+			return Double.compare(rank, another.rank);
+		}
+	}
+}
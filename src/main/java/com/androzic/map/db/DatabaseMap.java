@@ -0,0 +1,150 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.db;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.androzic.map.TileMap;
+
+/**
+ * Tile map backed by MBTiles or SAS.Planet (RMaps) SQLite database.
+ */
+public class DatabaseMap extends TileMap
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final String[] EXTENSIONS = {".mbtiles", ".sqlitedb"};
+
+	private transient TileDatabase database;
+
+	public DatabaseMap(String path)
+	{
+		super(path);
+	}
+
+	public static boolean isDatabase(File file)
+	{
+		String name = file.getName().toLowerCase();
+		for (String extension : EXTENSIONS)
+		{
+			if (name.endsWith(extension))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void initialize()
+	{
+		File file = new File(path);
+		try
+		{
+			database = TileDatabase.open(file);
+		}
+		catch (IOException e)
+		{
+			loadError = e;
+			return;
+		}
+
+		name = file.getName();
+		int e = name.lastIndexOf(".");
+		if (e > 0)
+			name = name.substring(0, e);
+
+		initializeZooms((byte) database.minZoom, (byte) database.maxZoom, (byte) database.maxZoom);
+
+		int z = database.maxZoom;
+		int[] corners = database.corners;
+		double north = TileDatabase.getLatitude(corners[1], z);
+		double south = TileDatabase.getLatitude(corners[3] + 1, z);
+		double west = TileDatabase.getLongitude(corners[0], z);
+		double east = TileDatabase.getLongitude(corners[2] + 1, z);
+
+		setCornersAmount(4);
+		cornerMarkers[0].lat = north;
+		cornerMarkers[0].lon = west;
+		cornerMarkers[1].lat = north;
+		cornerMarkers[1].lon = east;
+		cornerMarkers[2].lat = south;
+		cornerMarkers[2].lon = east;
+		cornerMarkers[3].lat = south;
+		cornerMarkers[3].lon = west;
+		int[] xy = new int[2];
+		for (int i = 0; i < 4; i++)
+		{
+			getXYByLatLon(cornerMarkers[i].lat, cornerMarkers[i].lon, xy);
+			cornerMarkers[i].x = xy[0];
+			cornerMarkers[i].y = xy[1];
+		}
+
+		updateTitle();
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (database != null)
+		{
+			database.close();
+			database = null;
+		}
+	}
+
+	@Override
+	public int getPriority()
+	{
+		return 2;
+	}
+
+	@Override
+	protected Bitmap getTile(int x, int y) throws OutOfMemoryError
+	{
+		TileDatabase db = database;
+		if (db == null)
+			return null;
+
+		byte[] data;
+		try
+		{
+			data = db.getTile(srcZoom, x, y);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		if (data == null)
+			return null;
+
+		Bitmap tile = BitmapFactory.decodeByteArray(data, 0, data.length);
+		if (tile != null && dynZoom != 1.0)
+		{
+			int ss = (int) (dynZoom * tileSize);
+			tile = Bitmap.createScaledBitmap(tile, ss, ss, true);
+		}
+		return tile;
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * Read only access to tiles packed in single SQLite database. Two layouts are supported:
+ * MBTiles (TMS row numbering) and RMaps/BigPlanet "sqlitedb" exported by SAS.Planet
+ * (inverted zoom). Tiles are addressed by OSM zoom and tile coordinates in both cases.
+ * Native SAS.Planet SQLite cache (a database per block of tiles with versioned tiles) is
+ * not supported, it should be exported to one of the formats above.
+ * Several connections are opened on demand so that tiles can be read by concurrent
+ * threads. Tile is read with plain query, its blob is copied once from cursor window.
+ */
+public class TileDatabase
+{
+	public enum Format
+	{
+		MBTILES, RMAPS
+	}
+
+	private static final int MAX_CONNECTIONS = 4;
+	// RMaps stores zoom as 17 - zoom
+	private static final int RMAPS_ZOOM_BASE = 17;
+
+	private static final String MBTILES_QUERY = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+	private static final String RMAPS_QUERY = "SELECT image FROM tiles WHERE x = ? AND y = ? AND z = ? AND s = 0";
+
+	public final String path;
+	public final Format format;
+	public int minZoom;
+	public int maxZoom;
+	/**
+	 * Tile bounds at maximum zoom: min x, min y, max x, max y
+	 */
+	public final int[] corners = new int[4];
+
+	private final ArrayBlockingQueue<Connection> connections = new ArrayBlockingQueue<>(MAX_CONNECTIONS);
+	private int opened;
+	private boolean closed;
+
+	private TileDatabase(String path, Format format)
+	{
+		this.path = path;
+		this.format = format;
+	}
+
+	public static TileDatabase open(File file) throws IOException
+	{
+		SQLiteDatabase db = openConnection(file.getAbsolutePath());
+		try
+		{
+			Format format;
+			if (hasTable(db, "metadata"))
+				format = Format.MBTILES;
+			else if (hasTable(db, "info"))
+				format = Format.RMAPS;
+			else
+				throw new IOException("Unknown tile database format: " + file.getName());
+
+			TileDatabase database = new TileDatabase(file.getAbsolutePath(), format);
+			if (! database.readBounds(db))
+				throw new IOException("Tile database is empty: " + file.getName());
+			database.opened = 1;
+			database.connections.offer(database.new Connection(db));
+			db = null;
+			return database;
+		}
+		catch (SQLiteException e)
+		{
+			throw new IOException("Failed to read tile database: " + file.getName() + ": " + e.getMessage());
+		}
+		finally
+		{
+			if (db != null)
+				db.close();
+		}
+	}
+
+	private static SQLiteDatabase openConnection(String path) throws IOException
+	{
+		try
+		{
+			return SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		}
+		catch (SQLiteException e)
+		{
+			throw new IOException("Failed to open tile database: " + path + ": " + e.getMessage());
+		}
+	}
+
+	private static boolean hasTable(SQLiteDatabase db, String table)
+	{
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE name = ?", new String[] {table});
+		try
+		{
+			return cursor.getCount() > 0;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Determines zoom range and tile bounds from tiles themselves as metadata is often incomplete.
+	 * Both queries are served by primary key indexes.
+	 */
+	private boolean readBounds(SQLiteDatabase db)
+	{
+		String zoomQuery = format == Format.MBTILES ? "SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles" : "SELECT MIN(z), MAX(z) FROM tiles";
+		Cursor cursor = db.rawQuery(zoomQuery, null);
+		try
+		{
+			if (! cursor.moveToFirst() || cursor.isNull(0))
+				return false;
+			if (format == Format.MBTILES)
+			{
+				minZoom = cursor.getInt(0);
+				maxZoom = cursor.getInt(1);
+			}
+			else
+			{
+				minZoom = RMAPS_ZOOM_BASE - cursor.getInt(1);
+				maxZoom = RMAPS_ZOOM_BASE - cursor.getInt(0);
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		String boundsQuery = format == Format.MBTILES ?
+				"SELECT MIN(tile_column), MIN(tile_row), MAX(tile_column), MAX(tile_row) FROM tiles WHERE zoom_level = ?" :
+				"SELECT MIN(x), MIN(y), MAX(x), MAX(y) FROM tiles WHERE z = ?";
+		cursor = db.rawQuery(boundsQuery, new String[] {String.valueOf(getStoredZoom(maxZoom))});
+		try
+		{
+			if (! cursor.moveToFirst() || cursor.isNull(0))
+				return false;
+			corners[0] = cursor.getInt(0);
+			corners[2] = cursor.getInt(2);
+			if (format == Format.MBTILES)
+			{
+				corners[1] = getStoredRow(maxZoom, cursor.getInt(3));
+				corners[3] = getStoredRow(maxZoom, cursor.getInt(1));
+			}
+			else
+			{
+				corners[1] = cursor.getInt(1);
+				corners[3] = cursor.getInt(3);
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+		return true;
+	}
+
+	private int getStoredZoom(int z)
+	{
+		return format == Format.MBTILES ? z : RMAPS_ZOOM_BASE - z;
+	}
+
+	/**
+	 * Converts OSM row to TMS row and back.
+	 */
+	private static int getStoredRow(int z, int y)
+	{
+		return (1 << z) - 1 - y;
+	}
+
+	/**
+	 * Returns longitude of the west edge of the tile column.
+	 */
+	static double getLongitude(int x, int z)
+	{
+		return x * 360. / (1 << z) - 180;
+	}
+
+	/**
+	 * Returns latitude of the north edge of the tile row (spherical mercator).
+	 */
+	static double getLatitude(int y, int z)
+	{
+		double n = Math.PI - 2 * Math.PI * y / (1 << z);
+		return Math.toDegrees(Math.atan(0.5 * (Math.exp(n) - Math.exp(-n))));
+	}
+
+	/**
+	 * Returns encoded tile image or null if tile is absent.
+	 */
+	public byte[] getTile(int z, int x, int y) throws IOException
+	{
+		long[] args;
+		if (format == Format.MBTILES)
+			args = new long[] {z, x, getStoredRow(z, y)};
+		else
+			args = new long[] {x, y, getStoredZoom(z)};
+
+		Connection connection = acquire();
+		try
+		{
+			return connection.query(args);
+		}
+		catch (SQLiteException e)
+		{
+			throw new IOException("Failed to read tile " + z + "/" + x + "/" + y + " from " + path + ": " + e.getMessage());
+		}
+		finally
+		{
+			release(connection);
+		}
+	}
+
+	private Connection acquire() throws IOException
+	{
+		Connection connection;
+		synchronized (this)
+		{
+			if (closed)
+				throw new IOException("Tile database is closed: " + path);
+			connection = connections.poll();
+			if (connection != null)
+				return connection;
+			if (opened < MAX_CONNECTIONS)
+			{
+				opened++;
+				try
+				{
+					return new Connection(openConnection(path));
+				}
+				catch (IOException e)
+				{
+					opened--;
+					throw e;
+				}
+			}
+		}
+		// All connections are busy, database can be closed meanwhile
+		try
+		{
+			while (true)
+			{
+				connection = connections.poll(1, TimeUnit.SECONDS);
+				if (connection != null)
+					return connection;
+				synchronized (this)
+				{
+					if (closed)
+						throw new IOException("Tile database is closed: " + path);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for tile database connection");
+		}
+	}
+
+	private void release(Connection connection)
+	{
+		synchronized (this)
+		{
+			if (! closed)
+			{
+				connections.offer(connection);
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * Closes idle connections, busy connections are closed when released.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+		Connection connection;
+		while ((connection = connections.poll()) != null)
+			connection.close();
+	}
+
+	/**
+	 * Database connection, it is used by one thread at a time. SQLite caches prepared
+	 * tile query per connection.
+	 */
+	private class Connection
+	{
+		final SQLiteDatabase db;
+		final String query;
+		final String[] args = new String[3];
+
+		Connection(SQLiteDatabase db)
+		{
+			this.db = db;
+			query = format == Format.MBTILES ? MBTILES_QUERY : RMAPS_QUERY;
+		}
+
+		byte[] query(long[] args) throws IOException
+		{
+			for (int i = 0; i < args.length; i++)
+				this.args[i] = String.valueOf(args[i]);
+			Cursor cursor = db.rawQuery(query, this.args);
+			try
+			{
+				return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		void close()
+		{
+			db.close();
+		}
+	}
+}
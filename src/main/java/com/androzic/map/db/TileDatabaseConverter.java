@@ -0,0 +1,273 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.db;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Packs SAS.Planet folder cache (z/x1024/x/y1024/y.ext) into single MBTiles database.
+ * Database is written next to target and is renamed when complete, so that partially
+ * converted cache is never picked up by map loader.
+ */
+public class TileDatabaseConverter
+{
+	public static final String EXTENSION = ".mbtiles";
+
+	/**
+	 * Number of tiles inserted in one transaction
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	public interface OnConvertProgressListener
+	{
+		void onProgress(int converted);
+	}
+
+	/**
+	 * Returns database file that supersedes folder cache.
+	 */
+	public static File getTarget(File dir)
+	{
+		return new File(dir.getParentFile(), dir.getName() + EXTENSION);
+	}
+
+	/**
+	 * Converts folder cache and returns number of packed tiles.
+	 */
+	public static int convert(File dir, File target, OnConvertProgressListener listener) throws IOException
+	{
+		// MBTiles is defined for spherical mercator only
+		if (new File(dir, "ellipsoid").exists())
+			throw new IOException("Ellipsoid SAS cache can not be converted: " + dir.getName());
+		String[] zooms = dir.list();
+		if (zooms == null)
+			throw new IOException("Invalid SAS cache dir: " + dir.getName());
+
+		File tmp = new File(target.getAbsolutePath() + ".tmp");
+		if (tmp.exists() && ! tmp.delete())
+			throw new IOException("Failed to remove incomplete database: " + tmp.getAbsolutePath());
+
+		Packer packer = new Packer(listener);
+		try
+		{
+			SQLiteDatabase db = SQLiteDatabase.openDatabase(tmp.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			try
+			{
+				db.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)");
+				db.execSQL("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+				db.execSQL("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+
+				SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO tiles VALUES (?, ?, ?, ?)");
+				db.beginTransaction();
+				try
+				{
+					for (String zoom : zooms)
+					{
+						if (! zoom.startsWith("z"))
+							continue;
+						// SAS.Planet zoom levels start from 1
+						int z = Integer.parseInt(zoom.substring(1)) - 1;
+						packer.packZoom(db, insert, new File(dir, zoom), z);
+					}
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+					insert.close();
+				}
+
+				if (packer.count > 0)
+					packer.writeMetadata(db, dir.getName());
+			}
+			finally
+			{
+				db.close();
+			}
+		}
+		catch (SQLiteException e)
+		{
+			tmp.delete();
+			throw new IOException("Failed to write tile database: " + e.getMessage());
+		}
+		catch (IOException | RuntimeException e)
+		{
+			tmp.delete();
+			throw e;
+		}
+
+		if (packer.count == 0)
+		{
+			tmp.delete();
+			throw new IOException("SAS cache is empty: " + dir.getName());
+		}
+		if (! tmp.renameTo(target))
+		{
+			tmp.delete();
+			throw new IOException("Failed to create tile database: " + target.getAbsolutePath());
+		}
+		return packer.count;
+	}
+
+	private static class Packer
+	{
+		final OnConvertProgressListener listener;
+		int count;
+		String ext;
+		int minZoom = Integer.MAX_VALUE;
+		int maxZoom = Integer.MIN_VALUE;
+		// tile bounds at maximum zoom
+		int minX, minY, maxX, maxY;
+
+		Packer(OnConvertProgressListener listener)
+		{
+			this.listener = listener;
+		}
+
+		void packZoom(SQLiteDatabase db, SQLiteStatement insert, File root, int z) throws IOException
+		{
+			File[] x1024 = root.listFiles();
+			if (x1024 == null)
+				return;
+			for (File x1024file : x1024)
+			{
+				File[] xs = x1024file.listFiles();
+				if (xs == null)
+					continue;
+				for (File xfile : xs)
+				{
+					File[] y1024 = xfile.listFiles();
+					if (y1024 == null)
+						continue;
+					int x;
+					try
+					{
+						x = Integer.parseInt(xfile.getName().substring(1));
+					}
+					catch (NumberFormatException e)
+					{
+						continue;
+					}
+					for (File y1024file : y1024)
+					{
+						String[] ys = y1024file.list();
+						if (ys == null)
+							continue;
+						for (String yf : ys)
+						{
+							int dot = yf.lastIndexOf(".");
+							int y;
+							try
+							{
+								y = Integer.parseInt(yf.substring(1, dot));
+							}
+							catch (NumberFormatException | StringIndexOutOfBoundsException e)
+							{
+								// Not a tile
+								continue;
+							}
+							if (ext == null)
+								ext = yf.substring(dot + 1).toLowerCase(Locale.US);
+
+							insert.bindLong(1, z);
+							insert.bindLong(2, x);
+							insert.bindLong(3, (1 << z) - 1 - y);
+							insert.bindBlob(4, readFile(new File(y1024file, yf)));
+							insert.executeInsert();
+
+							if (z > maxZoom)
+							{
+								maxZoom = z;
+								minX = maxX = x;
+								minY = maxY = y;
+							}
+							else if (z == maxZoom)
+							{
+								minX = Math.min(minX, x);
+								maxX = Math.max(maxX, x);
+								minY = Math.min(minY, y);
+								maxY = Math.max(maxY, y);
+							}
+							if (z < minZoom)
+								minZoom = z;
+
+							count++;
+							if (count % BATCH_SIZE == 0)
+							{
+								db.setTransactionSuccessful();
+								db.endTransaction();
+								db.beginTransaction();
+								if (listener != null)
+									listener.onProgress(count);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		void writeMetadata(SQLiteDatabase db, String name)
+		{
+			double west = TileDatabase.getLongitude(minX, maxZoom);
+			double east = TileDatabase.getLongitude(maxX + 1, maxZoom);
+			double north = TileDatabase.getLatitude(minY, maxZoom);
+			double south = TileDatabase.getLatitude(maxY + 1, maxZoom);
+			String bounds = String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f", west, south, east, north);
+			String format = "jpeg".equals(ext) ? "jpg" : ext;
+
+			String[][] metadata = {
+					{"name", name},
+					{"type", "baselayer"},
+					{"version", "1"},
+					{"description", "Converted from SAS.Planet cache"},
+					{"format", format},
+					{"minzoom", String.valueOf(minZoom)},
+					{"maxzoom", String.valueOf(maxZoom)},
+					{"bounds", bounds}
+			};
+			for (String[] entry : metadata)
+				db.execSQL("INSERT INTO metadata VALUES (?, ?)", entry);
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			in.readFully(data);
+		}
+		finally
+		{
+			in.close();
+		}
+		return data;
+	}
+}
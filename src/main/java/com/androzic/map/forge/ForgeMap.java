@@ -73,6 +73,11 @@ public class ForgeMap extends TileMap
 	public static final byte[] MAGIC = "mapsforge binary OSM".getBytes();
 
 	public static float textScale = 1f;
+	/**
+	 * Average size of rendered tile file, used to convert cache quota to number of files
+	 */
+	private static final int FILE_SYSTEM_CACHE_TILE_SIZE = 32 * 1024;
+	private static int fileSystemCacheFiles = 2000;
 
 	private transient static Androzic application;
 	private transient static RenderThemeFuture renderTheme;
@@ -276,13 +281,16 @@ public class ForgeMap extends TileMap
 		if (!isCurrent)
 			return false;
 
-		mapViewPosition.setCenter(new LatLong(viewport.mapCenter[0], viewport.mapCenter[1]));
-
 		int[] map_xy = new int[2];
 		getXYByLatLon(viewport.mapCenter[0], viewport.mapCenter[1], map_xy);
 		map_xy[0] -= viewport.lookAheadXY[0];
 		map_xy[1] -= viewport.lookAheadXY[1];
 
+		// Job queue renders tiles closest to position first, use visible center
+		double[] center = new double[2];
+		getLatLonByXY(map_xy[0], map_xy[1], center);
+		mapViewPosition.setCenter(new LatLong(center[0], center[1]));
+
 		Path clipPath = new Path();
 
 		if (cropBorder || drawBorder)
@@ -514,7 +522,7 @@ public class ForgeMap extends TileMap
 		if (!cacheDirectory.exists() && !cacheDirectory.mkdirs())
 			return null;
 
-		int tileCacheFiles = 2000; //estimateSizeOfFileSystemCache(cacheDirectoryName, firstLevelSize, tileSize);
+		int tileCacheFiles = fileSystemCacheFiles;
 		if (! cacheDirectory.canWrite() || tileCacheFiles == 0)
 			return null;
 
@@ -537,6 +545,14 @@ public class ForgeMap extends TileMap
 		center[1] = mapCenter.longitude;
 	}
 
+	/**
+	 * Limits rendered tiles cache, applied when cache is created.
+	 */
+	public static void setFileSystemCacheQuota(long bytes)
+	{
+		fileSystemCacheFiles = (int) (bytes / FILE_SYSTEM_CACHE_TILE_SIZE);
+	}
+
 	public static void onRenderThemeChanged()
 	{
 		Androzic application = Androzic.getApplication();
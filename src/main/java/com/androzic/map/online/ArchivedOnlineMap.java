@@ -0,0 +1,286 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import com.androzic.Androzic;
+import com.androzic.map.OnMapTileStateChangeListener;
+import com.androzic.ui.Viewport;
+
+/**
+ * Online map which tiles are obtained by shared {@link TileFetcher} and are kept in
+ * {@link TileArchive} of the provider. Missing tiles are requested once and map is redrawn
+ * when they arrive. Expired tiles are shown while they are revalidated, tile cache of the
+ * map is reset if any of them has changed on server. Tiles left in legacy per-tile file cache
+ * are moved to archive when they are first needed.
+ */
+public class ArchivedOnlineMap extends OnlineMap
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final String TAG = "ArchivedOnlineMap";
+
+	private transient TileFetcher fetcher;
+	private transient TileArchive archive;
+	private transient File cacheDir;
+	private transient OnMapTileStateChangeListener listener;
+	// tiles requested from fetcher and not obtained yet
+	private transient HashSet<Long> pending = new HashSet<>();
+	// tiles that could not be obtained at current zoom
+	private transient HashSet<Long> failed = new HashSet<>();
+	// tiles that have arrived and have not been drawn yet
+	private transient HashMap<Long, byte[]> received = new HashMap<>();
+	private transient volatile boolean invalidated;
+
+	public ArchivedOnlineMap(TileProvider provider, byte z)
+	{
+		super(provider, z);
+	}
+
+	@Override
+	public synchronized void activate(OnMapTileStateChangeListener listener, int width, int height, double mpp, boolean current) throws Throwable
+	{
+		Androzic application = Androzic.getApplication();
+		fetcher = application.getTileFetcher();
+		try
+		{
+			archive = application.getTileArchive(tileProvider);
+			cacheDir = application.getCacheDir();
+		}
+		catch (IOException e)
+		{
+			// Tiles are downloaded each time they are needed then
+			Log.e(TAG, "Tile archive is not available: " + e.getMessage());
+			archive = null;
+		}
+		this.listener = listener;
+		super.activate(listener, width, height, mpp, current);
+	}
+
+	@Override
+	public synchronized void deactivate()
+	{
+		super.deactivate();
+		if (fetcher != null)
+			fetcher.cancel(tileProvider);
+		fetcher = null;
+		archive = null;
+		cacheDir = null;
+		listener = null;
+		synchronized (pending)
+		{
+			pending.clear();
+			failed.clear();
+			received.clear();
+		}
+	}
+
+	@Override
+	public synchronized void setZoom(double z)
+	{
+		super.setZoom(z);
+		synchronized (pending)
+		{
+			failed.clear();
+			received.clear();
+		}
+	}
+
+	@Override
+	public synchronized boolean drawMap(Viewport viewport, boolean cropBorder, boolean drawBorder, Canvas c) throws OutOfMemoryError
+	{
+		if (invalidated)
+		{
+			invalidated = false;
+			// Hack to recalculate cache, it holds tiles that have changed on server
+			setZoom(getZoom());
+		}
+		return super.drawMap(viewport, cropBorder, drawBorder, c);
+	}
+
+	@Override
+	protected Bitmap getTile(int x, int y) throws OutOfMemoryError
+	{
+		TileFetcher f = fetcher;
+		if (f == null)
+			return null;
+
+		int z = srcZoom;
+		long key = TileArchive.getKey(z, x, y);
+		byte[] data;
+		synchronized (pending)
+		{
+			data = received.remove(key);
+			if (data == null)
+			{
+				if (pending.contains(key) || failed.contains(key))
+					return null;
+				pending.add(key);
+			}
+		}
+		if (data == null)
+		{
+			importTile(z, x, y);
+			TileRequest request = new TileRequest(key);
+			f.fetch(tileProvider, archive, z, x, y, request);
+			data = request.complete();
+			if (data == null)
+				return null;
+		}
+
+		Bitmap tile = BitmapFactory.decodeByteArray(data, 0, data.length);
+		if (tile != null && dynZoom != 1.0)
+		{
+			int ss = (int) (dynZoom * tileSize);
+			tile = Bitmap.createScaledBitmap(tile, ss, ss, true);
+		}
+		return tile;
+	}
+
+	/**
+	 * Moves tile from legacy file cache to archive so that it is accounted by archive quota.
+	 * Files are not written any more, so archived tile is always newer.
+	 */
+	private void importTile(int z, int x, int y)
+	{
+		TileArchive a = archive;
+		File cache = cacheDir;
+		if (a == null || cache == null)
+			return;
+		File file = TileFactory.getTileFile(cache, tileProvider.code, x, y, (byte) z);
+		if (! file.isFile())
+			return;
+		try
+		{
+			if (! a.contains(z, x, y))
+			{
+				byte[] tile = new byte[(int) file.length()];
+				DataInputStream in = new DataInputStream(new FileInputStream(file));
+				try
+				{
+					in.readFully(tile);
+				}
+				finally
+				{
+					in.close();
+				}
+				a.write(z, x, y, tile, file.lastModified() + tileProvider.tileExpiration);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		file.delete();
+	}
+
+	/**
+	 * Called from fetcher thread when requested tile is obtained or has changed on server.
+	 */
+	private void onTileArrived(long key, byte[] tile, boolean shown)
+	{
+		synchronized (pending)
+		{
+			pending.remove(key);
+			if (tile != null)
+				received.put(key, tile);
+			else if (! shown)
+				failed.add(key);
+		}
+		if (tile == null)
+			return;
+		if (shown)
+			invalidated = true;
+		OnMapTileStateChangeListener l = listener;
+		if (l != null)
+			l.onTileObtained();
+	}
+
+	/**
+	 * Tells tile passed from caller thread, which is returned to map immediately, from tile
+	 * passed later from fetcher thread.
+	 */
+	private class TileRequest implements TileFetcher.OnTileFetchedListener
+	{
+		private final long key;
+		private boolean returned;
+		private boolean answered;
+		private byte[] tile;
+
+		TileRequest(long key)
+		{
+			this.key = key;
+		}
+
+		@Override
+		public synchronized void onTileFetched(TileProvider provider, int z, int x, int y, byte[] tile)
+		{
+			if (! returned)
+			{
+				answered = true;
+				this.tile = tile;
+				return;
+			}
+			onTileArrived(key, tile, this.tile != null);
+		}
+
+		@Override
+		public synchronized void onTileCancelled(TileProvider provider, int z, int x, int y)
+		{
+			// Tile will be requested again if it is still needed
+			synchronized (pending)
+			{
+				pending.remove(key);
+			}
+		}
+
+		/**
+		 * Returns tile obtained without waiting for network or null if tile is queued.
+		 */
+		synchronized byte[] complete()
+		{
+			returned = true;
+			if (answered)
+			{
+				// Tile is known without network, expired tile is revalidated in background
+				synchronized (pending)
+				{
+					pending.remove(key);
+					if (tile == null)
+						failed.add(key);
+				}
+			}
+			return tile;
+		}
+	}
+}
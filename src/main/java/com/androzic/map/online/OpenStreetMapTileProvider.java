@@ -25,7 +25,6 @@ import android.support.annotation.Nullable;
 public class OpenStreetMapTileProvider extends TileProvider
 {
 	private String[] servers = {"a", "b", "c"};
-	private int nextServer = 0;
 
 	public OpenStreetMapTileProvider()
 	{
@@ -48,9 +47,8 @@ public class OpenStreetMapTileProvider extends TileProvider
 	@Override
 	public String getTileUri(int x, int y, byte z)
 	{
-		nextServer++;
-		if (servers.length <= nextServer)
-			nextServer = 0;
-		return String.format("http://%s.tile.openstreetmap.org/%d/%d/%d.png", servers[nextServer], z, x, y);
+		// Server is chosen by tile so that it is thread safe and tile is always fetched from the same host
+		String server = servers[(x + y) % servers.length];
+		return String.format("http://%s.tile.openstreetmap.org/%d/%d/%d.png", server, z, x, y);
 	}
 }
@@ -0,0 +1,1080 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Packed cache of online map tiles of one provider. Tiles are appended to single data file,
+ * replaced and removed tiles are left in place as garbage which is reclaimed by background
+ * compaction. Tile positions are kept in memory in open addressing hash table keyed by
+ * (z, x, y) which is saved to index file on flush. Records appended after the last flush
+ * are recovered from data file on open, so index is not written on every tile. Index also
+ * keeps last access time of each tile. If archive exceeds its quota, expired tiles and then
+ * least recently used tiles are evicted. Tile can have HTTP validator which is stored after
+ * tile data and is read from disk only when tile is revalidated. Expiration time of unchanged
+ * tile is updated by short record without tile data. Index is also saved in background after
+ * eviction, after a number of changes and periodically if tiles have been accessed, so that
+ * access times survive process being killed.
+ *
+ * <pre>
+ * data:   magic, version, records: z, x, y, expiration time,
+ *         length (-1 for removal, -2 for expiration update), validator length, tile, validator
+ * index:  magic, version, indexed data length, garbage size, count,
+ *         entries: key, offset, length, expiration time, access time (minutes, version 2),
+ *         validator length (version 3)
+ * </pre>
+ * First version of data file has no validator length, it is converted on open.
+ */
+public class TileArchive
+{
+	private static final String TAG = "TileArchive";
+
+	private static final int DATA_MAGIC = 0x41544144; // ATAD
+	private static final int INDEX_MAGIC = 0x41544149; // ATAI
+	private static final int VERSION = 2;
+	private static final int INDEX_VERSION = 3;
+	private static final int FILE_HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 23;
+	private static final int V1_RECORD_HEADER_SIZE = 21;
+	private static final int REMOVAL = -1;
+	private static final int UPDATE = -2;
+	private static final int INITIAL_CAPACITY = 1024;
+	/**
+	 * Compaction starts when garbage exceeds both this size and half of data file
+	 */
+	private static final long MIN_GARBAGE = 4 * 1024 * 1024;
+	/**
+	 * Archive is trimmed below quota by this ratio so that eviction does not run on every write
+	 */
+	private static final double TRIM_RATIO = 0.9;
+	private static final long ACCESS_RESOLUTION = 60000;
+	/**
+	 * Index is saved after this number of changes or after this time if archive has changed
+	 */
+	private static final int FLUSH_CHANGES = 1000;
+	private static final long FLUSH_INTERVAL = 5 * 60000;
+	// key of occupied slot always has the high bit set
+	private static final long OCCUPIED = 1L << 63;
+
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor();
+
+	private final File dataFile;
+	private final File indexFile;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private RandomAccessFile data;
+	private FileChannel channel;
+	private long dataLength;
+	private long garbage;
+	private boolean dirty;
+	private boolean compacting;
+	private boolean closed;
+
+	private long[] keys;
+	private long[] offsets;
+	private int[] lengths;
+	private short[] validatorLengths;
+	private long[] expirations;
+	// last access time in minutes
+	private int[] accesses;
+	private int count;
+	private boolean accessed;
+	private long quota;
+	private int evicted;
+	// changes since index was saved
+	private int changes;
+	private volatile long flushed;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	public static class Statistics
+	{
+		public int count;
+		public int expired;
+		/**
+		 * Size of live tiles with their headers
+		 */
+		public long size;
+		public long fileSize;
+		public long quota;
+		public int evicted;
+	}
+
+	public TileArchive(File dir, String name) throws IOException
+	{
+		if (! dir.exists() && ! dir.mkdirs())
+			throw new IOException("Failed to create tile archive dir: " + dir.getAbsolutePath());
+		dataFile = new File(dir, name + ".dat");
+		indexFile = new File(dir, name + ".idx");
+		allocate(INITIAL_CAPACITY);
+		open();
+		flushed = System.currentTimeMillis();
+	}
+
+	private void open() throws IOException
+	{
+		data = new RandomAccessFile(dataFile, "rw");
+		channel = data.getChannel();
+		long size = channel.size();
+		if (size < FILE_HEADER_SIZE)
+		{
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(DATA_MAGIC).putInt(VERSION).flip();
+			channel.truncate(0);
+			writeFully(header, 0);
+			dataLength = FILE_HEADER_SIZE;
+			indexFile.delete();
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		readFully(header, 0);
+		int version = header.getInt(4);
+		if (header.getInt(0) != DATA_MAGIC || version != 1 && version != VERSION)
+		{
+			close();
+			throw new IOException("Unsupported tile archive format: " + dataFile.getAbsolutePath());
+		}
+
+		long indexed = readIndex(size);
+		dataLength = replay(indexed, size, version == 1 ? V1_RECORD_HEADER_SIZE : RECORD_HEADER_SIZE);
+		if (dataLength < size)
+		{
+			Log.w(TAG, "Truncating incomplete record in " + dataFile.getName());
+			channel.truncate(dataLength);
+		}
+		dirty = indexed != dataLength;
+
+		if (version == 1)
+		{
+			// Compaction writes records in current format
+			try
+			{
+				copyLiveTiles();
+			}
+			catch (IOException e)
+			{
+				close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Loads saved index and returns length of data it covers or file header size if index
+	 * can not be used.
+	 */
+	private long readIndex(long size)
+	{
+		if (! indexFile.exists())
+			return FILE_HEADER_SIZE;
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+			try
+			{
+				if (in.readInt() != INDEX_MAGIC)
+					return FILE_HEADER_SIZE;
+				int version = in.readInt();
+				if (version < 1 || version > INDEX_VERSION)
+					return FILE_HEADER_SIZE;
+				int now = getAccessTime();
+				long indexed = in.readLong();
+				// Data file was truncated after index was saved
+				if (indexed > size)
+					return FILE_HEADER_SIZE;
+				garbage = in.readLong();
+				int n = in.readInt();
+				int capacity = INITIAL_CAPACITY;
+				while (capacity < n * 2)
+					capacity <<= 1;
+				allocate(capacity);
+				for (int i = 0; i < n; i++)
+				{
+					long key = in.readLong();
+					long offset = in.readLong();
+					int length = in.readInt();
+					long expiration = in.readLong();
+					// Access time is not known for tiles indexed by first version
+					int access = version == 1 ? now : in.readInt();
+					short validatorLength = version < 3 ? 0 : in.readShort();
+					put(key, offset, length, validatorLength, expiration, access);
+				}
+				return indexed;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			allocate(INITIAL_CAPACITY);
+			garbage = 0;
+			return FILE_HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Applies records appended after index was saved, returns length of complete records.
+	 */
+	private long replay(long position, long size, int headerSize) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		int replayed = 0;
+		int now = getAccessTime();
+		while (position + headerSize <= size)
+		{
+			header.clear();
+			readFully(header, position);
+			long key = getKey(header.get(0), header.getInt(1), header.getInt(5));
+			long expiration = header.getLong(9);
+			int length = header.getInt(17);
+			short validatorLength = headerSize == RECORD_HEADER_SIZE ? header.getShort(21) : 0;
+			long offset = position + headerSize;
+			if (length < UPDATE || validatorLength < 0 || offset + Math.max(length, 0) + validatorLength > size)
+				break;
+			int slot = find(key);
+			if (length == UPDATE)
+			{
+				if (slot >= 0)
+					expirations[slot] = expiration;
+				garbage += headerSize;
+				position = offset;
+			}
+			else
+			{
+				if (slot >= 0)
+				{
+					garbage += getRecordSize(slot);
+					remove(slot);
+				}
+				if (length >= 0)
+				{
+					put(key, offset, length, validatorLength, expiration, now);
+					position = offset + length + validatorLength;
+				}
+				else
+				{
+					garbage += headerSize;
+					position = offset;
+				}
+			}
+			replayed++;
+		}
+		if (replayed > 0)
+			Log.i(TAG, "Recovered " + replayed + " records of " + dataFile.getName());
+		return position;
+	}
+
+	/**
+	 * Returns tile or null if it is not cached. Expiration time of the tile is returned in
+	 * the first element of expiration array if it is not null.
+	 */
+	public byte[] read(int z, int x, int y, long[] expiration) throws IOException
+	{
+		long key = getKey(z, x, y);
+		byte[] tile;
+		boolean touched = false;
+		lock.readLock().lock();
+		try
+		{
+			if (closed)
+				return null;
+			int slot = find(key);
+			if (slot < 0)
+				return null;
+			tile = new byte[lengths[slot]];
+			readFully(ByteBuffer.wrap(tile), offsets[slot]);
+			if (expiration != null)
+				expiration[0] = expirations[slot];
+			// Races of concurrent readers are harmless, any of recent times is fine
+			int now = getAccessTime();
+			if (accesses[slot] != now)
+			{
+				accesses[slot] = now;
+				accessed = true;
+				touched = true;
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		if (touched && System.currentTimeMillis() - flushed > FLUSH_INTERVAL)
+			scheduleFlush();
+		return tile;
+	}
+
+	/**
+	 * Returns HTTP validator of the tile or null if tile has no validator or is not cached.
+	 */
+	public String getValidator(int z, int x, int y) throws IOException
+	{
+		long key = getKey(z, x, y);
+		lock.readLock().lock();
+		try
+		{
+			if (closed)
+				return null;
+			int slot = find(key);
+			if (slot < 0 || validatorLengths[slot] == 0)
+				return null;
+			byte[] validator = new byte[validatorLengths[slot]];
+			readFully(ByteBuffer.wrap(validator), offsets[slot] + lengths[slot]);
+			return new String(validator, "UTF-8");
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(int z, int x, int y)
+	{
+		long key = getKey(z, x, y);
+		lock.readLock().lock();
+		try
+		{
+			return ! closed && find(key) >= 0;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns expiration time of the tile or zero if it is not cached.
+	 */
+	public long getExpiration(int z, int x, int y)
+	{
+		long key = getKey(z, x, y);
+		lock.readLock().lock();
+		try
+		{
+			int slot = closed ? -1 : find(key);
+			return slot >= 0 ? expirations[slot] : 0;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public void write(int z, int x, int y, byte[] tile, long expiration) throws IOException
+	{
+		write(z, x, y, tile, expiration, null);
+	}
+
+	/**
+	 * Writes tile with HTTP validator, validator can be null.
+	 */
+	public void write(int z, int x, int y, byte[] tile, long expiration, String validator) throws IOException
+	{
+		byte[] v = validator != null ? validator.getBytes("UTF-8") : null;
+		if (v != null && v.length > Short.MAX_VALUE)
+			v = null;
+		append(getKey(z, x, y), tile, v, expiration);
+	}
+
+	/**
+	 * Sets new expiration time of cached tile without rewriting it. Returns false if tile is
+	 * not cached.
+	 */
+	public boolean update(int z, int x, int y, long expiration) throws IOException
+	{
+		long key = getKey(z, x, y);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		putHeader(buffer, key, expiration, UPDATE, 0);
+		buffer.flip();
+		boolean flush;
+		lock.writeLock().lock();
+		try
+		{
+			if (closed)
+				throw new IOException("Tile archive is closed: " + dataFile.getName());
+			int slot = find(key);
+			if (slot < 0)
+				return false;
+			writeFully(buffer, dataLength);
+			dataLength += RECORD_HEADER_SIZE;
+			garbage += RECORD_HEADER_SIZE;
+			expirations[slot] = expiration;
+			dirty = true;
+			flush = shouldFlush(false);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		if (flush)
+			scheduleFlush();
+		return true;
+	}
+
+	public void remove(int z, int x, int y) throws IOException
+	{
+		append(getKey(z, x, y), null, null, 0);
+	}
+
+	private void append(long key, byte[] tile, byte[] validator, long expiration) throws IOException
+	{
+		int length = tile != null ? tile.length : REMOVAL;
+		int validatorLength = tile != null && validator != null ? validator.length : 0;
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + Math.max(length, 0) + validatorLength);
+		putHeader(buffer, key, expiration, length, validatorLength);
+		if (tile != null)
+			buffer.put(tile);
+		if (validatorLength > 0)
+			buffer.put(validator);
+		buffer.flip();
+
+		boolean compact;
+		boolean flush;
+		lock.writeLock().lock();
+		try
+		{
+			if (closed)
+				throw new IOException("Tile archive is closed: " + dataFile.getName());
+			int slot = find(key);
+			if (slot < 0 && tile == null)
+				return;
+			long position = dataLength;
+			writeFully(buffer, position);
+			dataLength += buffer.limit();
+			if (slot >= 0)
+			{
+				garbage += getRecordSize(slot);
+				remove(slot);
+			}
+			if (tile != null)
+				put(key, position + RECORD_HEADER_SIZE, length, (short) validatorLength, expiration, getAccessTime());
+			else
+				garbage += RECORD_HEADER_SIZE;
+			dirty = true;
+			boolean trimmed = quota > 0 && dataLength - garbage > quota && evict((long) (quota * TRIM_RATIO));
+			compact = shouldCompact();
+			// Compaction saves index itself
+			flush = shouldFlush(trimmed) && ! compact;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+
+		if (compact)
+			scheduleCompaction();
+		else if (flush)
+			scheduleFlush();
+	}
+
+	/**
+	 * Sets maximum size of live tiles, zero means unlimited. Archive is trimmed immediately
+	 * if it exceeds new quota.
+	 */
+	public void setQuota(long quota) throws IOException
+	{
+		boolean compact;
+		boolean flush;
+		lock.writeLock().lock();
+		try
+		{
+			this.quota = quota;
+			if (closed || quota <= 0 || dataLength - garbage <= quota)
+				return;
+			boolean trimmed = evict((long) (quota * TRIM_RATIO));
+			compact = shouldCompact();
+			flush = trimmed && ! compact;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		if (compact)
+			scheduleCompaction();
+		else if (flush)
+			scheduleFlush();
+	}
+
+	/**
+	 * Removes expired tiles and then least recently used tiles until size of live tiles drops
+	 * to target. Removal records are appended in one write. Returns true if any tile has been
+	 * removed. Called with write lock held.
+	 */
+	private boolean evict(long target) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		// expired flag, access time and slot packed for sorting
+		long[] order = new long[count];
+		int n = 0;
+		for (int slot = 0; slot < keys.length; slot++)
+		{
+			if (keys[slot] == 0)
+				continue;
+			long fresh = expirations[slot] > now ? 1 : 0;
+			order[n++] = (fresh << 62) | ((long) accesses[slot] << 31) | slot;
+		}
+		Arrays.sort(order);
+
+		long size = dataLength - garbage;
+		int victims = 0;
+		while (victims < n && size > target)
+		{
+			int slot = (int) (order[victims] & 0x7FFFFFFF);
+			size -= getRecordSize(slot);
+			victims++;
+		}
+		if (victims == 0)
+			return false;
+
+		ByteBuffer buffer = ByteBuffer.allocate(victims * RECORD_HEADER_SIZE);
+		long[] removed = new long[victims];
+		for (int i = 0; i < victims; i++)
+		{
+			removed[i] = keys[(int) (order[i] & 0x7FFFFFFF)];
+			putHeader(buffer, removed[i], 0, REMOVAL, 0);
+		}
+		buffer.flip();
+		writeFully(buffer, dataLength);
+		dataLength += buffer.limit();
+		// Slots are shifted by removal, so tiles are looked up again
+		for (long key : removed)
+		{
+			int slot = find(key);
+			garbage += getRecordSize(slot) + RECORD_HEADER_SIZE;
+			remove(slot);
+		}
+		evicted += victims;
+		dirty = true;
+		Log.i(TAG, "Evicted " + victims + " tiles from " + dataFile.getName());
+		return true;
+	}
+
+	/**
+	 * Counts change and checks if index should be saved, called with write lock held.
+	 */
+	private boolean shouldFlush(boolean trimmed)
+	{
+		changes++;
+		return trimmed || changes >= FLUSH_CHANGES || System.currentTimeMillis() - flushed > FLUSH_INTERVAL;
+	}
+
+	private void scheduleFlush()
+	{
+		if (! flushScheduled.compareAndSet(false, true))
+			return;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				flushScheduled.set(false);
+				try
+				{
+					flush();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks if compaction should start, called with write lock held.
+	 */
+	private boolean shouldCompact()
+	{
+		boolean compact = ! compacting && garbage > MIN_GARBAGE && garbage * 2 > dataLength;
+		if (compact)
+			compacting = true;
+		return compact;
+	}
+
+	private void scheduleCompaction()
+	{
+		compactor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try
+				{
+					compact();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns number of cached tiles.
+	 */
+	public int getCount()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return count;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns size of data file and size of garbage in it.
+	 */
+	public long[] getSize()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return new long[] {dataLength, garbage};
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public Statistics getStatistics()
+	{
+		Statistics statistics = new Statistics();
+		long now = System.currentTimeMillis();
+		lock.readLock().lock();
+		try
+		{
+			statistics.count = count;
+			for (int slot = 0; slot < keys.length; slot++)
+			{
+				if (keys[slot] != 0 && expirations[slot] <= now)
+					statistics.expired++;
+			}
+			statistics.size = dataLength - garbage - FILE_HEADER_SIZE;
+			statistics.fileSize = dataLength;
+			statistics.quota = quota;
+			statistics.evicted = evicted;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return statistics;
+	}
+
+	/**
+	 * Saves index so that data file has not to be replayed on next open.
+	 */
+	public void flush() throws IOException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if (! closed && (dirty || accessed))
+				writeIndex();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if (closed)
+				return;
+			try
+			{
+				if ((dirty || accessed) && channel != null && channel.isOpen())
+					writeIndex();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			closed = true;
+			try
+			{
+				data.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void writeIndex() throws IOException
+	{
+		channel.force(false);
+		File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+		try
+		{
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(dataLength);
+			out.writeLong(garbage);
+			out.writeInt(count);
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] == 0)
+					continue;
+				out.writeLong(keys[i]);
+				out.writeLong(offsets[i]);
+				out.writeInt(lengths[i]);
+				out.writeLong(expirations[i]);
+				out.writeInt(accesses[i]);
+				out.writeShort(validatorLengths[i]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		if (! tmp.renameTo(indexFile))
+			throw new IOException("Failed to replace tile archive index: " + indexFile.getAbsolutePath());
+		dirty = false;
+		accessed = false;
+		changes = 0;
+		flushed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Copies live tiles to new data file. Tiles are copied without lock, tiles written
+	 * meanwhile are copied when files are swapped.
+	 */
+	void compact() throws IOException
+	{
+		try
+		{
+			copyLiveTiles();
+		}
+		finally
+		{
+			lock.writeLock().lock();
+			compacting = false;
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void copyLiveTiles() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		long[] snapshotKeys;
+		long[] snapshotOffsets;
+		int[] snapshotLengths;
+		short[] snapshotValidatorLengths;
+		long[] snapshotExpirations;
+		FileChannel source;
+		lock.readLock().lock();
+		try
+		{
+			if (closed)
+				return;
+			snapshotKeys = keys.clone();
+			snapshotOffsets = offsets.clone();
+			snapshotLengths = lengths.clone();
+			snapshotValidatorLengths = validatorLengths.clone();
+			snapshotExpirations = expirations.clone();
+			source = channel;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		File tmp = new File(dataFile.getAbsolutePath() + ".tmp");
+		RandomAccessFile target = new RandomAccessFile(tmp, "rw");
+		boolean swapped = false;
+		try
+		{
+			FileChannel targetChannel = target.getChannel();
+			targetChannel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(DATA_MAGIC).putInt(VERSION).flip();
+			writeFully(targetChannel, header, 0);
+			long position = FILE_HEADER_SIZE;
+
+			long[] newOffsets = new long[snapshotKeys.length];
+			for (int i = 0; i < snapshotKeys.length; i++)
+			{
+				if (snapshotKeys[i] == 0)
+					continue;
+				newOffsets[i] = position + RECORD_HEADER_SIZE;
+				position = copyRecord(source, targetChannel, position, snapshotKeys[i], snapshotOffsets[i], snapshotLengths[i], snapshotValidatorLengths[i], snapshotExpirations[i]);
+			}
+
+			lock.writeLock().lock();
+			try
+			{
+				if (closed)
+					return;
+				long[] slotOffsets = new long[keys.length];
+				for (int i = 0; i < snapshotKeys.length; i++)
+				{
+					if (snapshotKeys[i] == 0)
+						continue;
+					int slot = find(snapshotKeys[i]);
+					if (slot >= 0 && offsets[slot] == snapshotOffsets[i])
+						slotOffsets[slot] = newOffsets[i];
+				}
+				// Tiles written during compaction
+				for (int slot = 0; slot < keys.length; slot++)
+				{
+					if (keys[slot] == 0 || slotOffsets[slot] != 0)
+						continue;
+					slotOffsets[slot] = position + RECORD_HEADER_SIZE;
+					position = copyRecord(channel, targetChannel, position, keys[slot], offsets[slot], lengths[slot], validatorLengths[slot], expirations[slot]);
+				}
+				targetChannel.force(false);
+				target.close();
+				data.close();
+				swapped = tmp.renameTo(dataFile);
+				// Old file is reopened if it could not be replaced
+				data = new RandomAccessFile(dataFile, "rw");
+				channel = data.getChannel();
+				if (! swapped)
+					throw new IOException("Failed to replace tile archive: " + dataFile.getAbsolutePath());
+
+				long before = dataLength;
+				System.arraycopy(slotOffsets, 0, offsets, 0, slotOffsets.length);
+				dataLength = position;
+				garbage = 0;
+				writeIndex();
+				Log.i(TAG, "Compacted " + dataFile.getName() + " from " + before + " to " + dataLength + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+		finally
+		{
+			if (! swapped)
+			{
+				target.close();
+				tmp.delete();
+			}
+		}
+	}
+
+	private static long copyRecord(FileChannel source, FileChannel target, long position, long key, long offset, int length, short validatorLength, long expiration) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length + validatorLength);
+		putHeader(buffer, key, expiration, length, validatorLength);
+		// Validator immediately follows tile
+		readFully(source, buffer, offset);
+		buffer.flip();
+		writeFully(target, buffer, position);
+		return position + buffer.limit();
+	}
+
+	private static void putHeader(ByteBuffer buffer, long key, long expiration, int length, int validatorLength)
+	{
+		buffer.put(getZoom(key)).putInt(getX(key)).putInt(getY(key)).putLong(expiration).putInt(length).putShort((short) validatorLength);
+	}
+
+	/**
+	 * Returns size of tile record on disk, called with lock held.
+	 */
+	private int getRecordSize(int slot)
+	{
+		return RECORD_HEADER_SIZE + lengths[slot] + validatorLengths[slot];
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		readFully(channel, buffer, position);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of tile archive");
+			position += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException
+	{
+		writeFully(channel, buffer, position);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	static long getKey(int z, int x, int y)
+	{
+		return OCCUPIED | ((long) z << 58) | ((long) x << 29) | y;
+	}
+
+	private static byte getZoom(long key)
+	{
+		return (byte) ((key >>> 58) & 0x1F);
+	}
+
+	private static int getX(long key)
+	{
+		return (int) ((key >>> 29) & 0x1FFFFFFF);
+	}
+
+	private static int getY(long key)
+	{
+		return (int) (key & 0x1FFFFFFF);
+	}
+
+	private static int getAccessTime()
+	{
+		return (int) (System.currentTimeMillis() / ACCESS_RESOLUTION);
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		offsets = new long[capacity];
+		lengths = new int[capacity];
+		validatorLengths = new short[capacity];
+		expirations = new long[capacity];
+		accesses = new int[capacity];
+		count = 0;
+	}
+
+	private int find(long key)
+	{
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0)
+		{
+			if (keys[slot] == key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void put(long key, long offset, int length, short validatorLength, long expiration, int access)
+	{
+		if ((count + 1) * 2 > keys.length)
+			grow();
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		if (keys[slot] == 0)
+			count++;
+		keys[slot] = key;
+		offsets[slot] = offset;
+		lengths[slot] = length;
+		validatorLengths[slot] = validatorLength;
+		expirations[slot] = expiration;
+		accesses[slot] = access;
+	}
+
+	/**
+	 * Removes entry shifting following entries of the cluster back, so that no tombstones are needed.
+	 */
+	private void remove(int slot)
+	{
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = (slot + 1) & mask;
+		while (keys[next] != 0)
+		{
+			int home = hash(keys[next]) & mask;
+			// Entry can fill the hole if its home slot is not between hole and its position
+			if (((next - home) & mask) >= ((next - hole) & mask))
+			{
+				keys[hole] = keys[next];
+				offsets[hole] = offsets[next];
+				lengths[hole] = lengths[next];
+				validatorLengths[hole] = validatorLengths[next];
+				expirations[hole] = expirations[next];
+				accesses[hole] = accesses[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = 0;
+		count--;
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		long[] oldOffsets = offsets;
+		int[] oldLengths = lengths;
+		short[] oldValidatorLengths = validatorLengths;
+		long[] oldExpirations = expirations;
+		int[] oldAccesses = accesses;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], oldOffsets[i], oldLengths[i], oldValidatorLengths[i], oldExpirations[i], oldAccesses[i]);
+		}
+	}
+}
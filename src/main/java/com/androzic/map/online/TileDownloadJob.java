@@ -0,0 +1,828 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.androzic.data.Route;
+import com.androzic.data.Track;
+import com.androzic.data.Track.TrackPoint;
+import com.androzic.data.Waypoint;
+
+/**
+ * Downloads all tiles of an area at a range of zoom levels into tile archive, so that they
+ * are available without network. Tiles are downloaded from lower zoom levels to higher,
+ * tiles that are fresh in archive are skipped. Download rate is limited. Position is saved
+ * in state file, interrupted job started again with the same parameters continues from it.
+ */
+public class TileDownloadJob
+{
+	private static final String TAG = "TileDownloadJob";
+
+	public static final int DEFAULT_CONNECTIONS = 2;
+	/**
+	 * Tiles per second
+	 */
+	public static final double DEFAULT_RATE = 4;
+	/**
+	 * Tile size used for estimation if archive is empty
+	 */
+	public static final int DEFAULT_TILE_SIZE = 16384;
+	private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+	private static final int STATE_MAGIC = 0x4144544a; // ADTJ
+	private static final int CHECKPOINT_INTERVAL = 100;
+	/**
+	 * Job is stopped when network looks unavailable, it can be resumed later
+	 */
+	private static final int MAX_SUCCESSIVE_FAILURES = 10;
+	/**
+	 * Failed tiles are retried after other tiles are processed
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	public interface OnDownloadProgressListener
+	{
+		/**
+		 * Called from download thread after each tile and when job ends.
+		 */
+		void onProgress(TileDownloadJob job, Progress progress);
+	}
+
+	public static class Estimate
+	{
+		public int minZoom;
+		public int maxZoom;
+		/**
+		 * Number of tiles at each zoom level starting from minimum zoom
+		 */
+		public long[] tiles;
+		public long totalTiles;
+		public long bytes;
+	}
+
+	public static class Progress
+	{
+		public long total;
+		/**
+		 * Tiles processed, including restored from saved position
+		 */
+		public long completed;
+		public int downloaded;
+		public int skipped;
+		/**
+		 * Expired tiles that have not changed on server
+		 */
+		public int revalidated;
+		/**
+		 * Failed download attempts, including retried ones
+		 */
+		public int errors;
+		/**
+		 * Tiles that have failed all attempts, they are retried when job is started again
+		 */
+		public int failed;
+		/**
+		 * Tiles that do not exist on server, they are not retried
+		 */
+		public int missing;
+		public long bytes;
+		public double tilesPerSecond;
+		public double bytesPerSecond;
+		public boolean running;
+		/**
+		 * Set when all tiles are processed, some of them may have failed
+		 */
+		public boolean finished;
+	}
+
+	/**
+	 * Set of tiles to download. Methods are called with job lock held.
+	 */
+	public static abstract class Area
+	{
+		/**
+		 * Returns number of tiles covering area at zoom level.
+		 */
+		abstract long getCount(int z);
+
+		/**
+		 * Returns tile at index as x << 32 | y.
+		 */
+		abstract long getTile(int z, long index);
+
+		/**
+		 * Returns value identifying area parameters.
+		 */
+		abstract long getSignature();
+	}
+
+	/**
+	 * Rectangle between two parallels and two meridians. Rectangle crosses antimeridian
+	 * if west is greater than east.
+	 */
+	public static Area getBoxArea(double north, double west, double south, double east)
+	{
+		return new BoxArea(north, west, south, east);
+	}
+
+	/**
+	 * Tiles that are closer to route line than buffer distance (in meters).
+	 */
+	public static Area getRouteArea(Route route, double buffer)
+	{
+		List<Waypoint> waypoints = route.getWaypoints();
+		double[][] points = new double[waypoints.size()][];
+		for (int i = 0; i < points.length; i++)
+		{
+			Waypoint wpt = waypoints.get(i);
+			points[i] = new double[] {wpt.latitude, wpt.longitude};
+		}
+		return new CorridorArea(points, buffer);
+	}
+
+	/**
+	 * Tiles that are closer to track line than buffer distance (in meters).
+	 */
+	public static Area getTrackArea(Track track, double buffer)
+	{
+		List<TrackPoint> trackPoints = track.getAllPoints();
+		double[][] points = new double[trackPoints.size()][];
+		for (int i = 0; i < points.length; i++)
+		{
+			TrackPoint tp = trackPoints.get(i);
+			points[i] = new double[] {tp.latitude, tp.longitude};
+		}
+		return new CorridorArea(points, buffer);
+	}
+
+	private final TileProvider provider;
+	private final TileArchive archive;
+	private final Area area;
+	private final int minZoom;
+	private final int maxZoom;
+	private final File state;
+	private final String userAgent;
+	private int connections = DEFAULT_CONNECTIONS;
+	private long interval = (long) (1000 / DEFAULT_RATE);
+	private OnDownloadProgressListener listener;
+
+	private final Object lock = new Object();
+	private int runningWorkers;
+	private boolean stopped;
+	private long total = -1;
+	// next tile to process
+	private int zoom;
+	private long index;
+	// unfinished tiles as zoom << 48 | index
+	private final HashSet<Long> inFlight = new HashSet<>();
+	// failed tiles waiting for another attempt
+	private final ArrayDeque<Long> retries = new ArrayDeque<>();
+	private final HashMap<Long, Integer> attempts = new HashMap<>();
+	private final Progress progress = new Progress();
+	private long startTime;
+	private long nextDownload;
+	private int successiveFailures;
+
+	/**
+	 * @param state file where job position is saved, can be null
+	 */
+	public TileDownloadJob(TileProvider provider, TileArchive archive, Area area, int minZoom, int maxZoom, File state, String userAgent)
+	{
+		this.provider = provider;
+		this.archive = archive;
+		this.area = area;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.state = state;
+		this.userAgent = userAgent;
+	}
+
+	public void setConnections(int connections)
+	{
+		this.connections = connections;
+	}
+
+	/**
+	 * Limits download rate, tiles per second.
+	 */
+	public void setRate(double rate)
+	{
+		interval = (long) (1000 / rate);
+	}
+
+	public void setOnDownloadProgressListener(OnDownloadProgressListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Calculates number of tiles and expected download size. Size is based on average size of
+	 * tiles already stored in archive.
+	 */
+	public Estimate getEstimate()
+	{
+		Estimate estimate = new Estimate();
+		estimate.minZoom = minZoom;
+		estimate.maxZoom = maxZoom;
+		estimate.tiles = new long[maxZoom - minZoom + 1];
+		synchronized (lock)
+		{
+			for (int z = minZoom; z <= maxZoom; z++)
+			{
+				estimate.tiles[z - minZoom] = area.getCount(z);
+				estimate.totalTiles += estimate.tiles[z - minZoom];
+			}
+			total = estimate.totalTiles;
+		}
+		long tileSize = DEFAULT_TILE_SIZE;
+		int count = archive.getCount();
+		if (count > 0)
+		{
+			long[] size = archive.getSize();
+			tileSize = (size[0] - size[1]) / count;
+		}
+		estimate.bytes = estimate.totalTiles * tileSize;
+		return estimate;
+	}
+
+	/**
+	 * Starts download threads, job continues from saved position if it has been interrupted.
+	 */
+	public void start()
+	{
+		synchronized (lock)
+		{
+			if (progress.running)
+				return;
+			if (total < 0)
+			{
+				total = 0;
+				for (int z = minZoom; z <= maxZoom; z++)
+					total += area.getCount(z);
+			}
+			zoom = minZoom;
+			index = 0;
+			restoreState();
+			stopped = false;
+			successiveFailures = 0;
+			progress.total = total;
+			progress.completed = getCompleted(zoom, index);
+			progress.finished = false;
+			progress.running = true;
+			startTime = System.currentTimeMillis();
+			nextDownload = startTime;
+			runningWorkers = connections;
+			for (int i = 0; i < connections; i++)
+			{
+				Thread worker = new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						work();
+					}
+				}, "TileDownloadJob-" + i);
+				worker.start();
+			}
+		}
+	}
+
+	/**
+	 * Stops download, position is saved and job can be resumed later.
+	 */
+	public void stop()
+	{
+		synchronized (lock)
+		{
+			stopped = true;
+			lock.notifyAll();
+		}
+	}
+
+	public boolean isRunning()
+	{
+		synchronized (lock)
+		{
+			return progress.running;
+		}
+	}
+
+	public Progress getProgress()
+	{
+		synchronized (lock)
+		{
+			return copyProgress();
+		}
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			int z;
+			long i;
+			long task;
+			int x, y;
+			synchronized (lock)
+			{
+				if (stopped)
+					break;
+				while (zoom <= maxZoom && index >= area.getCount(zoom))
+				{
+					zoom++;
+					index = 0;
+				}
+				if (zoom <= maxZoom)
+				{
+					z = zoom;
+					i = index;
+					index++;
+					task = ((long) z << 48) | i;
+					inFlight.add(task);
+				}
+				else if (! retries.isEmpty())
+				{
+					task = retries.poll();
+					z = (int) (task >>> 48);
+					i = task & 0xffffffffffffL;
+				}
+				else
+				{
+					break;
+				}
+				long tile = area.getTile(z, i);
+				x = (int) (tile >>> 32);
+				y = (int) tile;
+			}
+
+			byte[] data = null;
+			boolean revalidated = false;
+			boolean missing = false;
+			boolean skipped = archive.getExpiration(z, x, y) > System.currentTimeMillis();
+			if (! skipped)
+			{
+				// Threads are not interrupted as it would close archive file channel
+				synchronized (lock)
+				{
+					long now = System.currentTimeMillis();
+					long slot = Math.max(nextDownload, now);
+					nextDownload = slot + interval;
+					while (! stopped && (now = System.currentTimeMillis()) < slot)
+					{
+						try
+						{
+							lock.wait(slot - now);
+						}
+						catch (InterruptedException e)
+						{
+							// checked by loop condition
+						}
+					}
+					// Tile stays unfinished and is processed on resume
+					if (stopped)
+						break;
+				}
+				try
+				{
+					String uri = provider.getTileUri(x, y, (byte) z);
+					if (uri != null)
+					{
+						// Expired tile is revalidated
+						TileFetcher.Response response = TileFetcher.download(uri, userAgent, archive.getValidator(z, x, y));
+						long expiration = System.currentTimeMillis() + provider.tileExpiration;
+						if (response.isMissing())
+							missing = true;
+						else if (response.data != null)
+							archive.write(z, x, y, response.data, expiration, response.validator);
+						else if (archive.update(z, x, y, expiration))
+							revalidated = true;
+						data = response.data;
+					}
+				}
+				catch (IOException e)
+				{
+					Log.w(TAG, "Failed to download tile " + z + "/" + x + "/" + y + ": " + e.getMessage());
+					data = null;
+				}
+			}
+
+			Progress p;
+			synchronized (lock)
+			{
+				boolean done = true;
+				if (skipped)
+				{
+					progress.skipped++;
+				}
+				else if (revalidated)
+				{
+					progress.revalidated++;
+					successiveFailures = 0;
+				}
+				else if (data != null)
+				{
+					progress.downloaded++;
+					progress.bytes += data.length;
+					successiveFailures = 0;
+				}
+				else if (missing)
+				{
+					// Server has responded, tile is completed
+					progress.missing++;
+					successiveFailures = 0;
+				}
+				else
+				{
+					// Failed tile is kept unfinished so that saved position does not pass it
+					progress.errors++;
+					Integer n = attempts.get(task);
+					int attempt = n != null ? n + 1 : 1;
+					if (attempt < MAX_ATTEMPTS)
+					{
+						attempts.put(task, attempt);
+						retries.add(task);
+						done = false;
+					}
+					else
+					{
+						attempts.remove(task);
+						progress.failed++;
+					}
+					// Only first attempts tell if network is available, other tiles could fail on their own
+					if (attempt == 1 && ++successiveFailures >= MAX_SUCCESSIVE_FAILURES)
+					{
+						Log.w(TAG, "Too many failures, stopping download of " + provider.code);
+						stopped = true;
+					}
+				}
+				if (skipped || revalidated || missing || data != null)
+				{
+					inFlight.remove(task);
+					attempts.remove(task);
+				}
+				if (done)
+				{
+					progress.completed++;
+					if (progress.completed % CHECKPOINT_INTERVAL == 0)
+						saveState();
+				}
+				p = copyProgress();
+			}
+			if (listener != null)
+				listener.onProgress(this, p);
+		}
+
+		synchronized (lock)
+		{
+			runningWorkers--;
+			if (runningWorkers > 0)
+				return;
+		}
+		try
+		{
+			archive.flush();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		Progress p;
+		synchronized (lock)
+		{
+			progress.running = false;
+			progress.finished = ! stopped && zoom > maxZoom && retries.isEmpty();
+			// Position is kept before failed tiles so that they are retried on next start
+			if (progress.finished && inFlight.isEmpty())
+			{
+				if (state != null)
+					state.delete();
+			}
+			else
+			{
+				saveState();
+			}
+			inFlight.clear();
+			retries.clear();
+			attempts.clear();
+			p = copyProgress();
+		}
+		if (listener != null)
+			listener.onProgress(this, p);
+	}
+
+	/**
+	 * Called with lock held.
+	 */
+	private Progress copyProgress()
+	{
+		Progress p = new Progress();
+		p.total = progress.total;
+		p.completed = progress.completed;
+		p.downloaded = progress.downloaded;
+		p.skipped = progress.skipped;
+		p.revalidated = progress.revalidated;
+		p.errors = progress.errors;
+		p.failed = progress.failed;
+		p.missing = progress.missing;
+		p.bytes = progress.bytes;
+		p.running = progress.running;
+		p.finished = progress.finished;
+		long time = System.currentTimeMillis() - startTime;
+		if (time > 0)
+		{
+			p.tilesPerSecond = progress.downloaded * 1000. / time;
+			p.bytesPerSecond = progress.bytes * 1000. / time;
+		}
+		return p;
+	}
+
+	/**
+	 * Returns number of tiles before position, called with lock held.
+	 */
+	private long getCompleted(int z, long i)
+	{
+		long completed = i;
+		for (int zz = minZoom; zz < z && zz <= maxZoom; zz++)
+			completed += area.getCount(zz);
+		return completed;
+	}
+
+	private long getSignature()
+	{
+		long signature = area.getSignature();
+		signature = signature * 31 + provider.code.hashCode();
+		signature = signature * 31 + minZoom;
+		signature = signature * 31 + maxZoom;
+		return signature;
+	}
+
+	/**
+	 * Saves position before first unfinished tile, called with lock held.
+	 */
+	private void saveState()
+	{
+		if (state == null)
+			return;
+		int z = zoom;
+		long i = index;
+		for (long task : inFlight)
+		{
+			int tz = (int) (task >>> 48);
+			long ti = task & 0xffffffffffffL;
+			if (tz < z || tz == z && ti < i)
+			{
+				z = tz;
+				i = ti;
+			}
+		}
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(state));
+			try
+			{
+				out.writeInt(STATE_MAGIC);
+				out.writeLong(getSignature());
+				out.writeInt(z);
+				out.writeLong(i);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Restores saved position if it belongs to the same job, called with lock held.
+	 */
+	private void restoreState()
+	{
+		if (state == null || ! state.exists())
+			return;
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(state));
+			try
+			{
+				if (in.readInt() != STATE_MAGIC || in.readLong() != getSignature())
+					return;
+				int z = in.readInt();
+				long i = in.readLong();
+				if (z >= minZoom && z <= maxZoom + 1 && i >= 0)
+				{
+					zoom = z;
+					index = i;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns normalized mercator coordinate (0..1) of longitude.
+	 */
+	private static double getX(double lon)
+	{
+		return (lon + 180) / 360;
+	}
+
+	/**
+	 * Returns normalized mercator coordinate (0..1) of latitude.
+	 */
+	private static double getY(double lat)
+	{
+		double sin = Math.sin(Math.toRadians(Math.max(-85.0511, Math.min(85.0511, lat))));
+		return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+	}
+
+	private static int getTileNumber(double coordinate, int z)
+	{
+		int n = 1 << z;
+		return Math.max(0, Math.min(n - 1, (int) Math.floor(coordinate * n)));
+	}
+
+	private static class BoxArea extends Area
+	{
+		final double north, west, south, east;
+
+		BoxArea(double north, double west, double south, double east)
+		{
+			this.north = north;
+			this.west = west;
+			this.south = south;
+			this.east = east;
+		}
+
+		@Override
+		long getCount(int z)
+		{
+			long w = getWidth(z);
+			long h = getTileNumber(getY(south), z) - getTileNumber(getY(north), z) + 1;
+			return w * h;
+		}
+
+		@Override
+		long getTile(int z, long index)
+		{
+			int minX = getTileNumber(getX(west), z);
+			int minY = getTileNumber(getY(north), z);
+			int w = getWidth(z);
+			// Columns wrap around antimeridian
+			long x = (minX + index % w) % (1 << z);
+			long y = minY + index / w;
+			return x << 32 | y;
+		}
+
+		/**
+		 * Returns number of tile columns, columns of eastern part are counted after the last
+		 * column if area crosses antimeridian.
+		 */
+		private int getWidth(int z)
+		{
+			int n = 1 << z;
+			int minX = getTileNumber(getX(west), z);
+			int maxX = getTileNumber(getX(east), z);
+			if (west > east)
+				maxX += n;
+			return Math.min(n, maxX - minX + 1);
+		}
+
+		@Override
+		long getSignature()
+		{
+			return Arrays.hashCode(new double[] {north, west, south, east});
+		}
+	}
+
+	private static class CorridorArea extends Area
+	{
+		final double[][] points;
+		final double buffer;
+		// tiles of last requested zoom
+		int tilesZoom = -1;
+		long[] tiles;
+
+		CorridorArea(double[][] points, double buffer)
+		{
+			this.points = points;
+			this.buffer = buffer;
+		}
+
+		@Override
+		long getCount(int z)
+		{
+			return getTiles(z).length;
+		}
+
+		@Override
+		long getTile(int z, long index)
+		{
+			return getTiles(z)[(int) index];
+		}
+
+		@Override
+		long getSignature()
+		{
+			long signature = Double.doubleToLongBits(buffer);
+			for (double[] point : points)
+				signature = signature * 31 + Arrays.hashCode(point);
+			return signature;
+		}
+
+		private long[] getTiles(int z)
+		{
+			if (z == tilesZoom)
+				return tiles;
+
+			int n = 1 << z;
+			double tile = 1. / n;
+			HashSet<Long> cover = new HashSet<>();
+			for (int p = 0; p < points.length; p++)
+			{
+				double[] p1 = points[p];
+				double[] p2 = p + 1 < points.length ? points[p + 1] : p1;
+				if (p > 0 && p2 == p1)
+					break;
+				double x1 = getX(p1[1]);
+				double y1 = getY(p1[0]);
+				double x2 = getX(p2[1]);
+				double y2 = getY(p2[0]);
+				// Buffer in normalized units at segment latitude
+				double b = buffer / (EARTH_CIRCUMFERENCE * Math.cos(Math.toRadians((p1[0] + p2[0]) / 2)));
+				double step = (b > 0 ? Math.min(tile, b) : tile) / 2;
+				double length = Math.hypot(x2 - x1, y2 - y1);
+				int steps = Math.max(1, (int) Math.ceil(length / step));
+				for (int s = 0; s <= steps; s++)
+				{
+					double px = x1 + (x2 - x1) * s / steps;
+					double py = y1 + (y2 - y1) * s / steps;
+					int minX = getTileNumber(px - b, z);
+					int maxX = getTileNumber(px + b, z);
+					int minY = getTileNumber(py - b, z);
+					int maxY = getTileNumber(py + b, z);
+					for (int x = minX; x <= maxX; x++)
+					{
+						for (int y = minY; y <= maxY; y++)
+						{
+							// Distance from point to tile rectangle
+							double dx = Math.max(0, Math.max(x * tile - px, px - (x + 1) * tile));
+							double dy = Math.max(0, Math.max(y * tile - py, py - (y + 1) * tile));
+							if (dx * dx + dy * dy <= b * b)
+								cover.add((long) x << 32 | y);
+						}
+					}
+				}
+			}
+
+			tiles = new long[cover.size()];
+			int i = 0;
+			for (long key : cover)
+				tiles[i++] = key;
+			Arrays.sort(tiles);
+			tilesZoom = z;
+			return tiles;
+		}
+	}
+}
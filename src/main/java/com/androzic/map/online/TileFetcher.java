@@ -0,0 +1,651 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.androzic.map.TileScheduler;
+
+/**
+ * Downloads online map tiles with several threads. Number of simultaneous connections to
+ * each host is limited, connections are kept alive and reused by HttpURLConnection pool as
+ * response bodies are always read to the end. Requests for the same tile are coalesced
+ * while the tile is queued or being downloaded. Fresh tiles are served from tile archive
+ * without network access, downloaded tiles are stored in it with provider expiration time.
+ * Expired tiles are served from archive immediately and are revalidated with conditional
+ * request, unchanged tile gets new expiration time without being downloaded again.
+ * Queued requests are downloaded in order of their distance from focus point, requests
+ * that become far from focus are dropped and their listeners are notified so that tiles
+ * can be requested again when needed.
+ */
+public class TileFetcher
+{
+	private static final String TAG = "TileFetcher";
+
+	public static final int DEFAULT_THREADS = 6;
+	/**
+	 * Tile usage policies of most providers allow two connections per client
+	 */
+	public static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int LATENCY_SAMPLES = 256;
+
+	public interface OnTileFetchedListener
+	{
+		/**
+		 * Called from fetcher thread, or from caller thread if tile is found in archive.
+		 * Tile is null if it could not be obtained. Expired tile is passed from caller thread
+		 * and then, if it has changed on server, new tile is passed from fetcher thread.
+		 */
+		void onTileFetched(TileProvider provider, int z, int x, int y, byte[] tile);
+
+		/**
+		 * Called from thread that has dropped queued request: by {@link TileFetcher#retain},
+		 * {@link TileFetcher#setFocus}, {@link TileFetcher#cancel} or {@link TileFetcher#stop}.
+		 * Listeners which have got expired tile are notified too.
+		 */
+		void onTileCancelled(TileProvider provider, int z, int x, int y);
+	}
+
+	public static class Statistics
+	{
+		public int downloaded;
+		public int failed;
+		/**
+		 * Tiles that do not exist on server (HTTP client error)
+		 */
+		public int missing;
+		public int cached;
+		public int coalesced;
+		public int dropped;
+		/**
+		 * Expired tiles served while being revalidated
+		 */
+		public int stale;
+		/**
+		 * Expired tiles that have not changed on server
+		 */
+		public int revalidated;
+		public long bytes;
+		/**
+		 * Size of tiles that have not been downloaded because they have not changed
+		 */
+		public long savedBytes;
+		/**
+		 * Downloaded tiles per second of time when there were pending requests
+		 */
+		public double tilesPerSecond;
+		public long medianLatency;
+		public long p95Latency;
+	}
+
+	private final String userAgent;
+	private final int connectionsPerHost;
+	private final Thread[] workers;
+
+	private final Object lock = new Object();
+	private final TileScheduler<Request> queue = new TileScheduler<>();
+	// queued and running requests
+	private final HashMap<String, Request> requests = new HashMap<>();
+	// running requests per host
+	private final HashMap<String, Integer> connections = new HashMap<>();
+	private boolean stopped;
+
+	private final Statistics statistics = new Statistics();
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private int latencyCount;
+	private long busyStart;
+	private long busyTime;
+
+	public TileFetcher(String userAgent)
+	{
+		this(userAgent, DEFAULT_THREADS, DEFAULT_CONNECTIONS_PER_HOST);
+	}
+
+	public TileFetcher(String userAgent, int threads, int connectionsPerHost)
+	{
+		this.userAgent = userAgent;
+		this.connectionsPerHost = connectionsPerHost;
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					work();
+				}
+			}, "TileFetcher-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Requests tile. Tile is taken from archive if it is not expired, otherwise it is queued
+	 * for download. Archive can be null.
+	 */
+	public void fetch(TileProvider provider, TileArchive archive, int z, int x, int y, OnTileFetchedListener listener)
+	{
+		boolean stale = false;
+		long expiration = archive != null ? archive.getExpiration(z, x, y) : 0;
+		if (expiration > 0)
+		{
+			byte[] tile = null;
+			try
+			{
+				tile = archive.read(z, x, y, null);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			if (tile != null)
+			{
+				stale = expiration <= System.currentTimeMillis();
+				synchronized (lock)
+				{
+					if (stale)
+						statistics.stale++;
+					else
+						statistics.cached++;
+				}
+				// Map does not wait for network while expired tile is revalidated
+				listener.onTileFetched(provider, z, x, y, tile);
+				if (! stale)
+					return;
+			}
+		}
+
+		String uri = provider.getTileUri(x, y, (byte) z);
+		String host = null;
+		try
+		{
+			if (uri != null)
+				host = new URL(uri).getHost();
+		}
+		catch (MalformedURLException e)
+		{
+			e.printStackTrace();
+		}
+		if (host == null)
+		{
+			if (! stale)
+				listener.onTileFetched(provider, z, x, y, null);
+			return;
+		}
+
+		String key = getKey(provider, z, x, y);
+		synchronized (lock)
+		{
+			if (stopped)
+				return;
+			Request request = requests.get(key);
+			if (request != null)
+			{
+				(stale ? request.updateListeners : request.listeners).add(listener);
+				statistics.coalesced++;
+				return;
+			}
+			request = new Request(provider, archive, z, x, y, key, uri, host);
+			(stale ? request.updateListeners : request.listeners).add(listener);
+			if (requests.isEmpty())
+				busyStart = System.currentTimeMillis();
+			requests.put(key, request);
+			queue.add(request, z, x, y);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Drops queued requests of the provider which are not at specified zoom or are outside
+	 * of specified tile range. Tiles that are being downloaded are not affected.
+	 */
+	public void retain(TileProvider provider, int z, int minX, int minY, int maxX, int maxY)
+	{
+		List<Request> dropped = new ArrayList<>();
+		synchronized (lock)
+		{
+			for (int i = queue.size() - 1; i >= 0; i--)
+			{
+				Request request = queue.get(i);
+				if (request.provider != provider)
+					continue;
+				if (request.z == z && request.x >= minX && request.x <= maxX && request.y >= minY && request.y <= maxY)
+					continue;
+				queue.remove(i);
+				removeRequest(request);
+				statistics.dropped++;
+				dropped.add(request);
+			}
+		}
+		notifyCancelled(dropped);
+	}
+
+	/**
+	 * Sets point user looks at, queued requests are reordered and requests that are too far
+	 * from it are dropped. Tiles that are being downloaded are not affected.
+	 *
+	 * @param zoom zoom level of displayed map, NaN if unknown
+	 * @param bearing direction of movement in degrees, NaN if not moving
+	 */
+	public void setFocus(double latitude, double longitude, double zoom, double bearing)
+	{
+		List<Request> stale;
+		synchronized (lock)
+		{
+			stale = queue.setFocus(latitude, longitude, zoom, bearing);
+			for (Request request : stale)
+			{
+				removeRequest(request);
+				statistics.dropped++;
+			}
+		}
+		notifyCancelled(stale);
+	}
+
+	/**
+	 * Drops all queued requests of the provider.
+	 */
+	public void cancel(TileProvider provider)
+	{
+		retain(provider, -1, 0, 0, -1, -1);
+	}
+
+	public int getPendingCount()
+	{
+		synchronized (lock)
+		{
+			return requests.size();
+		}
+	}
+
+	public Statistics getStatistics()
+	{
+		Statistics s = new Statistics();
+		long[] samples;
+		synchronized (lock)
+		{
+			s.downloaded = statistics.downloaded;
+			s.failed = statistics.failed;
+			s.missing = statistics.missing;
+			s.cached = statistics.cached;
+			s.coalesced = statistics.coalesced;
+			s.dropped = statistics.dropped;
+			s.stale = statistics.stale;
+			s.revalidated = statistics.revalidated;
+			s.bytes = statistics.bytes;
+			s.savedBytes = statistics.savedBytes;
+			long time = busyTime;
+			if (! requests.isEmpty())
+				time += System.currentTimeMillis() - busyStart;
+			s.tilesPerSecond = time > 0 ? s.downloaded * 1000. / time : 0;
+			samples = new long[Math.min(latencyCount, LATENCY_SAMPLES)];
+			System.arraycopy(latencies, 0, samples, 0, samples.length);
+		}
+		if (samples.length > 0)
+		{
+			Arrays.sort(samples);
+			s.medianLatency = samples[samples.length / 2];
+			s.p95Latency = samples[Math.min(samples.length - 1, (int) Math.ceil(samples.length * 0.95) - 1)];
+		}
+		return s;
+	}
+
+	/**
+	 * Stops download threads, queued requests are dropped.
+	 */
+	public void stop()
+	{
+		List<Request> dropped = new ArrayList<>();
+		synchronized (lock)
+		{
+			stopped = true;
+			for (int i = 0; i < queue.size(); i++)
+				dropped.add(queue.get(i));
+			queue.clear();
+			requests.clear();
+			lock.notifyAll();
+		}
+		notifyCancelled(dropped);
+	}
+
+	/**
+	 * Notifies listeners of dropped requests, called without lock held.
+	 */
+	private static void notifyCancelled(List<Request> dropped)
+	{
+		for (Request request : dropped)
+		{
+			for (OnTileFetchedListener listener : request.listeners)
+				listener.onTileCancelled(request.provider, request.z, request.x, request.y);
+			for (OnTileFetchedListener listener : request.updateListeners)
+				listener.onTileCancelled(request.provider, request.z, request.x, request.y);
+		}
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			Request request = null;
+			synchronized (lock)
+			{
+				while (! stopped && (request = next()) == null)
+				{
+					try
+					{
+						lock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						// checked by loop condition
+					}
+				}
+				if (request == null)
+					return;
+				Integer n = connections.get(request.host);
+				connections.put(request.host, n == null ? 1 : n + 1);
+			}
+
+			long start = System.currentTimeMillis();
+			long now = start;
+			byte[] tile = null;
+			boolean changed = false;
+			boolean missing = false;
+			try
+			{
+				Response response = null;
+				try
+				{
+					String validator = request.archive != null ? request.archive.getValidator(request.z, request.x, request.y) : null;
+					response = download(request.uri, userAgent, validator);
+				}
+				catch (IOException e)
+				{
+					Log.w(TAG, "Failed to fetch " + request.uri + ": " + e.getMessage());
+				}
+				now = System.currentTimeMillis();
+
+				if (response != null && response.isMissing())
+				{
+					missing = true;
+				}
+				else if (response != null)
+				{
+					tile = response.data;
+					changed = tile != null;
+					try
+					{
+						long expiration = now + request.provider.tileExpiration;
+						if (request.archive == null)
+						{
+							// nothing to store
+						}
+						else if (changed)
+						{
+							request.archive.write(request.z, request.x, request.y, tile, expiration, response.validator);
+						}
+						else if (request.archive.update(request.z, request.x, request.y, expiration))
+						{
+							tile = request.archive.read(request.z, request.x, request.y, null);
+						}
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+			catch (RuntimeException e)
+			{
+				// Worker must survive unexpected failures of provider or archive
+				Log.e(TAG, "Failed to fetch " + request.uri, e);
+				tile = null;
+				changed = false;
+			}
+			finally
+			{
+				synchronized (lock)
+				{
+					int n = connections.get(request.host);
+					if (n > 1)
+						connections.put(request.host, n - 1);
+					else
+						connections.remove(request.host);
+					lock.notifyAll();
+				}
+			}
+
+			List<OnTileFetchedListener> listeners;
+			List<OnTileFetchedListener> updateListeners;
+			synchronized (lock)
+			{
+				listeners = request.listeners;
+				updateListeners = request.updateListeners;
+				if (! stopped)
+					removeRequest(request);
+				if (tile != null)
+				{
+					if (changed)
+					{
+						statistics.downloaded++;
+						statistics.bytes += tile.length;
+					}
+					else
+					{
+						statistics.revalidated++;
+						statistics.savedBytes += tile.length;
+					}
+					latencies[latencyCount % LATENCY_SAMPLES] = now - start;
+					latencyCount++;
+				}
+				else if (missing)
+				{
+					statistics.missing++;
+				}
+				else
+				{
+					statistics.failed++;
+				}
+			}
+
+			for (OnTileFetchedListener listener : listeners)
+				listener.onTileFetched(request.provider, request.z, request.x, request.y, tile);
+			// Listeners that have got expired tile are notified only if it has changed
+			if (changed)
+			{
+				for (OnTileFetchedListener listener : updateListeners)
+					listener.onTileFetched(request.provider, request.z, request.x, request.y, tile);
+			}
+		}
+	}
+
+	/**
+	 * Returns most important queued request which host has free connection, called with lock held.
+	 */
+	private Request next()
+	{
+		for (int i = 0; i < queue.size(); i++)
+		{
+			Request request = queue.get(i);
+			Integer n = connections.get(request.host);
+			if (n == null || n < connectionsPerHost)
+			{
+				queue.remove(i);
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called with lock held.
+	 */
+	private void removeRequest(Request request)
+	{
+		requests.remove(request.key);
+		if (requests.isEmpty())
+			busyTime += System.currentTimeMillis() - busyStart;
+	}
+
+	/**
+	 * Downloads tile, if validator is given request is conditional and response has no data
+	 * if tile has not been modified. Client errors are returned as missing tile as they
+	 * will not go away on retry, other errors are thrown.
+	 */
+	static Response download(String uri, String userAgent, String validator) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		if (userAgent != null)
+			connection.setRequestProperty("User-Agent", userAgent);
+		if (validator != null)
+		{
+			int separator = validator.indexOf('\n');
+			String etag = separator < 0 ? validator : validator.substring(0, separator);
+			String lastModified = separator < 0 ? "" : validator.substring(separator + 1);
+			if (etag.length() > 0)
+				connection.setRequestProperty("If-None-Match", etag);
+			if (lastModified.length() > 0)
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+		}
+
+		Response response = new Response();
+		int code = connection.getResponseCode();
+		response.code = code;
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED && validator != null)
+		{
+			// Response has no body but stream is closed to return connection to the pool
+			try
+			{
+				readFully(connection.getInputStream(), 0);
+			}
+			catch (IOException e)
+			{
+				// nothing to read
+			}
+			return response;
+		}
+		if (code != HttpURLConnection.HTTP_OK)
+		{
+			// Read error body so that connection can be reused
+			InputStream error = connection.getErrorStream();
+			if (error != null)
+				readFully(error, 0);
+			if (response.isMissing())
+				return response;
+			throw new IOException("HTTP " + code);
+		}
+		response.data = readFully(connection.getInputStream(), connection.getContentLength());
+		// Validator is kept as entity tag and modification date separated by new line
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (etag != null || lastModified != null)
+			response.validator = (etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "");
+		return response;
+	}
+
+	/**
+	 * Reads stream to the end and closes it, this returns connection to keep-alive pool.
+	 */
+	private static byte[] readFully(InputStream in, int length) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 16384);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String getKey(TileProvider provider, int z, int x, int y)
+	{
+		return provider.code + "/" + z + "/" + x + "/" + y;
+	}
+
+	static class Response
+	{
+		int code;
+		/**
+		 * Null if tile has not been modified or is missing
+		 */
+		byte[] data;
+		String validator;
+
+		/**
+		 * Returns true if server has no such tile (client error).
+		 */
+		boolean isMissing()
+		{
+			return code >= HttpURLConnection.HTTP_BAD_REQUEST && code < HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+	}
+
+	private static class Request
+	{
+		final TileProvider provider;
+		final TileArchive archive;
+		final int z;
+		final int x;
+		final int y;
+		final String key;
+		final String uri;
+		final String host;
+		final List<OnTileFetchedListener> listeners = new ArrayList<>(1);
+		// listeners that have been given expired tile
+		final List<OnTileFetchedListener> updateListeners = new ArrayList<>(1);
+
+		Request(TileProvider provider, TileArchive archive, int z, int x, int y, String key, String uri, String host)
+		{
+			this.provider = provider;
+			this.archive = archive;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+			this.key = key;
+			this.uri = uri;
+			this.host = host;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := ozfdecoder
+LOCAL_SRC_FILES := ozfdecoder.cpp ozfsimd.cpp
+LOCAL_LDLIBS    := -lz -llog
+
+# NEON kernels are built only for ARM. On ARMv7 ozfsimd_neon.cpp is the only unit
+# compiled with -mfpu=neon (.neon suffix), it is called after runtime CPU check.
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+    LOCAL_CFLAGS    += -DOZF_NEON
+    LOCAL_SRC_FILES += ozfsimd_neon.cpp.neon
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+    LOCAL_CFLAGS    += -DOZF_NEON
+    LOCAL_SRC_FILES += ozfsimd_neon.cpp
+endif
+
+include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,3 @@
+APP_ABI      := all
+APP_PLATFORM := android-8
+APP_OPTIM    := release
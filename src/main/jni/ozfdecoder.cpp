@@ -20,16 +20,22 @@
 
 #include <jni.h>
 #include <android/log.h>
+#include <pthread.h>
 #include <stdint.h>
 #include <stdlib.h>
 #include <stdio.h>
+#include <string.h>
 #include <math.h>
+#include <time.h>
 #include <zlib.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "ozfdecoder.h"
+#include "ozfsimd.h"
 
-#define	OZF_STREAM_DEFAULT		0
-#define OZF_STREAM_ENCRYPTED	1
-#define	OZF_TILE_WIDTH			64
-#define	OZF_TILE_HEIGHT			64
 #define D1_KEY_CYCLE			0x1A
 
 static unsigned char d1_key[] =
@@ -40,17 +46,18 @@ static unsigned char d1_key[] =
 	0xD8, 0x5B, 0x8B, 0xC0
 };
 
+// OZF structures are stored with 32 bit values, long is 64 bit on 64 bit platforms
 typedef struct
 {
-	long width;
-	long height;
-	short xtiles;
-	short ytiles;
+	int32_t width;
+	int32_t height;
+	int16_t xtiles;
+	int16_t ytiles;
 
-	long palette[256];
+	int32_t palette[256];
 } ozf_image_header;
 
-typedef unsigned long DWORD, *PDWORD, *LPDWORD;
+typedef uint32_t DWORD, *PDWORD, *LPDWORD;
 
 template <class T> const T& min ( const T& a, const T& b )
 {
@@ -61,10 +68,16 @@ extern "C" {
     JNIEXPORT jlong JNICALL Java_com_androzic_map_OzfDecoder_openImageNative(JNIEnv* env, jclass clazz, jstring path);
     JNIEXPORT void JNICALL Java_com_androzic_map_OzfDecoder_closeImageNative(JNIEnv* env, jclass clazz, jlong fileptr);
     JNIEXPORT jintArray JNICALL Java_com_androzic_map_OzfDecoder_getTileNative(JNIEnv* env, jclass clazz, jlong fileptr, jint type, jint key, jint depth, jint offset, jint i, jint w, jint h, jbyteArray p);
+    JNIEXPORT jboolean JNICALL Java_com_androzic_map_OzfDecoder_getTileIntoNative(JNIEnv* env, jclass clazz, jlong fileptr, jint type, jint key, jint depth, jint offset, jint i, jint w, jint h, jbyteArray p, jintArray dest);
 };
 
-void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth, int scale_offset, int i, unsigned char* decompressed);
-void Resize_HQ_4ch(unsigned char* src, int w1, int h1, unsigned char* dest, int w2, int h2);
+static pthread_key_t scratch_key;
+static pthread_once_t scratch_once = PTHREAD_ONCE_INIT;
+
+int ozf_get_tile(ozf_image* image, int type, unsigned char key, int encryption_depth, int scale_offset, int i, unsigned char* decompressed, ozf_scratch* scratch);
+void ozf_decode1(unsigned char *s, int n, unsigned char initial);
+static const unsigned char* ozf_read(ozf_image* image, unsigned long pos, unsigned long size, unsigned char* buf, int copy);
+void Resize_HQ_4ch(unsigned char* src, int w1, int h1, unsigned char* dest, int w2, int h2, int* columns);
 
 jlong Java_com_androzic_map_OzfDecoder_openImageNative(JNIEnv* env, jclass clazz, jstring path)
 {
@@ -75,14 +88,45 @@ jlong Java_com_androzic_map_OzfDecoder_openImageNative(JNIEnv* env, jclass clazz
 //   	if((*env)->ExceptionOccurred()) 
 //   		logstream_write("exception: %s, line: %s", __FILE__, __LINE__);
 
-	FILE* f = fopen(filename_utf8, "rb");
+	int fd = open(filename_utf8, O_RDONLY);
 
     if (filename_utf8)
     {
         env->ReleaseStringUTFChars(path, filename_utf8);
 	}
 
-    jlong ret = (jlong) f;
+	if (fd < 0)
+		return 0;
+
+	ozf_image* image = (ozf_image*) calloc(1, sizeof(ozf_image));
+
+	if (image == NULL)
+	{
+		close(fd);
+		return 0;
+	}
+
+	image->fd = fd;
+	pthread_mutex_init(&image->tables_lock, NULL);
+
+	// map the whole file so that tiles are read without system calls, large
+	// files may not fit into address space and are read with pread() then
+	struct stat st;
+	if (fstat(fd, &st) == 0 && st.st_size > 0)
+	{
+		void* map = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+		if (map != MAP_FAILED)
+		{
+			image->map = (const unsigned char*) map;
+			image->size = st.st_size;
+		}
+		else
+		{
+			__android_log_print(ANDROID_LOG_WARN, "OZF", "failed to map image, using pread");
+		}
+	}
+
+    jlong ret = (jlong) image;
     return ret;
 }
 
@@ -90,98 +134,268 @@ void Java_com_androzic_map_OzfDecoder_closeImageNative(JNIEnv* env, jclass clazz
 {
 	__android_log_print(ANDROID_LOG_INFO, "OZF", "native close image");
 
-	FILE* file = (FILE*) fileptr;
-	fclose(file);
+	ozf_image* image = (ozf_image*) fileptr;
+	if (image->map)
+		munmap((void*) image->map, image->size);
+	close(image->fd);
+	ozf_tile_table* table = image->tables;
+	while (table)
+	{
+		ozf_tile_table* next = table->next;
+		free(table->positions);
+		free(table);
+		table = next;
+	}
+	pthread_mutex_destroy(&image->tables_lock);
+	free(image);
 }
 
-jintArray Java_com_androzic_map_OzfDecoder_getTileNative(JNIEnv* env, jclass clazz, jlong fileptr, jint type, jint key, jint depth, jint offset, jint i, jint w, jint h, jbyteArray p)
+/*
+ * Returns decrypted tile positions of the scale, they are loaded on first access. Table is
+ * not used if scale header looks inconsistent, tiles are located by reading the file then.
+ */
+static ozf_tile_table* ozf_get_tile_table(ozf_image* image, int type, unsigned char key, int offset)
 {
-	//__android_log_print(ANDROID_LOG_INFO, "OZF", "native get tile\t%d\t%d\t%d\t%d\t%d\t%d\t%d", type, key, depth, offset, i, w, h);
+	ozf_tile_table* table = __atomic_load_n(&image->tables, __ATOMIC_ACQUIRE);
+	while (table && table->offset != offset)
+		table = table->next;
 
-	FILE* file = (FILE*) fileptr;
+	if (table)
+		return table;
 
-	unsigned char* tile = (unsigned char*) malloc(OZF_TILE_WIDTH*OZF_TILE_HEIGHT*4);
-	unsigned char* data = (unsigned char*) malloc(OZF_TILE_WIDTH*OZF_TILE_HEIGHT);
+	pthread_mutex_lock(&image->tables_lock);
 
-	if (tile == NULL || data == NULL)
-		return NULL;
+	// table could be loaded by another thread in the meantime
+	table = image->tables;
+	while (table && table->offset != offset)
+		table = table->next;
 
-	// read tile from ozf file
-	ozf_get_tile(file, type, (unsigned char) key, depth, offset, i, data);
+	if (table == NULL)
+	{
+		table = (ozf_tile_table*) calloc(1, sizeof(ozf_tile_table));
+		if (table == NULL)
+		{
+			pthread_mutex_unlock(&image->tables_lock);
+			return NULL;
+		}
+		table->offset = offset;
 
-	// convert to rgb
-	int tile_z = OZF_TILE_WIDTH * (OZF_TILE_HEIGHT - 1) * 4;
-	int tile_x = 0;
+		struct timespec start, end;
+		clock_gettime(CLOCK_MONOTONIC, &start);
 
-	jbyte* palette = (jbyte *) env->GetPrimitiveArrayCritical(p, (jboolean *)0);
+		// width, height, number of tiles in row and in column
+		int32_t size[2];
+		int16_t tiles[2];
+		int valid = ozf_read(image, offset, sizeof(size), (unsigned char*) size, 1) != NULL
+				&& ozf_read(image, offset + sizeof(size), sizeof(tiles), (unsigned char*) tiles, 1) != NULL;
 
-	for(int j = 0; j < OZF_TILE_WIDTH * OZF_TILE_HEIGHT; j++)
-	{
-		unsigned char c = data[j];
-
-		// flipping image vertical
-		//int tile_y = (OZF_TILE_WIDTH - 1) - (j / OZF_TILE_WIDTH);
-		//int tile_x = j % OZF_TILE_WIDTH;
-		//int tile_z = tile_y * OZF_TILE_WIDTH + tile_x;
-
-		unsigned char r = palette[c*4 + 2];
-		unsigned char g = palette[c*4 + 1];
-		unsigned char b = palette[c*4 + 0];
-		unsigned char a = 255;
-
-		// applying bgr -> argb
-		tile[tile_z + 0] = b; // r
-		tile[tile_z + 1] = g; // g
-		tile[tile_z + 2] = r; // b
-		tile[tile_z + 3] = a; // a
-
-		tile_x ++;
-		tile_z += 4;
-		if (tile_x == OZF_TILE_WIDTH)
+		if (valid && type == OZF_STREAM_ENCRYPTED)
+		{
+			for (int j = 0; j < 2; j++)
+			{
+				ozf_decode1((unsigned char*)&size[j], sizeof(int32_t), key);
+				ozf_decode1((unsigned char*)&tiles[j], sizeof(int16_t), key);
+			}
+		}
+
+		valid = valid && size[0] > 0 && size[1] > 0
+				&& tiles[0] == (size[0] + OZF_TILE_WIDTH - 1) / OZF_TILE_WIDTH
+				&& tiles[1] == (size[1] + OZF_TILE_HEIGHT - 1) / OZF_TILE_HEIGHT;
+
+		int count = valid ? tiles[0] * tiles[1] : 0;
+		// there is one position more than tiles, it marks end of the last tile
+		size_t length = (count + 1) * sizeof(uint32_t);
+		uint32_t* positions = valid ? (uint32_t*) malloc(length) : NULL;
+
+		if (positions && ozf_read(image, offset + sizeof(ozf_image_header), length, (unsigned char*) positions, 1))
+		{
+			if (type == OZF_STREAM_ENCRYPTED)
+			{
+				for (int j = 0; j <= count; j++)
+					ozf_decode1((unsigned char*)&positions[j], sizeof(uint32_t), key);
+			}
+			table->count = count;
+			table->positions = positions;
+
+			clock_gettime(CLOCK_MONOTONIC, &end);
+			long time = (end.tv_sec - start.tv_sec) * 1000000L + (end.tv_nsec - start.tv_nsec) / 1000;
+			__android_log_print(ANDROID_LOG_INFO, "OZF", "native tile table: %d tiles, %d bytes, %ld us", count, (int) (sizeof(ozf_tile_table) + length), time);
+		}
+		else
 		{
-			tile_x = 0;
-			tile_z -= OZF_TILE_WIDTH * 4 * 2;
+			// empty table is kept so that header is not read again
+			free(positions);
+			__android_log_print(ANDROID_LOG_WARN, "OZF", "native tile table is not loaded for scale at %d", offset);
 		}
+
+		table->next = image->tables;
+		// table is complete before it becomes visible to decoding threads
+		__atomic_store_n(&image->tables, table, __ATOMIC_RELEASE);
+	}
+
+	pthread_mutex_unlock(&image->tables_lock);
+
+	return table;
+}
+
+static void ozf_free_scratch(void* ptr)
+{
+	ozf_scratch* scratch = (ozf_scratch*) ptr;
+	free(scratch->compressed);
+	free(scratch->pixels);
+	free(scratch->columns);
+	if (scratch->stream_ready)
+		inflateEnd(&scratch->stream);
+	free(scratch);
+}
+
+static void ozf_create_scratch_key()
+{
+	pthread_key_create(&scratch_key, ozf_free_scratch);
+}
+
+/*
+ * Returns buffers of the calling thread, they are allocated on first use and are
+ * released when thread exits
+ */
+ozf_scratch* ozf_get_scratch()
+{
+	pthread_once(&scratch_once, ozf_create_scratch_key);
+	ozf_scratch* scratch = (ozf_scratch*) pthread_getspecific(scratch_key);
+	if (scratch == NULL)
+	{
+		scratch = (ozf_scratch*) calloc(1, sizeof(ozf_scratch));
+		if (scratch == NULL)
+			return NULL;
+		pthread_setspecific(scratch_key, scratch);
+	}
+	return scratch;
+}
+
+/*
+ * Returns scratch pixel buffer that can hold w * h pixels
+ */
+uint32_t* ozf_get_pixels(ozf_scratch* scratch, int w, int h)
+{
+	if (scratch->pixels_size < w * h)
+	{
+		free(scratch->pixels);
+		scratch->pixels = (uint32_t*) malloc(w * h * sizeof(uint32_t));
+		scratch->pixels_size = scratch->pixels ? w * h : 0;
 	}
-	env->ReleasePrimitiveArrayCritical(p, palette, 0);
-	free(data);
+	return scratch->pixels;
+}
+
+static int ozf_get_palette(JNIEnv* env, jbyteArray p, ozf_scratch* scratch)
+{
+	jsize n = env->GetArrayLength(p);
+	if (n > (jsize) sizeof(scratch->palette))
+		n = sizeof(scratch->palette);
+	env->GetByteArrayRegion(p, 0, n, (jbyte*) scratch->palette);
+	return n;
+}
+
+/*
+ * Decodes tile, converts it to ARGB and scales it to w x h pixels. Result is written
+ * directly to dest, which should hold w * h pixels.
+ */
+int ozf_decode_tile(ozf_image* image, int type, unsigned char key, int depth, int offset, int i, int w, int h, const unsigned char* palette, uint32_t* dest, ozf_scratch* scratch)
+{
+	unsigned char* data = scratch->data;
+
+	// read tile from ozf file, damaged tile is drawn blank so that stale data
+	// of previous tile is not shown
+	if (! ozf_get_tile(image, type, key, depth, offset, i, data, scratch))
+	{
+		for (int j = 0; j < w * h; j++)
+			dest[j] = OZF_CORRUPT_TILE_COLOR;
+		return 1;
+	}
+
+	// unscaled tile is converted in place
+	int scaled = w != OZF_TILE_WIDTH || h != OZF_TILE_HEIGHT;
+	unsigned char* tile = scaled ? (unsigned char*) scratch->tile : (unsigned char*) dest;
+
+	// convert to rgb, flipping image vertical and applying bgr -> argb
+	ozf_palette_lut(palette, scratch->lut);
+	ozf_expand_tile(data, scratch->lut, OZF_TILE_WIDTH, OZF_TILE_HEIGHT, (uint32_t*) tile);
 
 	// rescale
-	if (w != OZF_TILE_WIDTH || h != OZF_TILE_HEIGHT)
+	if (scaled)
 	{
-		unsigned char* scaled = (unsigned char*) malloc(w * h * 4);
-		Resize_HQ_4ch(tile, OZF_TILE_WIDTH, OZF_TILE_HEIGHT, scaled, w, h);
-		free(tile);
-		tile = scaled;
+		if (scratch->columns_size < w * 4)
+		{
+			free(scratch->columns);
+			scratch->columns = (int*) malloc(w * 4 * sizeof(int));
+			scratch->columns_size = scratch->columns ? w * 4 : 0;
+		}
+		Resize_HQ_4ch(tile, OZF_TILE_WIDTH, OZF_TILE_HEIGHT, (unsigned char*) dest, w, h, scratch->columns);
 	}
 
+	return 1;
+}
+
+/*
+ * Decodes tile into pixel buffer of the calling thread, returns NULL on failure
+ */
+static uint32_t* ozf_get_tile_pixels(JNIEnv* env, ozf_image* image, int type, unsigned char key, int depth, int offset, int i, int w, int h, jbyteArray p)
+{
+	ozf_scratch* scratch = ozf_get_scratch();
+
+	if (scratch == NULL)
+		return NULL;
+
+	uint32_t* tile = ozf_get_pixels(scratch, w, h);
+
 	if (tile == NULL)
 		return NULL;
 
-	jintArray pixels = env->NewIntArray(w * h);
+	ozf_get_palette(env, p, scratch);
 
-	if (pixels == NULL)
+	if (! ozf_decode_tile(image, type, key, depth, offset, i, w, h, scratch->palette, tile, scratch))
+		return NULL;
+
+	return tile;
+}
+
+jintArray Java_com_androzic_map_OzfDecoder_getTileNative(JNIEnv* env, jclass clazz, jlong fileptr, jint type, jint key, jint depth, jint offset, jint i, jint w, jint h, jbyteArray p)
+{
+	//__android_log_print(ANDROID_LOG_INFO, "OZF", "native get tile\t%d\t%d\t%d\t%d\t%d\t%d\t%d", type, key, depth, offset, i, w, h);
+
+	uint32_t* tile = ozf_get_tile_pixels(env, (ozf_image*) fileptr, type, (unsigned char) key, depth, offset, i, w, h, p);
+
+	if (tile == NULL)
 		return NULL;
 
-	jint* ptr = (jint *) env->GetPrimitiveArrayCritical(pixels, (jboolean *)0);
+	jintArray pixels = env->NewIntArray(w * h);
 
-	if (ptr == NULL)
+	if (pixels == NULL)
 		return NULL;
 
-	int n = w * h * sizeof(int);
-
-	memcpy(ptr, tile, n);
-	
-	env->ReleasePrimitiveArrayCritical(pixels, ptr, 0);
-	
-	free(tile);
-	
-//	if((*env)->ExceptionOccurred()) 
-//		logstream_write("exception: %s, line: %s", __FILE__, __LINE__);
-		
+	env->SetIntArrayRegion(pixels, 0, w * h, (jint*) tile);
+
 	return pixels;
 }
 
+/*
+ * Same as getTileNative but writes pixels to array supplied by caller, so that
+ * no Java object is allocated per tile. Array should hold at least w * h pixels.
+ */
+jboolean Java_com_androzic_map_OzfDecoder_getTileIntoNative(JNIEnv* env, jclass clazz, jlong fileptr, jint type, jint key, jint depth, jint offset, jint i, jint w, jint h, jbyteArray p, jintArray dest)
+{
+	if (dest == NULL || env->GetArrayLength(dest) < w * h)
+		return JNI_FALSE;
+
+	uint32_t* tile = ozf_get_tile_pixels(env, (ozf_image*) fileptr, type, (unsigned char) key, depth, offset, i, w, h, p);
+
+	if (tile == NULL)
+		return JNI_FALSE;
+
+	env->SetIntArrayRegion(dest, 0, w * h, (jint*) tile);
+
+	return JNI_TRUE;
+}
+
 void ozf_decode1(unsigned char *s, int n, unsigned char initial)
 {
 	long j;
@@ -198,92 +412,146 @@ void ozf_decode1(unsigned char *s, int n, unsigned char initial)
 	}
 }
 
-int ozf_decompress_tile(Bytef *dest, uLongf* destLen, const Bytef *source, uLong sourceLen)
+/*
+ * Inflates tile with the stream of the calling thread, stream is created on first
+ * use and is reset between tiles so that zlib window is not allocated for each tile
+ */
+int ozf_decompress_tile(ozf_scratch* scratch, Bytef *dest, uLongf* destLen, const Bytef *source, uLong sourceLen)
 {
-    z_stream stream;
+    z_stream* stream = &scratch->stream;
     int err;
 
-    stream.next_in = (Bytef*)source;
-    stream.avail_in = (uInt)sourceLen;
-
-    if ((uLong)stream.avail_in != sourceLen)
+    if ((uLong)(uInt)sourceLen != sourceLen || (uLong)(uInt)*destLen != *destLen)
 		return Z_BUF_ERROR;
 
-    stream.next_out = dest;
-    stream.avail_out = (uInt)*destLen;
-
-	if ((uLong)stream.avail_out != *destLen)
-		return Z_BUF_ERROR;
-
-    stream.zalloc = (alloc_func)0;
-    stream.zfree = (free_func)0;
-
-    err = inflateInit(&stream);
+	if (scratch->stream_ready)
+	{
+		err = inflateReset(stream);
+	}
+	else
+	{
+		stream->zalloc = (alloc_func)0;
+		stream->zfree = (free_func)0;
+		stream->opaque = (voidpf)0;
+		stream->next_in = Z_NULL;
+		stream->avail_in = 0;
+		err = inflateInit(stream);
+		scratch->stream_ready = err == Z_OK;
+	}
 
 	if (err != Z_OK)
 		return err;
 
-    err = inflate(&stream, Z_FINISH);
+    stream->next_in = (Bytef*)source;
+    stream->avail_in = (uInt)sourceLen;
+    stream->next_out = dest;
+    stream->avail_out = (uInt)*destLen;
+
+    err = inflate(stream, Z_FINISH);
 
     if (err != Z_STREAM_END)
-	{
-        inflateEnd(&stream);
         return err == Z_OK ? Z_BUF_ERROR : err;
-    }
-
-	*destLen = stream.total_out;
 
-    err = inflateEnd(&stream);
+	*destLen = stream->total_out;
 
-    return err;
+    return Z_OK;
 }
 
-void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth, int scale_offset, int i, unsigned char* decompressed)
+/*
+ * Reads data from image, returns pointer to it. Data is copied to buf only if file
+ * is not mapped or if copy is requested.
+ */
+static const unsigned char* ozf_read(ozf_image* image, unsigned long pos, unsigned long size, unsigned char* buf, int copy)
 {
-	fseek(file, scale_offset, SEEK_SET);
-	fseek(file, sizeof(ozf_image_header), SEEK_CUR);
-	fseek(file, i * sizeof(long), SEEK_CUR);
+	if (image->map)
+	{
+		if (pos > image->size || size > image->size - pos)
+			return NULL;
+		if (! copy)
+			return image->map + pos;
+		memcpy(buf, image->map + pos, size);
+		return buf;
+	}
+	if (pread(image->fd, buf, size, pos) != (ssize_t) size)
+		return NULL;
+	return buf;
+}
 
-	unsigned long tile_pos, tile_pos1;
+int ozf_get_tile(ozf_image* image, int type, unsigned char key, int encryption_depth, int scale_offset, int i, unsigned char* decompressed, ozf_scratch* scratch)
+{
+	ozf_tile_table* table = ozf_get_tile_table(image, type, key, scale_offset);
 
-	fread(&tile_pos, sizeof(long), 1, file);
-	fread(&tile_pos1, sizeof(long), 1, file);
+	// tile positions are stored as 32 bit values regardless of platform
+	uint32_t positions[2];
 
-	if (type == OZF_STREAM_ENCRYPTED)
+	if (table && i >= 0 && i < table->count)
 	{
-		ozf_decode1((unsigned char*)&tile_pos, sizeof(long), key);
-		ozf_decode1((unsigned char*)&tile_pos1, sizeof(long), key);
+		positions[0] = table->positions[i];
+		positions[1] = table->positions[i + 1];
 	}
+	else
+	{
+		if (ozf_read(image, scale_offset + sizeof(ozf_image_header) + i * sizeof(uint32_t), sizeof(positions), (unsigned char*) positions, 1) == NULL)
+			return 0;
+
+		if (type == OZF_STREAM_ENCRYPTED)
+		{
+			ozf_decode1((unsigned char*)&positions[0], sizeof(uint32_t), key);
+			ozf_decode1((unsigned char*)&positions[1], sizeof(uint32_t), key);
+		}
+	}
+
+	unsigned long tile_pos = positions[0];
+	unsigned long tile_pos1 = positions[1];
+
+	// zlib stream has at least two byte header
+	if (tile_pos1 < tile_pos + 2)
+		return 0;
 
 	unsigned long tilesize = tile_pos1 - tile_pos;
 
-	unsigned char* tile = (unsigned char*) malloc(tilesize);
+	// encrypted tile is decoded in place so it is copied even if file is mapped
+	int copy = type == OZF_STREAM_ENCRYPTED;
 
-	if (tile == NULL)
-		return;
+	if ((copy || image->map == NULL) && scratch->compressed_size < tilesize)
+	{
+		free(scratch->compressed);
+		scratch->compressed = (unsigned char*) malloc(tilesize);
+		scratch->compressed_size = scratch->compressed ? tilesize : 0;
+		if (scratch->compressed == NULL)
+			return 0;
+	}
 
-	fseek(file, tile_pos, SEEK_SET);
-	fread(tile, tilesize, 1, file);
+	unsigned char* tile = (unsigned char*) ozf_read(image, tile_pos, tilesize, scratch->compressed, copy);
+
+	if (tile == NULL)
+		return 0;
 
 	if (type == OZF_STREAM_ENCRYPTED)
 	{
 		if (encryption_depth == -1)
 			ozf_decode1(tile, tilesize, key);
 		else
-			ozf_decode1(tile, encryption_depth, key);
+			ozf_decode1(tile, min((unsigned long) encryption_depth, tilesize), key);
 	}
 
 	if (!(tile[0] == 0x78 && tile[1] == 0xda))  // zlib signature
 	{
 		__android_log_print(ANDROID_LOG_ERROR, "OZF", "zlib signature verification failed");
-		return;
+		return 0;
 	}
 
 	unsigned long decompressed_size = OZF_TILE_WIDTH * OZF_TILE_HEIGHT;
 
-	long n = ozf_decompress_tile((Bytef*) decompressed, (uLongf*) &decompressed_size, (const Bytef*) tile, (uLong) tilesize);
+	int err = ozf_decompress_tile(scratch, (Bytef*) decompressed, (uLongf*) &decompressed_size, (const Bytef*) tile, (uLong) tilesize);
 
-	free(tile);
+	if (err != Z_OK || decompressed_size != OZF_TILE_WIDTH * OZF_TILE_HEIGHT)
+	{
+		__android_log_print(ANDROID_LOG_ERROR, "OZF", "tile decompression failed: %d", err);
+		return 0;
+	}
+
+	return 1;
 }
 
 /*
@@ -332,22 +600,26 @@ void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth,
   for yours.  Enjoy!
 */
 
-void Resize_HQ_4ch(unsigned char* src, int w1, int h1, unsigned char* dest, int w2, int h2)
+void Resize_HQ_4ch(unsigned char* src, int w1, int h1, unsigned char* dest, int w2, int h2, int* columns)
 {
     // Both buffers must be in ARGB format, and a scanline should be w*4 bytes.
 
     // NOTE: THIS WILL OVERFLOW for really major downsizing (2800x2800 to 1x1 or more)
     // (2800 ~ sqrt(2^23)) - for a lazy fix, just call this in two passes.
 
-	int* g_px1a    = NULL;
-	int  g_px1a_w  = 0;
-	int* g_px1ab   = NULL;
-	int  g_px1ab_w = 0;
+	// column cache can be provided by caller, it should hold w2*4 values
+	int* g_px1a    = columns;
+	int  g_px1a_w  = columns ? w2*2 : 0;
+	int* g_px1ab   = columns;
+	int  g_px1ab_w = columns ? w2*2 : 0;
 
     if (w2*2==w1 && h2*2==h1)
     {
         // perfect 2x2:1 case - faster code
         // (especially important because this is common for generating low (large) mip levels!)
+        if (ozf_resize_half(src, w1, h1, dest))
+            return;
+
         DWORD *dsrc  = (DWORD*)src;
         DWORD *ddest = (DWORD*)dest;
 
@@ -556,6 +828,6 @@ void Resize_HQ_4ch(unsigned char* src, int w1, int h1, unsigned char* dest, int
         }
     }
 
-	if (g_px1a) delete [] g_px1a;
-	if (g_px1ab) delete [] g_px1ab;
+	if (g_px1a != columns) delete [] g_px1a;
+	if (g_px1ab != columns) delete [] g_px1ab;
 }
@@ -0,0 +1,84 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef OZFDECODER_H
+#define OZFDECODER_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stddef.h>
+#include <zlib.h>
+
+#define	OZF_STREAM_DEFAULT		0
+#define OZF_STREAM_ENCRYPTED	1
+#define	OZF_TILE_WIDTH			64
+#define	OZF_TILE_HEIGHT			64
+// transparent, so that underlying map is visible through damaged tile
+#define OZF_CORRUPT_TILE_COLOR	0x00000000
+
+/*
+ * Decrypted tile positions of one scale, tile i occupies [positions[i], positions[i + 1]).
+ * Table with zero count marks scale which positions are read from file.
+ */
+typedef struct ozf_tile_table
+{
+	int offset;
+	int count;
+	uint32_t* positions;
+	struct ozf_tile_table* next;
+} ozf_tile_table;
+
+/*
+ * Opened image, file is memory mapped if address space permits, otherwise it is read with pread()
+ */
+typedef struct
+{
+	int fd;
+	const unsigned char* map;
+	size_t size;
+	// tables are only added while image is open, readers do not lock
+	ozf_tile_table* tables;
+	pthread_mutex_t tables_lock;
+} ozf_image;
+
+/*
+ * Buffers reused by the thread between tiles
+ */
+typedef struct
+{
+	unsigned char data[OZF_TILE_WIDTH * OZF_TILE_HEIGHT];
+	unsigned char palette[1024];
+	uint32_t lut[256];
+	uint32_t tile[OZF_TILE_WIDTH * OZF_TILE_HEIGHT];
+	unsigned char* compressed;
+	unsigned long compressed_size;
+	uint32_t* pixels;
+	int pixels_size;
+	int* columns;
+	int columns_size;
+	z_stream stream;
+	int stream_ready;
+} ozf_scratch;
+
+ozf_scratch* ozf_get_scratch();
+uint32_t* ozf_get_pixels(ozf_scratch* scratch, int w, int h);
+int ozf_decode_tile(ozf_image* image, int type, unsigned char key, int depth, int offset, int i, int w, int h, const unsigned char* palette, uint32_t* dest, ozf_scratch* scratch);
+
+#endif
@@ -0,0 +1,183 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <android/log.h>
+#include <pthread.h>
+#include <string.h>
+
+// OZF_NEON is defined by Android.mk for ARM ABIs, NEON kernels are in ozfsimd_neon.cpp
+#if ! defined(OZF_NEON) && defined(__SSE2__)
+#include <emmintrin.h>
+#define OZF_SSE2
+#endif
+
+#if defined(OZF_NEON) && ! defined(__aarch64__)
+#include <fcntl.h>
+#include <unistd.h>
+#endif
+
+#include "ozfsimd.h"
+
+// AT_HWCAP entry of auxiliary vector and its NEON bit on 32 bit ARM
+#define OZF_AT_HWCAP		16
+#define OZF_HWCAP_NEON		(1 << 12)
+
+static pthread_once_t simd_once = PTHREAD_ONCE_INIT;
+static int simd_supported = 0;
+
+static void detect_simd()
+{
+#if defined(__aarch64__) || defined(OZF_SSE2)
+	// NEON is mandatory on ARMv8, SSE2 is part of x86 ABIs
+	simd_supported = 1;
+#elif defined(OZF_NEON)
+	// NEON is optional on ARMv7, getauxval() is not available on old platforms
+	int fd = open("/proc/self/auxv", O_RDONLY);
+	if (fd >= 0)
+	{
+		unsigned long entry[2];
+		while (read(fd, entry, sizeof(entry)) == sizeof(entry) && entry[0] != 0)
+		{
+			if (entry[0] == OZF_AT_HWCAP)
+			{
+				simd_supported = (entry[1] & OZF_HWCAP_NEON) != 0;
+				break;
+			}
+		}
+		close(fd);
+	}
+#endif
+	__android_log_print(ANDROID_LOG_INFO, "OZF", "native simd: %s", simd_supported ? "yes" : "no");
+}
+
+int ozf_simd_supported()
+{
+	pthread_once(&simd_once, detect_simd);
+	return simd_supported;
+}
+
+void ozf_palette_lut(const unsigned char* palette, uint32_t* lut)
+{
+	// pixel keeps palette byte order, fourth (unused) byte becomes alpha
+	int i = 0;
+#if defined(OZF_NEON)
+	if (ozf_simd_supported())
+	{
+		ozf_palette_lut_neon(palette, lut);
+		return;
+	}
+#elif defined(OZF_SSE2)
+	if (ozf_simd_supported())
+	{
+		__m128i alpha = _mm_set1_epi32(0xFF000000);
+		for (; i < 256; i += 4)
+			_mm_storeu_si128((__m128i*) (lut + i), _mm_or_si128(_mm_loadu_si128((const __m128i*) (palette + i * 4)), alpha));
+	}
+#endif
+	for (; i < 256; i++)
+	{
+		uint32_t c;
+		memcpy(&c, palette + i * 4, 4);
+		lut[i] = c | 0xFF000000;
+	}
+}
+
+void ozf_expand_tile(const unsigned char* data, const uint32_t* lut, int w, int h, uint32_t* dest)
+{
+	// table lookup is a gather which neither NEON nor SSE2 can do, but with
+	// flip moved to row addressing inner loop is a plain load and store
+	for (int y = 0; y < h; y++)
+	{
+		const unsigned char* src = data + y * w;
+		uint32_t* row = dest + (h - 1 - y) * w;
+		for (int x = 0; x < w; x += 4)
+		{
+			row[x + 0] = lut[src[x + 0]];
+			row[x + 1] = lut[src[x + 1]];
+			row[x + 2] = lut[src[x + 2]];
+			row[x + 3] = lut[src[x + 3]];
+		}
+	}
+}
+
+/*
+ * Portable routine divides each 2x2 sum by 4 and adds the remainder to the next
+ * pixel, so output pixel k equals C(k) / 4 - C(k - 1) / 4 where C is running sum
+ * of the channel over all previous blocks. Vector code computes C with prefix sums
+ * in 16 bit lanes: wrapping is harmless as 65536 is a multiple of 4 and the
+ * difference always fits in a byte.
+ */
+int ozf_resize_half(const unsigned char* src, int w1, int h1, unsigned char* dest)
+{
+	int w2 = w1 / 2;
+	int h2 = h1 / 2;
+
+#if defined(OZF_NEON)
+	if (! ozf_simd_supported() || w2 % 8 != 0)
+		return 0;
+
+	ozf_resize_half_neon(src, w1, h1, dest);
+	return 1;
+#elif defined(OZF_SSE2)
+	if (! ozf_simd_supported() || w2 % 4 != 0)
+		return 0;
+
+	__m128i zero = _mm_setzero_si128();
+	__m128i low = _mm_set1_epi16(0x00FF);
+	__m128i rgb = _mm_set1_epi32(0x00FFFFFF);
+	// two copies of running channel sums
+	__m128i carry = zero;
+	for (int y2 = 0; y2 < h2; y2++)
+	{
+		const unsigned char* upper = src + y2 * 2 * w1 * 4;
+		const unsigned char* lower = upper + w1 * 4;
+		for (int x2 = 0; x2 < w2; x2 += 4)
+		{
+			__m128i u0 = _mm_loadu_si128((const __m128i*) (upper + x2 * 8));
+			__m128i u1 = _mm_loadu_si128((const __m128i*) (upper + x2 * 8 + 16));
+			__m128i l0 = _mm_loadu_si128((const __m128i*) (lower + x2 * 8));
+			__m128i l1 = _mm_loadu_si128((const __m128i*) (lower + x2 * 8 + 16));
+			// vertical sums of pixel pairs widened to 16 bits
+			__m128i v0 = _mm_add_epi16(_mm_unpacklo_epi8(u0, zero), _mm_unpacklo_epi8(l0, zero));
+			__m128i v1 = _mm_add_epi16(_mm_unpackhi_epi8(u0, zero), _mm_unpackhi_epi8(l0, zero));
+			__m128i v2 = _mm_add_epi16(_mm_unpacklo_epi8(u1, zero), _mm_unpacklo_epi8(l1, zero));
+			__m128i v3 = _mm_add_epi16(_mm_unpackhi_epi8(u1, zero), _mm_unpackhi_epi8(l1, zero));
+			// horizontal sums, two output pixels per register
+			__m128i s01 = _mm_unpacklo_epi64(_mm_add_epi16(v0, _mm_srli_si128(v0, 8)), _mm_add_epi16(v1, _mm_srli_si128(v1, 8)));
+			__m128i s23 = _mm_unpacklo_epi64(_mm_add_epi16(v2, _mm_srli_si128(v2, 8)), _mm_add_epi16(v3, _mm_srli_si128(v3, 8)));
+
+			__m128i r01 = _mm_add_epi16(_mm_add_epi16(s01, _mm_slli_si128(s01, 8)), carry);
+			carry = _mm_unpackhi_epi64(r01, r01);
+			__m128i r23 = _mm_add_epi16(_mm_add_epi16(s23, _mm_slli_si128(s23, 8)), carry);
+			carry = _mm_unpackhi_epi64(r23, r23);
+
+			__m128i o01 = _mm_sub_epi16(_mm_srli_epi16(r01, 2), _mm_srli_epi16(_mm_sub_epi16(r01, s01), 2));
+			__m128i o23 = _mm_sub_epi16(_mm_srli_epi16(r23, 2), _mm_srli_epi16(_mm_sub_epi16(r23, s23), 2));
+			// portable routine does not keep alpha
+			__m128i out = _mm_packus_epi16(_mm_and_si128(o01, low), _mm_and_si128(o23, low));
+			_mm_storeu_si128((__m128i*) dest, _mm_and_si128(out, rgb));
+			dest += 16;
+		}
+	}
+	return 1;
+#else
+	return 0;
+#endif
+}
@@ -0,0 +1,62 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef OZFSIMD_H
+#define OZFSIMD_H
+
+#include <stdint.h>
+
+/*
+ * Vectorized tile conversion routines. NEON (ARM) or SSE2 (x86) code is used if
+ * it was compiled in and the CPU supports it, otherwise portable code is used.
+ */
+
+/* Returns 1 if vector instructions are used */
+int ozf_simd_supported();
+
+/*
+ * Converts 256 entry BGRx palette into lookup table of opaque ARGB pixels
+ */
+void ozf_palette_lut(const unsigned char* palette, uint32_t* lut);
+
+/*
+ * Expands palette indexed tile into ARGB pixels flipping it vertically,
+ * OZF tiles are stored bottom up
+ */
+void ozf_expand_tile(const unsigned char* data, const uint32_t* lut, int w, int h, uint32_t* dest);
+
+/*
+ * Downscales ARGB image exactly in half. Result is identical to the portable
+ * routine in Resize_HQ_4ch, which carries rounding remainder from pixel to pixel.
+ * Returns 0 if vector code is not available for the image width, nothing is
+ * written then.
+ */
+int ozf_resize_half(const unsigned char* src, int w1, int h1, unsigned char* dest);
+
+#if defined(OZF_NEON)
+/*
+ * NEON kernels, they must not be called if ozf_simd_supported() returns 0.
+ * Downscale requires half width to be a multiple of 8.
+ */
+void ozf_palette_lut_neon(const unsigned char* palette, uint32_t* lut);
+void ozf_resize_half_neon(const unsigned char* src, int w1, int h1, unsigned char* dest);
+#endif
+
+#endif
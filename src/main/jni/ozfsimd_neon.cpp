@@ -0,0 +1,72 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <arm_neon.h>
+
+#include "ozfsimd.h"
+
+/*
+ * NEON kernels. On 32 bit ARM this unit is the only one compiled with -mfpu=neon
+ * (.neon suffix in Android.mk) and is called only after runtime check, so that
+ * compiler can not put NEON instructions into code run on CPUs without it.
+ */
+
+void ozf_palette_lut_neon(const unsigned char* palette, uint32_t* lut)
+{
+	uint32x4_t alpha = vdupq_n_u32(0xFF000000);
+	for (int i = 0; i < 256; i += 4)
+		vst1q_u32(lut + i, vorrq_u32(vreinterpretq_u32_u8(vld1q_u8(palette + i * 4)), alpha));
+}
+
+void ozf_resize_half_neon(const unsigned char* src, int w1, int h1, unsigned char* dest)
+{
+	int w2 = w1 / 2;
+	int h2 = h1 / 2;
+
+	uint16x8_t zero = vdupq_n_u16(0);
+	uint16x8_t carry[3] = { zero, zero, zero };
+	for (int y2 = 0; y2 < h2; y2++)
+	{
+		const unsigned char* upper = src + y2 * 2 * w1 * 4;
+		const unsigned char* lower = upper + w1 * 4;
+		for (int x2 = 0; x2 < w2; x2 += 8)
+		{
+			// 16 source pixels split into channels
+			uint8x16x4_t u = vld4q_u8(upper + x2 * 8);
+			uint8x16x4_t l = vld4q_u8(lower + x2 * 8);
+			uint8x8x4_t out;
+			for (int c = 0; c < 3; c++)
+			{
+				uint16x8_t sum = vaddq_u16(vpaddlq_u8(u.val[c]), vpaddlq_u8(l.val[c]));
+				uint16x8_t run = vaddq_u16(sum, vextq_u16(zero, sum, 7));
+				run = vaddq_u16(run, vextq_u16(zero, run, 6));
+				run = vaddq_u16(run, vextq_u16(zero, run, 4));
+				run = vaddq_u16(run, carry[c]);
+				uint16x8_t prev = vsubq_u16(run, sum);
+				out.val[c] = vmovn_u16(vsubq_u16(vshrq_n_u16(run, 2), vshrq_n_u16(prev, 2)));
+				carry[c] = vdupq_n_u16(vgetq_lane_u16(run, 7));
+			}
+			// portable routine does not keep alpha
+			out.val[3] = vdup_n_u8(0);
+			vst4_u8(dest, out);
+			dest += 32;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.androzic.data.Bounds;
+
+public class CoveringMapsCacheTest
+{
+	private MockMap map;
+
+	@Before
+	public void setUp()
+	{
+		map = new MockMap(0, 0);
+		map.id = 1;
+		map.mpp = 10;
+	}
+
+	@Test
+	public void smallMovementKeepsKey()
+	{
+		CoveringMapsCache.Key key = CoveringMapsCache.key(map, area(55.70, 37.50, 55.80, 37.70), true, false);
+		CoveringMapsCache.Key moved = CoveringMapsCache.key(map, area(55.701, 37.502, 55.801, 37.702), true, false);
+		assertEquals(key, moved);
+		assertEquals(key.hashCode(), moved.hashCode());
+	}
+
+	@Test
+	public void snappedAreaContainsQueryArea()
+	{
+		for (double lat = -89; lat < 89; lat += 7.3)
+		{
+			for (double lon = -179; lon < 179; lon += 11.7)
+			{
+				for (double size = 0; size < 5; size += 0.7)
+				{
+					Bounds area = area(lat, lon, Math.min(lat + size, 90), Math.min(lon + size * 2, 180));
+					Bounds snapped = CoveringMapsCache.key(map, area, false, true).area;
+					assertTrue(snapped.minLat <= area.minLat && snapped.maxLat >= area.maxLat);
+					assertTrue(snapped.minLon <= area.minLon && snapped.maxLon >= area.maxLon);
+					assertTrue(snapped.minLat >= -90 && snapped.maxLat <= 90);
+					assertTrue(snapped.minLon >= -180 && snapped.maxLon <= 180);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void queryParametersArePartOfKey()
+	{
+		Bounds area = area(10, 10, 11, 11);
+		CoveringMapsCache.Key key = CoveringMapsCache.key(map, area, true, false);
+		assertFalse(key.equals(CoveringMapsCache.key(map, area, false, false)));
+		assertFalse(key.equals(CoveringMapsCache.key(map, area, true, true)));
+		assertFalse(key.equals(CoveringMapsCache.key(map, area(10, 10, 14, 14), true, false)));
+		MockMap other = new MockMap(0, 0);
+		other.id = 2;
+		other.mpp = map.mpp;
+		assertFalse(key.equals(CoveringMapsCache.key(other, area, true, false)));
+		map.mpp = 20;
+		assertFalse(key.equals(CoveringMapsCache.key(map, area, true, false)));
+	}
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted()
+	{
+		CoveringMapsCache cache = new CoveringMapsCache();
+		List<BaseMap> result = new ArrayList<>();
+		List<CoveringMapsCache.Key> keys = new ArrayList<>();
+		for (int i = 0; i < 17; i++)
+			keys.add(CoveringMapsCache.key(map, area(i * 2, 0, i * 2 + 1, 1), true, false));
+
+		for (int i = 0; i < 16; i++)
+			cache.put(keys.get(i), result);
+		// Touch the eldest entry so that the second one is evicted
+		assertSame(result, cache.get(keys.get(0)));
+		cache.put(keys.get(16), result);
+		assertNotNull(cache.get(keys.get(0)));
+		assertNull(cache.get(keys.get(1)));
+		assertNotNull(cache.get(keys.get(16)));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache.invalidate();
+		assertNull(cache.get(keys.get(0)));
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void pointAreaIsAccepted()
+	{
+		Bounds area = area(45, 45, 45, 45);
+		CoveringMapsCache.Key key = CoveringMapsCache.key(map, area, true, false);
+		assertTrue(key.area.minLat <= 45 && key.area.maxLat >= 45);
+		assertEquals(key, CoveringMapsCache.key(map, area, true, false));
+	}
+
+	private static Bounds area(double minLat, double minLon, double maxLat, double maxLon)
+	{
+		Bounds area = new Bounds();
+		area.minLat = minLat;
+		area.minLon = minLon;
+		area.maxLat = maxLat;
+		area.maxLon = maxLon;
+		return area;
+	}
+}
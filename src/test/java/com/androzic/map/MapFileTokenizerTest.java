@@ -0,0 +1,208 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MapFileTokenizerTest
+{
+	@Test
+	public void linesMatchBufferedReader() throws IOException
+	{
+		String text = "OziExplorer Map Data File Version 2.2\r\nmap\r\n\r\n\n\rlast\r";
+		assertEquals(readLines(new BufferedReader(new StringReader(text))), readLines(text, false));
+		assertEquals(readLines(new BufferedReader(new StringReader(text))), readLines(text, true));
+		text = "no terminator";
+		assertEquals(readLines(new BufferedReader(new StringReader(text))), readLines(text, true));
+		assertTrue(readLines("", false).isEmpty());
+	}
+
+	@Test
+	public void longLinesAndManyFieldsAreKept() throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			builder.append(i).append(',');
+		builder.append("end");
+		MapFileTokenizer tokenizer = new MapFileTokenizer(new StringReader(builder.toString()));
+		assertTrue(tokenizer.next());
+		assertEquals(1001, tokenizer.fieldCount());
+		assertEquals(999, tokenizer.intField(999));
+		assertEquals("end", tokenizer.field(1000));
+		assertFalse(tokenizer.next());
+	}
+
+	@Test
+	public void fieldsAreTrimmed() throws IOException
+	{
+		MapFileTokenizer tokenizer = tokenizer(" Point01 ,xy,  \t 123 , ,,in, deg,");
+		assertArrayEquals(new String[] {"Point01", "xy", "123", "", "", "in", "deg", ""}, tokenizer.fields());
+		assertTrue(tokenizer.lineStartsWith(" Point"));
+		assertFalse(tokenizer.lineStartsWith("Point"));
+		assertTrue(tokenizer.fieldEquals(0, "Point01"));
+		assertFalse(tokenizer.fieldEquals(0, "Point0"));
+		assertTrue(tokenizer.fieldStartsWith(0, "Point"));
+		assertFalse(tokenizer.fieldStartsWith(1, "xyz"));
+		assertEquals('x', tokenizer.firstChar(1));
+		assertEquals(0, tokenizer.firstChar(3));
+		assertEquals(123, tokenizer.intField(2));
+	}
+
+	@Test
+	public void quotedFieldsAreUnescaped() throws IOException
+	{
+		MapFileTokenizer tokenizer = tokenizer("\"a, b\",\"say \"\"hi\"\"\" , \"\",plain");
+		assertArrayEquals(new String[] {"a, b", "say \"hi\"", "", "plain"}, tokenizer.fields());
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void missingFieldIsRejected() throws IOException
+	{
+		tokenizer("a,b").field(2);
+	}
+
+	@Test
+	public void emptyLineHasNoFields() throws IOException
+	{
+		MapFileTokenizer tokenizer = new MapFileTokenizer(new StringReader("\na"));
+		assertTrue(tokenizer.next());
+		assertEquals(0, tokenizer.fieldCount());
+		assertTrue(tokenizer.next());
+		assertEquals(1, tokenizer.fieldCount());
+	}
+
+	@Test
+	public void numbersMatchLibraryParsing() throws IOException
+	{
+		String[] values = {"0", "-0", "+5", "12.5", "-179.999999", ".5", "5.", "1e3", "-2.5E-3",
+				"123456789012345", "1234567890123456789", "0.1234567890123456789", "2147483647", "-2147483648",
+				"0000000000012", "NaN", "Infinity", "0x10", "1.2.3", "-", "+", ".", "", "abc", "12a", "99999999999"};
+		for (String value : values)
+			assertSameNumber(value);
+
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++)
+		{
+			double d = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+			assertSameNumber(String.format(Locale.US, "%." + random.nextInt(12) + "f", d));
+			assertSameNumber(Integer.toString(random.nextInt()));
+		}
+	}
+
+	private static void assertSameNumber(String value) throws IOException
+	{
+		MapFileTokenizer tokenizer = tokenizer(value + ",x");
+		Object expected;
+		Object actual;
+		try
+		{
+			expected = Double.parseDouble(value);
+		}
+		catch (NumberFormatException e)
+		{
+			expected = NumberFormatException.class;
+		}
+		try
+		{
+			actual = tokenizer.doubleField(0);
+		}
+		catch (NumberFormatException e)
+		{
+			actual = NumberFormatException.class;
+		}
+		assertEquals(value, expected, actual);
+
+		try
+		{
+			expected = Integer.parseInt(value);
+		}
+		catch (NumberFormatException e)
+		{
+			expected = NumberFormatException.class;
+		}
+		try
+		{
+			actual = tokenizer.intField(0);
+		}
+		catch (NumberFormatException e)
+		{
+			actual = NumberFormatException.class;
+		}
+		assertEquals(value, expected, actual);
+	}
+
+	private static MapFileTokenizer tokenizer(String line) throws IOException
+	{
+		MapFileTokenizer tokenizer = new MapFileTokenizer(new StringReader(line));
+		if (!tokenizer.next())
+			fail("No line");
+		return tokenizer;
+	}
+
+	private static List<String> readLines(BufferedReader reader) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		String line;
+		while ((line = reader.readLine()) != null)
+			lines.add(line);
+		return lines;
+	}
+
+	/**
+	 * Reads lines by tokenizer, optionally passing one character at a time to test
+	 * terminators split between reads.
+	 */
+	private static List<String> readLines(String text, boolean slow) throws IOException
+	{
+		Reader reader = new StringReader(text);
+		if (slow)
+		{
+			reader = new FilterReader(reader) {
+				@Override
+				public int read(char[] cbuf, int off, int len) throws IOException
+				{
+					return super.read(cbuf, off, Math.min(len, 1));
+				}
+			};
+		}
+		MapFileTokenizer tokenizer = new MapFileTokenizer(reader);
+		List<String> lines = new ArrayList<>();
+		while (tokenizer.nextLine())
+			lines.add(tokenizer.line());
+		return lines;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Indexes generated folder of OziExplorer map files with 1, 2 and 4 parsing threads and
+ * reports maps per second. Benchmark is run only if "benchmark" system property is set:
+ * <code>gradlew test -Dbenchmark=true</code>
+ */
+public class MapIndexBenchmark
+{
+	private static final int MAPS = 2000;
+	private static final int ROUNDS = 3;
+	private static final int[] THREADS = {1, 2, 4};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		// Sheets are spread over subfolders as in real map collections
+		for (int i = 0; i < MAPS; i++)
+		{
+			File dir = new File(folder.getRoot(), "region" + i / 100);
+			if (!dir.exists())
+				assertTrue(dir.mkdir());
+			writeMap(new File(dir, "sheet" + i + ".map"), i);
+		}
+	}
+
+	@Test
+	public void mapsPerSecond()
+	{
+		String path = folder.getRoot().getAbsolutePath();
+		for (int threads : THREADS)
+		{
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				MapIndex index = new MapIndex();
+				index.setLoaderThreads(threads);
+				long start = System.nanoTime();
+				index.update(path, "windows-1251");
+				best = Math.min(best, System.nanoTime() - start);
+				assertEquals(MAPS, index.getMapCount());
+				assertTrue(index.getBadMaps().isEmpty());
+			}
+			System.out.println(String.format(Locale.US, "%d threads: %.0f maps/s", threads, MAPS * 1e9 / best));
+		}
+	}
+
+	/**
+	 * Writes 1:25000 sheet calibrated by four corners, sheets are laid in rows.
+	 */
+	private static void writeMap(File file, int n) throws IOException
+	{
+		double lat = 54 + (n / 40) * 0.0833;
+		double lon = 36 + (n % 40) * 0.125;
+		double[][] corners = {{lat + 0.0833, lon}, {lat + 0.0833, lon + 0.125}, {lat, lon + 0.125}, {lat, lon}};
+		int[][] xy = {{0, 0}, {3999, 0}, {3999, 3999}, {0, 3999}};
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "windows-1251");
+		writer.write("OziExplorer Map Data File Version 2.2\r\n");
+		writer.write("\u041b\u0438\u0441\u0442 N-37-" + n + "\r\n");
+		writer.write("sheet" + n + ".ozf2\r\n");
+		writer.write("1 ,Map Code,\r\n");
+		writer.write("WGS 84,WGS 84,   0.0000,   0.0000,WGS 84\r\n");
+		writer.write("Reserved 1\r\n");
+		writer.write("Reserved 2\r\n");
+		writer.write("Magnetic Variation,,,E\r\n");
+		writer.write("Map Projection,Latitude/Longitude,PolyCal,No,AutoCalOnly,No,BSBUseWPX,No\r\n");
+		for (int i = 0; i < 30; i++)
+		{
+			if (i < 4)
+			{
+				double plat = corners[i][0];
+				double plon = corners[i][1];
+				writer.write(String.format(Locale.US, "Point%02d,xy,%5d,%5d,in, deg,%4d,%8.4f,N,%4d,%8.4f,E, grid,   ,           ,           ,N\r\n",
+						i + 1, xy[i][0], xy[i][1], (int) plat, (plat - (int) plat) * 60, (int) plon, (plon - (int) plon) * 60));
+			}
+			else
+			{
+				writer.write(String.format(Locale.US, "Point%02d,xy,     ,     ,in, deg,    ,        ,N,    ,        ,E, grid,   ,           ,           ,N\r\n", i + 1));
+			}
+		}
+		writer.write("Projection Setup,,,,,,,,,,\r\n");
+		writer.write("Map Feature = MF ; Map Comment = MC     These follow if they exist\r\n");
+		writer.write("Map Fonts Follow\r\n");
+		writer.write("Map Comment\r\n");
+		writer.write("Map Comment End\r\n");
+		writer.write("IWH,Map Image Width/Height,4000,4000\r\n");
+		writer.write("MMPNUM,4\r\n");
+		for (int i = 0; i < 4; i++)
+			writer.write("MMPXY," + (i + 1) + "," + xy[i][0] + "," + xy[i][1] + "\r\n");
+		for (int i = 0; i < 4; i++)
+			writer.write(String.format(Locale.US, "MMPLL,%d,%11.6f,%11.6f\r\n", i + 1, corners[i][1], corners[i][0]));
+		writer.write("MM1B,2.3\r\n");
+		writer.close();
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.androzic.map.ozf.OzfMap;
+
+public class MapIndexTest
+{
+	@Test
+	public void initializationErrorIsReported()
+	{
+		MapIndex index = new MapIndex();
+		TestMap good = new TestMap(1, false);
+		TestMap bad = new TestMap(2, true);
+		index.addMap(good);
+		index.addMap(bad);
+		assertEquals(2, index.getMapCount());
+		assertTrue(index.getBadMaps().isEmpty());
+		assertEquals(0, index.getInitializedCount());
+
+		final List<BaseMap> errors = new ArrayList<>();
+		index.setOnMapErrorListener(new MapIndex.OnMapErrorListener() {
+			@Override
+			public void onMapError(BaseMap map)
+			{
+				errors.add(map);
+			}
+		});
+		index.initializeMap(good);
+		index.initializeMap(bad);
+		// Map is initialized only once
+		index.initializeMap(bad);
+		assertEquals(Collections.<BaseMap> singletonList(bad), errors);
+		assertEquals(Collections.<BaseMap> singletonList(bad), index.getBadMaps());
+		assertEquals(2, index.getInitializedCount());
+
+		index.cleanBadMaps();
+		assertTrue(index.getBadMaps().isEmpty());
+		assertEquals(1, index.getMapCount());
+	}
+
+	@Test
+	public void mapTypesAreQueried()
+	{
+		MapIndex index = new MapIndex();
+		TestMap map = new TestMap(1, false);
+		map.path = "/maps/test.map";
+		index.addMap(map);
+		assertTrue(index.hasMaps(BaseMap.class));
+		assertTrue(index.hasMaps(MockMap.class));
+		assertFalse(index.hasMaps(OzfMap.class));
+		assertEquals(Arrays.asList("/maps/test.map"), index.getMapPaths(TestMap.class));
+		assertTrue(index.getMapPaths(OzfMap.class).isEmpty());
+
+		// Bad maps are not counted
+		map.loadError = new IOException("Broken map");
+		assertFalse(index.hasMaps(MockMap.class));
+		assertTrue(index.getMapPaths(MockMap.class).isEmpty());
+	}
+
+	private static class TestMap extends MockMap
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final boolean broken;
+
+		TestMap(int id, boolean broken)
+		{
+			super(0, 0);
+			this.id = id;
+			this.broken = broken;
+			cornerMarkers = new MapPoint[2];
+			for (int i = 0; i < 2; i++)
+			{
+				cornerMarkers[i] = new MapPoint();
+				cornerMarkers[i].lat = 10 + i;
+				cornerMarkers[i].lon = 10 + i;
+			}
+		}
+
+		@Override
+		public void initialize()
+		{
+			if (broken)
+				loadError = new IOException("Image file is missing");
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.androzic.map.ozf.Grid;
+import com.androzic.map.ozf.OzfMap;
+
+/**
+ * Loads map files from test resources and compares loaded map with golden file produced
+ * by the line splitting parser which preceded the tokenizer. Golden file lists one
+ * "field=value" pair per line in UTF-8. Coordinates which are computed by projection or
+ * datum transformation are not recorded.
+ */
+public class MapLoaderGoldenTest
+{
+	@Test
+	public void oziExplorer22WithCrLf() throws Exception
+	{
+		check("ozi22_crlf", "windows-1252");
+	}
+
+	@Test
+	public void oziExplorer20WithGridCalibration() throws Exception
+	{
+		check("ozi20_utm_lf", "US-ASCII");
+	}
+
+	@Test
+	public void cyrillicCharsetWithCr() throws Exception
+	{
+		check("cyrillic_cp1251", "windows-1251");
+	}
+
+	@Test
+	public void scaledMapWithMixedLineEndings() throws Exception
+	{
+		check("msf_mixed", "US-ASCII");
+	}
+
+	@Test
+	public void badHeaderIsReported() throws Exception
+	{
+		check("bad_header", "US-ASCII");
+	}
+
+	private void check(String name, String charset) throws IOException, URISyntaxException
+	{
+		URL url = getClass().getResource(name + ".map");
+		assertNotNull("Missing fixture " + name, url);
+		BaseMap map = MapLoader.load(new File(url.toURI()), charset);
+		Map<String,String> expected = readGolden(name);
+		Map<String,String> actual = describe((OzfMap) map);
+		TreeSet<String> fields = new TreeSet<>(expected.keySet());
+		fields.addAll(actual.keySet());
+		for (String field : fields)
+			assertEquals(name + ": " + field, expected.get(field), actual.get(field));
+	}
+
+	private Map<String,String> readGolden(String name) throws IOException
+	{
+		InputStream is = getClass().getResourceAsStream(name + ".golden");
+		assertNotNull("Missing golden file " + name, is);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+		Map<String,String> golden = new LinkedHashMap<>();
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			if (line.isEmpty())
+				continue;
+			int i = line.indexOf('=');
+			golden.put(line.substring(0, i), line.substring(i + 1));
+		}
+		reader.close();
+		return golden;
+	}
+
+	/**
+	 * Lists loaded map fields in the golden file form.
+	 */
+	static Map<String,String> describe(OzfMap map)
+	{
+		Map<String,String> fields = new LinkedHashMap<>();
+		if (map.loadError != null)
+		{
+			fields.put("loadError", map.loadError.getClass().getName());
+			return fields;
+		}
+		fields.put("title", map.title);
+		fields.put("imagePath", map.imagePath);
+		fields.put("datum", map.datum);
+		if (map.origDatum != null)
+			fields.put("origDatum", map.origDatum);
+		fields.put("prjName", map.prjName);
+		fields.put("scaleFactor", String.valueOf(map.scaleFactor));
+		fields.put("width", String.valueOf(map.width));
+		fields.put("height", String.valueOf(map.height));
+		fields.put("mpp", String.valueOf(map.mpp));
+		fields.put("points", String.valueOf(map.calibrationPoints.size()));
+		for (int i = 0; i < map.calibrationPoints.size(); i++)
+		{
+			MapPoint mp = map.calibrationPoints.get(i);
+			String prefix = "point" + i + ".";
+			fields.put(prefix + "x", String.valueOf(mp.x));
+			fields.put(prefix + "y", String.valueOf(mp.y));
+			fields.put(prefix + "zone", String.valueOf(mp.zone));
+			fields.put(prefix + "e", String.valueOf(mp.e));
+			fields.put(prefix + "n", String.valueOf(mp.n));
+			fields.put(prefix + "hemisphere", String.valueOf(mp.hemisphere));
+			// Grid points get their coordinates from projection
+			if (map.origDatum == null && (mp.n == 0 || mp.e == 0))
+			{
+				fields.put(prefix + "lat", String.valueOf(mp.lat));
+				fields.put(prefix + "lon", String.valueOf(mp.lon));
+			}
+		}
+		fields.put("corners", String.valueOf(map.cornerMarkers.length));
+		for (int i = 0; i < map.cornerMarkers.length; i++)
+		{
+			MapPoint mp = map.cornerMarkers[i];
+			String prefix = "corner" + i + ".";
+			fields.put(prefix + "x", String.valueOf(mp.x));
+			fields.put(prefix + "y", String.valueOf(mp.y));
+			if (map.origDatum == null)
+			{
+				fields.put(prefix + "lat", String.valueOf(mp.lat));
+				fields.put(prefix + "lon", String.valueOf(mp.lon));
+			}
+		}
+		describe(fields, "llGrid.", map.llGrid);
+		describe(fields, "grGrid.", map.grGrid);
+		return fields;
+	}
+
+	private static void describe(Map<String,String> fields, String prefix, Grid grid)
+	{
+		if (grid == null)
+			return;
+		fields.put(prefix + "enabled", String.valueOf(grid.enabled));
+		fields.put(prefix + "spacing", String.valueOf(grid.spacing));
+		fields.put(prefix + "autoscale", String.valueOf(grid.autoscale));
+		fields.put(prefix + "color1", Integer.toHexString(grid.color1));
+		fields.put(prefix + "color2", Integer.toHexString(grid.color2));
+		fields.put(prefix + "color3", Integer.toHexString(grid.color3));
+		fields.put(prefix + "labelSpacing", String.valueOf(grid.labelSpacing));
+		fields.put(prefix + "labelForeground", Integer.toHexString(grid.labelForeground));
+		fields.put(prefix + "labelBackground", Integer.toHexString(grid.labelBackground));
+		fields.put(prefix + "labelSize", String.valueOf(grid.labelSize));
+		fields.put(prefix + "labelShowEverywhere", String.valueOf(grid.labelShowEverywhere));
+	}
+}
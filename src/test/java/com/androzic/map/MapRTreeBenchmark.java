@@ -0,0 +1,218 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares map R-tree with 1-degree grid which was used by map index before. Synthetic
+ * collection consists of small sheets packed in a few grid cells, regional maps and
+ * several world maps. Both indexes answer with maps which bounds intersect query area.
+ * Benchmark is run only if "benchmark" system property is set:
+ * <code>gradlew test -Dbenchmark=true</code>
+ */
+public class MapRTreeBenchmark
+{
+	private static final int MAPS = 10000;
+	private static final int QUERIES = 5000;
+	private static final int ROUNDS = 5;
+
+	private double[][] boxes;
+	private double[][] points;
+	private double[][] areas;
+
+	@Before
+	public void setUp()
+	{
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		Random random = new Random(1);
+		boxes = new double[MAPS][];
+		for (int id = 0; id < MAPS; id++)
+		{
+			if (id < 10)
+			{
+				boxes[id] = new double[] {-85, -180, 85, 180};
+			}
+			else if (id < 500)
+			{
+				double lat = random.nextDouble() * 140 - 70;
+				double lon = random.nextDouble() * 340 - 170;
+				boxes[id] = new double[] {lat, lon, lat + 2 + random.nextDouble() * 8, lon + 2 + random.nextDouble() * 8};
+			}
+			else
+			{
+				// 1:25000 sheets around a few cities
+				int city = random.nextInt(4);
+				double lat = 55 + city * 0.7 + random.nextDouble() * 2;
+				double lon = 37 + city * 1.3 + random.nextDouble() * 2;
+				boxes[id] = new double[] {lat, lon, lat + 0.083, lon + 0.125};
+			}
+		}
+		points = new double[QUERIES][];
+		areas = new double[QUERIES][];
+		for (int i = 0; i < QUERIES; i++)
+		{
+			double lat, lon;
+			if (i % 2 == 0)
+			{
+				lat = 55 + random.nextDouble() * 4;
+				lon = 37 + random.nextDouble() * 6;
+			}
+			else
+			{
+				lat = random.nextDouble() * 140 - 70;
+				lon = random.nextDouble() * 340 - 170;
+			}
+			points[i] = new double[] {lat, lon, lat, lon};
+			areas[i] = new double[] {lat, lon, lat + 0.05, lon + 0.08};
+		}
+	}
+
+	@Test
+	public void compareWithGrid()
+	{
+		long start = System.nanoTime();
+		MapRTree tree = new MapRTree();
+		for (int id = 0; id < MAPS; id++)
+			tree.insert(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+		tree.ids();
+		long treeBuild = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Grid grid = new Grid();
+		for (int id = 0; id < MAPS; id++)
+			grid.insert(id, boxes[id]);
+		long gridBuild = System.nanoTime() - start;
+
+		// Both indexes should find the same maps
+		for (int i = 0; i < 1000; i++)
+		{
+			List<Integer> expected = new ArrayList<>();
+			tree.search(areas[i][0], areas[i][1], areas[i][2], areas[i][3], expected);
+			List<Integer> actual = new ArrayList<>();
+			grid.search(areas[i], actual);
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals(expected, actual);
+		}
+
+		System.out.println(String.format("Build %d maps: R-tree %.1f ms, grid %.1f ms", MAPS, treeBuild / 1e6, gridBuild / 1e6));
+		report("Point", tree, grid, points);
+		report("Area", tree, grid, areas);
+	}
+
+	private void report(String name, MapRTree tree, Grid grid, double[][] queries)
+	{
+		long treeTime = Long.MAX_VALUE;
+		long gridTime = Long.MAX_VALUE;
+		int found = 0;
+		List<Integer> result = new ArrayList<>();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			for (double[] q : queries)
+			{
+				result.clear();
+				tree.search(q[0], q[1], q[2], q[3], result);
+				found += result.size();
+			}
+			treeTime = Math.min(treeTime, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (double[] q : queries)
+			{
+				result.clear();
+				grid.search(q, result);
+				found -= result.size();
+			}
+			gridTime = Math.min(gridTime, System.nanoTime() - start);
+		}
+		assertEquals(0, found);
+		System.out.println(String.format("%s query: R-tree %.2f us, grid %.2f us", name, treeTime / 1e3 / queries.length, gridTime / 1e3 / queries.length));
+	}
+
+	/**
+	 * Map grid as it was implemented in map index: map ids are kept in every 1x1 degree
+	 * cell covered by map and candidates are checked against query area.
+	 */
+	private class Grid
+	{
+		@SuppressWarnings("unchecked")
+		private HashSet<Integer>[][] maps = new HashSet[181][361];
+
+		void insert(int id, double[] bounds)
+		{
+			int minLat = (int) Math.floor(bounds[0]);
+			int maxLat = (int) Math.ceil(bounds[2]);
+			int minLon = (int) Math.floor(bounds[1]);
+			int maxLon = (int) Math.ceil(bounds[3]);
+			for (int lat = minLat; lat <= maxLat; lat++)
+				for (int lon = minLon; lon <= maxLon; lon++)
+				{
+					HashSet<Integer> lli = maps[lat + 90][lon + 180];
+					if (lli == null)
+					{
+						lli = new HashSet<>();
+						maps[lat + 90][lon + 180] = lli;
+					}
+					lli.add(id);
+				}
+		}
+
+		void search(double[] area, List<Integer> result)
+		{
+			HashSet<Integer> found = new HashSet<>();
+			int minLat = (int) Math.floor(area[0]);
+			int maxLat = (int) Math.ceil(area[2]);
+			int minLon = (int) Math.floor(area[1]);
+			int maxLon = (int) Math.ceil(area[3]);
+			for (int lat = minLat; lat <= maxLat; lat++)
+				for (int lon = minLon; lon <= maxLon; lon++)
+				{
+					HashSet<Integer> lli = maps[lat + 90][lon + 180];
+					if (lli == null)
+						continue;
+					for (Integer id : lli)
+					{
+						if (found.contains(id))
+							continue;
+						double[] b = boxes[id];
+						if (b[0] <= area[2] && b[2] >= area[0] && b[1] <= area[3] && b[3] >= area[1])
+						{
+							found.add(id);
+							result.add(id);
+						}
+					}
+				}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MapRTreeTest
+{
+	@Test
+	public void emptyTreeFindsNothing()
+	{
+		MapRTree tree = new MapRTree();
+		List<Integer> result = new ArrayList<>();
+		tree.search(-90, -180, 90, 180, result);
+		assertTrue(result.isEmpty());
+		assertEquals(0, tree.ids().length);
+	}
+
+	@Test
+	public void searchMatchesLinearScan()
+	{
+		Random random = new Random(1);
+		MapRTree tree = new MapRTree();
+		double[][] boxes = new double[1000][];
+		for (int id = 0; id < boxes.length; id++)
+		{
+			boxes[id] = randomBox(random, 5);
+			tree.insert(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+		}
+		for (int i = 0; i < 200; i++)
+		{
+			double[] area = randomBox(random, 20);
+			assertEquals(linearSearch(boxes, area), search(tree, area));
+		}
+	}
+
+	@Test
+	public void pointAndTouchingAreasAreFound()
+	{
+		MapRTree tree = new MapRTree();
+		tree.insert(1, 10, 20, 11, 21);
+		assertEquals(Collections.singletonList(1), search(tree, new double[] {10.5, 20.5, 10.5, 20.5}));
+		assertEquals(Collections.singletonList(1), search(tree, new double[] {11, 21, 12, 22}));
+		assertTrue(search(tree, new double[] {11.001, 21.001, 12, 22}).isEmpty());
+	}
+
+	@Test
+	public void treeIsRebuiltAfterModification()
+	{
+		Random random = new Random(2);
+		MapRTree tree = new MapRTree();
+		double[][] boxes = new double[100][];
+		for (int id = 0; id < boxes.length; id++)
+		{
+			boxes[id] = randomBox(random, 10);
+			tree.insert(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+		}
+		double[] world = {-90, -180, 90, 180};
+		assertEquals(100, search(tree, world).size());
+
+		for (int id = 0; id < boxes.length; id += 2)
+		{
+			tree.remove(id);
+			boxes[id] = null;
+		}
+		assertEquals(50, tree.size());
+		assertNull(tree.get(0));
+		for (int i = 0; i < 50; i++)
+		{
+			double[] area = randomBox(random, 30);
+			assertEquals(linearSearch(boxes, area), search(tree, area));
+		}
+
+		tree.insert(0, 1, 1, 2, 2);
+		assertTrue(search(tree, new double[] {1.5, 1.5, 1.5, 1.5}).contains(0));
+
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertTrue(search(tree, world).isEmpty());
+	}
+
+	@Test
+	public void parentNodesEncloseChildren()
+	{
+		Random random = new Random(3);
+		MapRTree tree = new MapRTree();
+		int n = MapRTree.NODE_SIZE * MapRTree.NODE_SIZE * 3 + 7;
+		for (int id = 0; id < n; id++)
+		{
+			double[] box = randomBox(random, 2);
+			tree.insert(id, box[0], box[1], box[2], box[3]);
+		}
+		double[][] levels = tree.levels();
+		assertEquals(4, levels.length);
+		assertEquals(n * 4, levels[0].length);
+		assertEquals(4, levels[levels.length - 1].length);
+		for (int level = 1; level < levels.length; level++)
+		{
+			double[] parents = levels[level];
+			double[] children = levels[level - 1];
+			for (int c = 0; c < children.length / 4; c++)
+			{
+				int p = c / MapRTree.NODE_SIZE * 4;
+				int j = c * 4;
+				assertTrue(parents[p] <= children[j]);
+				assertTrue(parents[p + 1] <= children[j + 1]);
+				assertTrue(parents[p + 2] >= children[j + 2]);
+				assertTrue(parents[p + 3] >= children[j + 3]);
+			}
+		}
+		int[] ids = tree.ids().clone();
+		assertEquals(n, ids.length);
+		Arrays.sort(ids);
+		for (int id = 0; id < n; id++)
+			assertEquals(id, ids[id]);
+	}
+
+	@Test
+	public void treeIsRebuiltAfterDeserialization() throws Exception
+	{
+		MapRTree tree = new MapRTree();
+		tree.insert(5, 50, 30, 51, 31);
+		tree.insert(6, -10, -70, -9, -69);
+		search(tree, new double[] {-90, -180, 90, 180});
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(tree);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+		MapRTree copy = (MapRTree) in.readObject();
+		in.close();
+
+		assertEquals(2, copy.size());
+		assertArrayEquals(new double[] {50, 30, 51, 31}, copy.get(5), 0);
+		assertEquals(Collections.singletonList(6), search(copy, new double[] {-9.5, -69.5, -9.5, -69.5}));
+	}
+
+	private static double[] randomBox(Random random, double maxSize)
+	{
+		double lat = random.nextDouble() * 160 - 80;
+		double lon = random.nextDouble() * 340 - 170;
+		return new double[] {lat, lon, lat + random.nextDouble() * maxSize, lon + random.nextDouble() * maxSize};
+	}
+
+	private static List<Integer> search(MapRTree tree, double[] area)
+	{
+		List<Integer> result = new ArrayList<>();
+		tree.search(area[0], area[1], area[2], area[3], result);
+		Collections.sort(result);
+		return result;
+	}
+
+	private static List<Integer> linearSearch(double[][] boxes, double[] area)
+	{
+		List<Integer> result = new ArrayList<>();
+		for (int id = 0; id < boxes.length; id++)
+		{
+			double[] b = boxes[id];
+			if (b != null && b[0] <= area[2] && b[2] >= area[0] && b[1] <= area[3] && b[3] >= area[1])
+				result.add(id);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TileSchedulerTest
+{
+	private static final int Z = 12;
+	private static final int X = 2475;
+	private static final int Y = 1280;
+
+	@Test
+	public void zoomMatchesMapResolution()
+	{
+		double mpp = 40075016.686 / 256;
+		assertEquals(0, TileScheduler.getZoom(0, mpp), 1e-9);
+		assertEquals(10, TileScheduler.getZoom(0, mpp / 1024), 1e-9);
+		assertEquals(9, TileScheduler.getZoom(60, mpp / 1024), 1e-9);
+	}
+
+	@Test
+	public void tasksKeepOrderUntilFocused()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		scheduler.add("far", Z, X + 5, Y);
+		scheduler.add("near", Z, X, Y);
+		scheduler.add("other", Z + 1, X * 2, Y * 2);
+		assertEquals(Arrays.asList("far", "near", "other"), tasks(scheduler));
+	}
+
+	@Test
+	public void tasksAreRankedByDistance()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		scheduler.add("3", Z, X + 3, Y);
+		scheduler.add("1", Z, X, Y + 1);
+		scheduler.add("0", Z, X, Y);
+		scheduler.add("2", Z, X - 2, Y - 1);
+		assertTrue(focus(scheduler, Double.NaN).isEmpty());
+		assertEquals(Arrays.asList("0", "1", "2", "3"), tasks(scheduler));
+
+		// New tasks are inserted by rank after tasks of the same rank
+		scheduler.add("1b", Z, X, Y - 1);
+		scheduler.add("0b", Z, X, Y);
+		assertEquals(Arrays.asList("0", "0b", "1", "1b", "2", "3"), tasks(scheduler));
+	}
+
+	@Test
+	public void tilesAheadArePreferred()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		scheduler.add("west", Z, X - 2, Y);
+		scheduler.add("south", Z, X, Y + 2);
+		scheduler.add("east", Z, X + 2, Y);
+		scheduler.add("north", Z, X, Y - 2);
+		focus(scheduler, 90);
+		assertEquals("east", scheduler.get(0));
+		assertEquals("west", scheduler.get(3));
+		focus(scheduler, 0);
+		assertEquals("north", scheduler.get(0));
+		assertEquals("south", scheduler.get(3));
+	}
+
+	@Test
+	public void otherZoomLevelsArePostponed()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		scheduler.add("upper", Z - 1, X / 2, Y / 2);
+		scheduler.add("lower", Z + 1, X * 2, Y * 2);
+		scheduler.add("current", Z, X + 1, Y);
+		focus(scheduler, Double.NaN);
+		assertEquals("current", scheduler.get(0));
+	}
+
+	@Test
+	public void staleTasksAreReturned()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		scheduler.add("far", Z, X + 40, Y);
+		scheduler.add("near", Z, X + 1, Y);
+		scheduler.add("distant zoom", Z + 3, X * 8, Y * 8);
+		scheduler.add("next zoom", Z + 1, X * 2, Y * 2);
+		List<String> stale = focus(scheduler, Double.NaN);
+		Collections.sort(stale);
+		assertEquals(Arrays.asList("distant zoom", "far"), stale);
+		assertEquals(Arrays.asList("near", "next zoom"), tasks(scheduler));
+	}
+
+	@Test
+	public void tasksAreRemoved()
+	{
+		TileScheduler<String> scheduler = new TileScheduler<>();
+		String task = "a";
+		scheduler.add(task, Z, X, Y);
+		scheduler.add("b", Z, X, Y);
+		scheduler.add("c", Z, X, Y);
+		assertTrue(scheduler.remove(task));
+		assertFalse(scheduler.remove(task));
+		assertEquals("b", scheduler.remove(0));
+		assertEquals(1, scheduler.size());
+		scheduler.clear();
+		assertEquals(0, scheduler.size());
+	}
+
+	/**
+	 * Focuses scheduler on the center of tile X, Y at zoom Z.
+	 */
+	private static List<String> focus(TileScheduler<String> scheduler, double bearing)
+	{
+		double n = 1 << Z;
+		double longitude = (X + 0.5) / n * 360 - 180;
+		double latitude = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (Y + 0.5) / n))));
+		return scheduler.setFocus(latitude, longitude, Z, bearing);
+	}
+
+	private static List<String> tasks(TileScheduler<String> scheduler)
+	{
+		String[] tasks = new String[scheduler.size()];
+		for (int i = 0; i < tasks.length; i++)
+			tasks[i] = scheduler.get(i);
+		return Arrays.asList(tasks);
+	}
+}
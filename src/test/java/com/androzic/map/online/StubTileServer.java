@@ -0,0 +1,146 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test rule that runs local HTTP tile server, provides tile provider pointing to it and
+ * tile archive in temporary folder. Requests are passed to responder with parsed tile
+ * coordinates.
+ */
+public class StubTileServer extends ExternalResource
+{
+	public interface Responder
+	{
+		void respond(HttpExchange exchange, int z, int x, int y) throws IOException;
+	}
+
+	public final AtomicInteger hits = new AtomicInteger();
+
+	private final Responder responder;
+	private final TemporaryFolder folder = new TemporaryFolder();
+	private HttpServer server;
+	private TileProvider provider;
+	private TileArchive archive;
+
+	public StubTileServer(Responder responder)
+	{
+		this.responder = responder;
+	}
+
+	@Override
+	protected void before() throws Throwable
+	{
+		folder.create();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				hits.incrementAndGet();
+				String[] path = exchange.getRequestURI().getPath().replace(".png", "").split("/");
+				responder.respond(exchange, Integer.parseInt(path[1]), Integer.parseInt(path[2]), Integer.parseInt(path[3]));
+			}
+		});
+		server.start();
+		provider = createProvider("test", "http://127.0.0.1:" + server.getAddress().getPort());
+		provider.tileExpiration = 3600000;
+		archive = new TileArchive(folder.getRoot(), provider.code);
+	}
+
+	@Override
+	protected void after()
+	{
+		server.stop(0);
+		archive.close();
+		folder.delete();
+	}
+
+	public TileProvider getProvider()
+	{
+		return provider;
+	}
+
+	public TileArchive getArchive()
+	{
+		return archive;
+	}
+
+	public File getRoot()
+	{
+		return folder.getRoot();
+	}
+
+	/**
+	 * Creates provider which addresses tiles as base/z/x/y.png, or has no tile addresses
+	 * if base is null.
+	 */
+	public static TileProvider createProvider(String code, final String base)
+	{
+		TileProvider provider = new TileProvider() {
+			@Override
+			public void activate()
+			{
+			}
+
+			@Override
+			public void deactivate()
+			{
+			}
+
+			@Override
+			public String getTileUri(int x, int y, byte z)
+			{
+				return base != null ? base + "/" + z + "/" + x + "/" + y + ".png" : null;
+			}
+		};
+		provider.code = code;
+		return provider;
+	}
+
+	public static void send(HttpExchange exchange, int code) throws IOException
+	{
+		exchange.sendResponseHeaders(code, -1);
+		exchange.close();
+	}
+
+	public static void send(HttpExchange exchange, byte[] tile) throws IOException
+	{
+		exchange.sendResponseHeaders(200, tile.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(tile);
+		out.close();
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileArchiveTest
+{
+	private static final long NEVER = Long.MAX_VALUE;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void tilesAreReadBack() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(18, (1 << 18) - 1, 0, tile(1, 100), 12345);
+		archive.write(0, 0, 0, tile(2, 0), NEVER);
+		long[] expiration = new long[1];
+		assertArrayEquals(tile(1, 100), archive.read(18, (1 << 18) - 1, 0, expiration));
+		assertEquals(12345, expiration[0]);
+		assertArrayEquals(tile(2, 0), archive.read(0, 0, 0, null));
+		assertNull(archive.read(18, 0, 0, null));
+		assertTrue(archive.contains(0, 0, 0));
+		assertFalse(archive.contains(1, 0, 0));
+		assertEquals(12345, archive.getExpiration(18, (1 << 18) - 1, 0));
+		assertEquals(0, archive.getExpiration(1, 0, 0));
+		assertEquals(2, archive.getCount());
+		archive.close();
+	}
+
+	@Test
+	public void replacedAndRemovedTilesBecomeGarbage() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(5, 1, 2, tile(1, 1000), NEVER);
+		archive.write(5, 1, 2, tile(2, 500), NEVER);
+		assertArrayEquals(tile(2, 500), archive.read(5, 1, 2, null));
+		long garbage = archive.getSize()[1];
+		assertTrue(garbage > 1000);
+		archive.remove(5, 1, 2);
+		assertNull(archive.read(5, 1, 2, null));
+		assertEquals(0, archive.getCount());
+		assertTrue(archive.getSize()[1] > garbage + 500);
+		// Removal of missing tile writes nothing
+		long length = archive.getSize()[0];
+		archive.remove(5, 1, 2);
+		assertEquals(length, archive.getSize()[0]);
+		archive.close();
+	}
+
+	@Test
+	public void tilesSurviveReopen() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		for (int i = 0; i < 3000; i++)
+			archive.write(14, i, i * 2, tile(i, i % 300), NEVER - i);
+		archive.remove(14, 7, 14);
+		archive.close();
+		assertTrue(new File(folder.getRoot(), "osm.idx").exists());
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(2999, archive.getCount());
+		assertNull(archive.read(14, 7, 14, null));
+		long[] expiration = new long[1];
+		for (int i = 0; i < 3000; i += 7)
+		{
+			if (i == 7)
+				continue;
+			assertArrayEquals(tile(i, i % 300), archive.read(14, i, i * 2, expiration));
+			assertEquals(NEVER - i, expiration[0]);
+		}
+		archive.close();
+	}
+
+	@Test
+	public void recordsWrittenAfterFlushAreRecovered() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(10, 1, 1, tile(1, 10), NEVER);
+		archive.write(10, 2, 2, tile(2, 20), NEVER);
+		archive.flush();
+		archive.write(10, 3, 3, tile(3, 30), NEVER);
+		archive.write(10, 1, 1, tile(4, 40), NEVER);
+		archive.remove(10, 2, 2);
+
+		// Process is killed, archive is not closed
+		TileArchive recovered = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(2, recovered.getCount());
+		assertArrayEquals(tile(4, 40), recovered.read(10, 1, 1, null));
+		assertNull(recovered.read(10, 2, 2, null));
+		assertArrayEquals(tile(3, 30), recovered.read(10, 3, 3, null));
+		assertEquals(archive.getSize()[1], recovered.getSize()[1]);
+		recovered.close();
+		archive.close();
+	}
+
+	@Test
+	public void incompleteRecordIsTruncated() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(10, 1, 1, tile(1, 10), NEVER);
+		archive.close();
+		File data = new File(folder.getRoot(), "osm.dat");
+		long length = data.length();
+		archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(10, 2, 2, tile(2, 1000), NEVER);
+		archive.close();
+		// Tile is partially written
+		RandomAccessFile file = new RandomAccessFile(data, "rw");
+		file.setLength(length + 500);
+		file.close();
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(1, archive.getCount());
+		assertArrayEquals(tile(1, 10), archive.read(10, 1, 1, null));
+		assertNull(archive.read(10, 2, 2, null));
+		assertEquals(length, data.length());
+		archive.write(10, 3, 3, tile(3, 30), NEVER);
+		archive.close();
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertArrayEquals(tile(3, 30), archive.read(10, 3, 3, null));
+		archive.close();
+	}
+
+	@Test
+	public void brokenIndexIsIgnored() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(10, 1, 1, tile(1, 10), NEVER);
+		archive.write(10, 2, 2, tile(2, 20), NEVER);
+		archive.close();
+		FileOutputStream index = new FileOutputStream(new File(folder.getRoot(), "osm.idx"));
+		index.write(new byte[] {1, 2, 3});
+		index.close();
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(2, archive.getCount());
+		assertArrayEquals(tile(2, 20), archive.read(10, 2, 2, null));
+		archive.close();
+	}
+
+	@Test
+	public void unknownFileIsRejected() throws IOException
+	{
+		FileOutputStream data = new FileOutputStream(new File(folder.getRoot(), "osm.dat"));
+		data.write(new byte[100]);
+		data.close();
+		try
+		{
+			new TileArchive(folder.getRoot(), "osm");
+			fail("Archive opened");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void compactionReclaimsGarbage() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		for (int i = 0; i < 100; i++)
+			archive.write(12, i, 0, tile(i, 1000), NEVER);
+		for (int i = 0; i < 100; i += 2)
+			archive.write(12, i, 0, tile(-i, 500), NEVER - 1);
+		for (int i = 1; i < 100; i += 4)
+			archive.remove(12, i, 0);
+		long[] size = archive.getSize();
+		assertTrue(size[1] > 0);
+
+		archive.compact();
+		long[] compacted = archive.getSize();
+		assertEquals(0, compacted[1]);
+		assertEquals(size[0] - size[1], compacted[0]);
+		assertEquals(compacted[0], new File(folder.getRoot(), "osm.dat").length());
+		assertTiles(archive);
+		archive.write(12, 1000, 0, tile(1000, 10), NEVER);
+		archive.close();
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(0, archive.getSize()[1]);
+		assertTiles(archive);
+		assertArrayEquals(tile(1000, 10), archive.read(12, 1000, 0, null));
+		archive.close();
+	}
+
+	@Test
+	public void closedArchiveIsNotUsed() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(1, 0, 0, tile(1, 10), NEVER);
+		archive.close();
+		archive.close();
+		assertNull(archive.read(1, 0, 0, null));
+		assertFalse(archive.contains(1, 0, 0));
+		try
+		{
+			archive.write(1, 1, 1, tile(1, 10), NEVER);
+			fail("Closed archive written");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void expiredTilesAreEvictedFirst() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		for (int i = 0; i < 10; i++)
+		{
+			archive.write(15, i, 0, tile(i, 1000), NEVER);
+			archive.write(15, i, 1, tile(i, 1000), 1);
+		}
+		TileArchive.Statistics statistics = archive.getStatistics();
+		assertEquals(20, statistics.count);
+		assertEquals(10, statistics.expired);
+
+		// Trimmed to 90% of quota, seven tiles have to be removed
+		archive.setQuota(15000);
+		statistics = archive.getStatistics();
+		assertEquals(7, statistics.evicted);
+		assertEquals(13, statistics.count);
+		assertEquals(3, statistics.expired);
+		assertEquals(15000, statistics.quota);
+		assertTrue(statistics.size <= 13500);
+		for (int i = 0; i < 10; i++)
+			assertTrue(archive.contains(15, i, 0));
+		archive.close();
+	}
+
+	@Test
+	public void archiveIsKeptWithinQuota() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.setQuota(20000);
+		for (int i = 0; i < 100; i++)
+		{
+			archive.write(15, i, 0, tile(i, 1000), NEVER);
+			assertTrue(archive.getStatistics().size <= 20000);
+		}
+		TileArchive.Statistics statistics = archive.getStatistics();
+		assertTrue(statistics.evicted > 0);
+		assertEquals(100, statistics.count + statistics.evicted);
+		assertEquals(statistics.fileSize, archive.getSize()[0]);
+
+		archive.setQuota(0);
+		for (int i = 100; i < 200; i++)
+			archive.write(15, i, 0, tile(i, 1000), NEVER);
+		assertEquals(statistics.evicted, archive.getStatistics().evicted);
+		archive.close();
+	}
+
+	@Test
+	public void indexIsSavedAfterEviction() throws Exception
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		for (int i = 0; i < 20; i++)
+			archive.write(15, i, 0, tile(i, 1000), NEVER);
+		File index = new File(folder.getRoot(), "osm.idx");
+		assertFalse(index.exists());
+		archive.setQuota(10000);
+		int count = archive.getCount();
+		waitFor(index);
+
+		// Process is killed, eviction is not replayed from data file
+		TileArchive recovered = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(count, recovered.getCount());
+		recovered.close();
+		archive.close();
+	}
+
+	@Test
+	public void indexIsSavedAfterManyChanges() throws Exception
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		File index = new File(folder.getRoot(), "osm.idx");
+		for (int i = 0; i < 999; i++)
+			archive.write(15, i, 0, tile(i, 10), NEVER);
+		Thread.sleep(200);
+		assertFalse(index.exists());
+		archive.write(15, 999, 0, tile(999, 10), NEVER);
+		waitFor(index);
+		archive.close();
+	}
+
+	@Test
+	public void validatorsAreKept() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(8, 1, 1, tile(1, 100), NEVER, "\"etag-1\"");
+		archive.write(8, 2, 2, tile(2, 100), NEVER, null);
+		archive.write(8, 3, 3, tile(3, 100), NEVER, "Wed, 21 Oct 2015 07:28:00 GMT");
+		archive.write(8, 3, 3, tile(4, 100), NEVER);
+		assertEquals("\"etag-1\"", archive.getValidator(8, 1, 1));
+		assertNull(archive.getValidator(8, 2, 2));
+		assertNull(archive.getValidator(8, 3, 3));
+		assertNull(archive.getValidator(8, 4, 4));
+		// Validator is not part of the tile
+		assertArrayEquals(tile(1, 100), archive.read(8, 1, 1, null));
+
+		archive.write(8, 3, 3, tile(5, 100), NEVER, "\"etag-5\"");
+		archive.remove(8, 2, 2);
+		archive.compact();
+		assertEquals("\"etag-1\"", archive.getValidator(8, 1, 1));
+		assertEquals("\"etag-5\"", archive.getValidator(8, 3, 3));
+		archive.close();
+
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals("\"etag-5\"", archive.getValidator(8, 3, 3));
+		assertArrayEquals(tile(5, 100), archive.read(8, 3, 3, null));
+		archive.close();
+	}
+
+	@Test
+	public void expirationIsUpdated() throws IOException
+	{
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		archive.write(8, 1, 1, tile(1, 100), 1000, "\"a\"");
+		long length = archive.getSize()[0];
+		assertTrue(archive.update(8, 1, 1, 2000));
+		assertFalse(archive.update(8, 2, 2, 2000));
+		assertEquals(2000, archive.getExpiration(8, 1, 1));
+		assertEquals("\"a\"", archive.getValidator(8, 1, 1));
+		// Update is short record, it is garbage once applied
+		long[] size = archive.getSize();
+		assertTrue(size[0] - length < 100);
+		assertEquals(size[0] - length, size[1]);
+
+		// Process is killed, update is replayed from data file
+		TileArchive recovered = new TileArchive(folder.getRoot(), "osm");
+		long[] expiration = new long[1];
+		assertArrayEquals(tile(1, 100), recovered.read(8, 1, 1, expiration));
+		assertEquals(2000, expiration[0]);
+		assertEquals("\"a\"", recovered.getValidator(8, 1, 1));
+		recovered.close();
+		archive.close();
+	}
+
+	@Test
+	public void firstVersionIsConverted() throws IOException
+	{
+		File file = new File(folder.getRoot(), "osm.dat");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(0x41544144);
+		out.writeInt(1);
+		for (int i = 0; i < 3; i++)
+		{
+			out.writeByte(9);
+			out.writeInt(i);
+			out.writeInt(i + 1);
+			out.writeLong(NEVER - i);
+			out.writeInt(50);
+			out.write(tile(i, 50));
+		}
+		// Removal of the second tile
+		out.writeByte(9);
+		out.writeInt(1);
+		out.writeInt(2);
+		out.writeLong(0);
+		out.writeInt(-1);
+		out.close();
+
+		TileArchive archive = new TileArchive(folder.getRoot(), "osm");
+		assertEquals(2, archive.getCount());
+		assertNull(archive.read(9, 1, 2, null));
+		long[] expiration = new long[1];
+		assertArrayEquals(tile(2, 50), archive.read(9, 2, 3, expiration));
+		assertEquals(NEVER - 2, expiration[0]);
+		assertNull(archive.getValidator(9, 0, 1));
+		archive.write(9, 5, 5, tile(5, 50), NEVER, "\"v\"");
+		archive.close();
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		in.readInt();
+		assertEquals(2, in.readInt());
+		in.close();
+		archive = new TileArchive(folder.getRoot(), "osm");
+		assertArrayEquals(tile(0, 50), archive.read(9, 0, 1, null));
+		assertEquals("\"v\"", archive.getValidator(9, 5, 5));
+		archive.close();
+	}
+
+	private static void waitFor(File file) throws InterruptedException
+	{
+		for (int i = 0; i < 100 && ! file.exists(); i++)
+			Thread.sleep(50);
+		assertTrue(file.getName() + " is not written", file.exists());
+	}
+
+	private static void assertTiles(TileArchive archive) throws IOException
+	{
+		long[] expiration = new long[1];
+		for (int i = 0; i < 100; i++)
+		{
+			byte[] tile = archive.read(12, i, 0, expiration);
+			if (i % 4 == 1)
+			{
+				assertNull(tile);
+			}
+			else if (i % 2 == 0)
+			{
+				assertArrayEquals(tile(-i, 500), tile);
+				assertEquals(NEVER - 1, expiration[0]);
+			}
+			else
+			{
+				assertArrayEquals(tile(i, 1000), tile);
+				assertEquals(NEVER, expiration[0]);
+			}
+		}
+	}
+
+	/**
+	 * Returns test tile of specified length filled with values derived from seed.
+	 */
+	static byte[] tile(int seed, int length)
+	{
+		byte[] tile = new byte[length];
+		for (int i = 0; i < length; i++)
+			tile[i] = (byte) (seed * 31 + i);
+		return tile;
+	}
+}
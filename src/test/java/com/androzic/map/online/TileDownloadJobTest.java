@@ -0,0 +1,382 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Tests download job against local HTTP server. Server can be switched to fail all requests,
+ * to fail first request of tiles with x divisible by three, to fail tiles of one column or
+ * to report tiles with even x as missing.
+ */
+public class TileDownloadJobTest
+{
+	private static final long TIMEOUT = 30000;
+	private static final double RATE = 1000;
+
+	@Rule
+	public StubTileServer server = new StubTileServer(new StubTileServer.Responder() {
+		@Override
+		public void respond(HttpExchange exchange, int z, int x, int y) throws IOException
+		{
+			serve(exchange, z, x, y);
+		}
+	});
+
+	private volatile boolean failing;
+	private volatile boolean flaky;
+	private volatile int failingColumn = -1;
+	private volatile boolean missingEven;
+	private final Set<String> requested = Collections.synchronizedSet(new HashSet<String>());
+
+	private TileProvider provider;
+	private TileArchive archive;
+	private File state;
+
+	@Before
+	public void setUp()
+	{
+		provider = server.getProvider();
+		archive = server.getArchive();
+		state = new File(server.getRoot(), provider.code + ".download");
+	}
+
+	@Test
+	public void boxAreaCoversBoxTiles()
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		assertEquals(1, area.getCount(0));
+		for (int z = 5; z <= 12; z++)
+		{
+			int minX = tileX(37, z), maxX = tileX(38, z);
+			int minY = tileY(56, z), maxY = tileY(55, z);
+			long count = area.getCount(z);
+			assertEquals((maxX - minX + 1) * (maxY - minY + 1), count);
+			HashSet<Long> tiles = new HashSet<>();
+			for (long i = 0; i < count; i++)
+			{
+				long tile = area.getTile(z, i);
+				int x = (int) (tile >>> 32);
+				int y = (int) tile;
+				assertTrue(x >= minX && x <= maxX && y >= minY && y <= maxY);
+				tiles.add(tile);
+			}
+			assertEquals(count, tiles.size());
+		}
+	}
+
+	@Test
+	public void boxAreaWrapsOverAntimeridian()
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(10, 170, -10, -170);
+		assertEquals(1, area.getCount(0));
+		assertEquals(4, area.getCount(1));
+		assertEquals(4, area.getCount(2));
+		HashSet<Long> tiles = new HashSet<>();
+		for (long i = 0; i < 4; i++)
+			tiles.add(area.getTile(2, i));
+		HashSet<Long> expected = new HashSet<>();
+		for (long x : new long[] {3, 0})
+		{
+			for (long y : new long[] {1, 2})
+				expected.add(x << 32 | y);
+		}
+		assertEquals(expected, tiles);
+		// Columns are not counted twice if box wraps almost whole world
+		long rows = tileY(9, 6) - tileY(10, 6) + 1;
+		assertEquals(64 * rows, TileDownloadJob.getBoxArea(10, 10, 9, 9.9).getCount(6));
+	}
+
+	@Test
+	public void estimateCountsTilesAndBytes() throws IOException
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 8, 10, null, "test");
+		TileDownloadJob.Estimate estimate = job.getEstimate();
+		assertArrayEquals(new long[] {area.getCount(8), area.getCount(9), area.getCount(10)}, estimate.tiles);
+		assertEquals(area.getCount(8) + area.getCount(9) + area.getCount(10), estimate.totalTiles);
+		assertEquals(estimate.totalTiles * TileDownloadJob.DEFAULT_TILE_SIZE, estimate.bytes);
+
+		archive.write(1, 0, 0, new byte[1000], Long.MAX_VALUE);
+		long[] size = archive.getSize();
+		assertEquals(estimate.totalTiles * (size[0] - size[1]), job.getEstimate().bytes);
+	}
+
+	@Test
+	public void allTilesAreDownloaded() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55.5, 37.5);
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 8, 11, state, "test");
+		job.setRate(RATE);
+		final AtomicInteger updates = new AtomicInteger();
+		job.setOnDownloadProgressListener(new TileDownloadJob.OnDownloadProgressListener() {
+			@Override
+			public void onProgress(TileDownloadJob job, TileDownloadJob.Progress progress)
+			{
+				updates.incrementAndGet();
+			}
+		});
+		long total = job.getEstimate().totalTiles;
+		run(job);
+
+		TileDownloadJob.Progress progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(total, progress.total);
+		assertEquals(total, progress.completed);
+		assertEquals(total, progress.downloaded);
+		assertEquals(total, server.hits.get());
+		assertEquals(total + 1, updates.get());
+		assertFalse(state.exists());
+		for (int z = 8; z <= 11; z++)
+		{
+			for (long i = 0; i < area.getCount(z); i++)
+			{
+				long tile = area.getTile(z, i);
+				assertTrue(archive.contains(z, (int) (tile >>> 32), (int) tile));
+			}
+		}
+
+		// Fresh tiles are not downloaded again
+		job = new TileDownloadJob(provider, archive, area, 8, 11, state, "test");
+		job.setRate(RATE);
+		run(job);
+		progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(total, progress.skipped);
+		assertEquals(0, progress.downloaded);
+		assertEquals(total, server.hits.get());
+	}
+
+	@Test
+	public void stoppedJobIsResumed() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 8, 11, state, "test");
+		job.setRate(RATE);
+		final long total = job.getEstimate().totalTiles;
+		job.setOnDownloadProgressListener(new TileDownloadJob.OnDownloadProgressListener() {
+			@Override
+			public void onProgress(TileDownloadJob job, TileDownloadJob.Progress progress)
+			{
+				if (progress.completed >= total / 2)
+					job.stop();
+			}
+		});
+		run(job);
+		TileDownloadJob.Progress first = job.getProgress();
+		assertFalse(first.finished);
+		assertTrue(first.completed < total);
+		assertTrue(state.exists());
+
+		job = new TileDownloadJob(provider, archive, area, 8, 11, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress second = job.getProgress();
+		assertTrue(second.finished);
+		assertEquals(total, second.completed);
+		assertEquals(total, first.downloaded + second.downloaded);
+		assertEquals(total, server.hits.get());
+		assertEquals(total, archive.getCount());
+	}
+
+	@Test
+	public void stateOfOtherJobIsIgnored() throws Exception
+	{
+		TileDownloadJob job = new TileDownloadJob(provider, archive, TileDownloadJob.getBoxArea(56, 37, 55, 38), 8, 11, state, "test");
+		job.setRate(RATE);
+		job.setOnDownloadProgressListener(new TileDownloadJob.OnDownloadProgressListener() {
+			@Override
+			public void onProgress(TileDownloadJob job, TileDownloadJob.Progress progress)
+			{
+				job.stop();
+			}
+		});
+		run(job);
+		assertTrue(state.exists());
+
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(50, 10, 49.5, 10.5);
+		job = new TileDownloadJob(provider, archive, area, 8, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(area.getCount(8) + area.getCount(9) + area.getCount(10), progress.downloaded);
+	}
+
+	@Test
+	public void downloadRateIsLimited() throws Exception
+	{
+		TileDownloadJob job = new TileDownloadJob(provider, archive, TileDownloadJob.getBoxArea(56, 37, 55, 38), 12, 12, null, "test");
+		job.setRate(20);
+		job.setConnections(4);
+		long start = System.currentTimeMillis();
+		job.start();
+		Thread.sleep(1000);
+		job.stop();
+		await(job);
+		long time = System.currentTimeMillis() - start;
+		int downloaded = job.getProgress().downloaded;
+		assertTrue("Downloaded " + downloaded + " in " + time + "ms", downloaded <= time * 20 / 1000 + 1);
+		assertTrue(downloaded >= 10);
+	}
+
+	@Test
+	public void jobStopsWhenServerFails() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		failing = true;
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress progress = job.getProgress();
+		assertFalse(progress.finished);
+		assertTrue(progress.errors >= 10);
+		assertEquals(0, progress.failed);
+		assertEquals(0, progress.downloaded);
+		assertTrue(progress.completed < area.getCount(10));
+
+		// Failed tiles are retried on resume
+		failing = false;
+		job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(area.getCount(10), archive.getCount());
+	}
+
+	@Test
+	public void failedTilesAreRetried() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		flaky = true;
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertTrue(progress.errors > 0);
+		assertEquals(0, progress.failed);
+		assertEquals(area.getCount(10), progress.completed);
+		assertEquals(area.getCount(10), progress.downloaded);
+		assertEquals(area.getCount(10), archive.getCount());
+		assertFalse(state.exists());
+	}
+
+	@Test
+	public void jobFinishesWithFailedTiles() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		long tile = area.getTile(10, 0);
+		failingColumn = (int) (tile >>> 32);
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress progress = job.getProgress();
+		long count = area.getCount(10);
+		int rows = tileY(55, 10) - tileY(56, 10) + 1;
+		assertTrue(progress.finished);
+		assertEquals(rows, progress.failed);
+		assertEquals(rows * 3, progress.errors);
+		assertEquals(count, progress.completed);
+		assertEquals(count - rows, progress.downloaded);
+		assertTrue(state.exists());
+
+		// Failed tiles are downloaded when job is started again
+		failingColumn = -1;
+		job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(0, progress.failed);
+		assertEquals(rows, progress.downloaded);
+		assertEquals(count, archive.getCount());
+		assertFalse(state.exists());
+	}
+
+	@Test
+	public void missingTilesAreCompleted() throws Exception
+	{
+		TileDownloadJob.Area area = TileDownloadJob.getBoxArea(56, 37, 55, 38);
+		missingEven = true;
+		TileDownloadJob job = new TileDownloadJob(provider, archive, area, 10, 10, state, "test");
+		job.setRate(RATE);
+		run(job);
+		TileDownloadJob.Progress progress = job.getProgress();
+		assertTrue(progress.finished);
+		assertEquals(0, progress.failed);
+		assertTrue(progress.missing > 0);
+		assertEquals(area.getCount(10), progress.missing + progress.downloaded);
+		assertEquals(progress.downloaded, archive.getCount());
+	}
+
+	private static void run(TileDownloadJob job) throws InterruptedException
+	{
+		job.start();
+		await(job);
+	}
+
+	private static void await(TileDownloadJob job) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		while (job.isRunning() && System.currentTimeMillis() - start < TIMEOUT)
+			Thread.sleep(10);
+		assertFalse("Job has not ended", job.isRunning());
+	}
+
+	private void serve(HttpExchange exchange, int z, int x, int y) throws IOException
+	{
+		if (failing || x == failingColumn || flaky && x % 3 == 0 && requested.add(z + "/" + x + "/" + y))
+			StubTileServer.send(exchange, 503);
+		else if (missingEven && x % 2 == 0)
+			StubTileServer.send(exchange, 404);
+		else
+			StubTileServer.send(exchange, exchange.getRequestURI().getPath().getBytes());
+	}
+
+	private static int tileX(double lon, int z)
+	{
+		return (int) Math.floor((lon + 180) / 360 * (1 << z));
+	}
+
+	private static int tileY(double lat, int z)
+	{
+		double sin = Math.sin(Math.toRadians(lat));
+		return (int) Math.floor((0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * (1 << z));
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Tests fetcher against local HTTP server which serves tiles with entity tags. Tiles with
+ * y equal to 404 or 500 are answered with that status code.
+ */
+public class TileFetcherTest
+{
+	private static final long TIMEOUT = 10000;
+
+	@Rule
+	public StubTileServer server = new StubTileServer(new StubTileServer.Responder() {
+		@Override
+		public void respond(HttpExchange exchange, int z, int x, int y) throws IOException
+		{
+			serve(exchange, z, x, y);
+		}
+	});
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+	private volatile CountDownLatch gate;
+	private volatile int delay;
+	private volatile int version;
+
+	private TileProvider provider;
+	private TileArchive archive;
+	private TileFetcher fetcher;
+
+	@Before
+	public void setUp()
+	{
+		provider = server.getProvider();
+		archive = server.getArchive();
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (gate != null)
+			gate.countDown();
+		if (fetcher != null)
+			fetcher.stop();
+	}
+
+	@Test
+	public void tilesAreDownloadedAndArchived() throws Exception
+	{
+		fetcher = new TileFetcher("test");
+		Recorder recorder = new Recorder();
+		for (int x = 0; x < 20; x++)
+			fetcher.fetch(provider, archive, 10, x, 1, recorder);
+		for (int x = 0; x < 20; x++)
+			assertNotNull(recorder.next());
+		assertEquals(20, server.hits.get());
+		for (int x = 0; x < 20; x++)
+			assertArrayEquals(tile(10, x, 1), archive.read(10, x, 1, null));
+		assertTrue(archive.getExpiration(10, 0, 1) > System.currentTimeMillis());
+
+		TileFetcher.Statistics statistics = fetcher.getStatistics();
+		assertEquals(20, statistics.downloaded);
+		assertEquals(0, statistics.failed);
+		assertTrue(statistics.bytes > 0);
+		assertTrue(statistics.p95Latency >= statistics.medianLatency);
+	}
+
+	@Test
+	public void cachedTileIsReturnedWithoutNetwork() throws Exception
+	{
+		fetcher = new TileFetcher("test");
+		archive.write(10, 1, 1, tile(10, 1, 1), Long.MAX_VALUE);
+		Recorder recorder = new Recorder();
+		fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		assertSame(Thread.currentThread(), recorder.thread);
+		assertArrayEquals(tile(10, 1, 1), recorder.next());
+		assertEquals(0, server.hits.get());
+		assertEquals(1, fetcher.getStatistics().cached);
+		assertEquals(0, fetcher.getPendingCount());
+	}
+
+	@Test
+	public void duplicateRequestsAreCoalesced() throws Exception
+	{
+		gate = new CountDownLatch(1);
+		fetcher = new TileFetcher("test", 1, 1);
+		Recorder recorder = new Recorder();
+		for (int i = 0; i < 5; i++)
+			fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		assertEquals(1, fetcher.getPendingCount());
+		gate.countDown();
+		for (int i = 0; i < 5; i++)
+			assertArrayEquals(tile(10, 1, 1), recorder.next());
+		assertEquals(1, server.hits.get());
+		assertEquals(4, fetcher.getStatistics().coalesced);
+	}
+
+	@Test
+	public void connectionsPerHostAreLimited() throws Exception
+	{
+		delay = 30;
+		fetcher = new TileFetcher("test", 6, 2);
+		Recorder recorder = new Recorder();
+		for (int x = 0; x < 12; x++)
+			fetcher.fetch(provider, archive, 10, x, 1, recorder);
+		for (int x = 0; x < 12; x++)
+			assertNotNull(recorder.next());
+		assertEquals(12, server.hits.get());
+		assertTrue("Connections: " + maxActive.get(), maxActive.get() <= 2);
+	}
+
+	@Test
+	public void missingAndFailedTilesAreReported() throws Exception
+	{
+		fetcher = new TileFetcher("test");
+		Recorder recorder = new Recorder();
+		fetcher.fetch(provider, archive, 10, 1, 404, recorder);
+		assertNull(recorder.next());
+		fetcher.fetch(provider, archive, 10, 1, 500, recorder);
+		assertNull(recorder.next());
+		TileFetcher.Statistics statistics = fetcher.getStatistics();
+		assertEquals(1, statistics.missing);
+		assertEquals(1, statistics.failed);
+		assertEquals(0, archive.getCount());
+
+		// Tile without address is not queued
+		TileProvider broken = StubTileServer.createProvider("broken", null);
+		fetcher.fetch(broken, null, 10, 1, 1, recorder);
+		assertNull(recorder.next());
+		fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		assertNotNull(recorder.next());
+	}
+
+	@Test
+	public void expiredTileIsRevalidated() throws Exception
+	{
+		fetcher = new TileFetcher("test");
+		Recorder recorder = new Recorder();
+		fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		byte[] tile = recorder.next();
+		archive.update(10, 1, 1, 1);
+
+		// Unchanged tile is returned immediately and is not passed again
+		fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		assertArrayEquals(tile, recorder.next());
+		waitFor(fetcher, 1, 1);
+		assertEquals(2, server.hits.get());
+		assertTrue(archive.getExpiration(10, 1, 1) > System.currentTimeMillis());
+		assertTrue(recorder.fetched.isEmpty());
+		assertEquals(1, fetcher.getStatistics().stale);
+
+		// Changed tile is passed when it arrives
+		archive.update(10, 1, 1, 1);
+		version++;
+		fetcher.fetch(provider, archive, 10, 1, 1, recorder);
+		assertArrayEquals(tile, recorder.next());
+		assertArrayEquals(tile(10, 1, 1), recorder.next());
+		assertArrayEquals(tile(10, 1, 1), archive.read(10, 1, 1, null));
+		waitFor(fetcher, 1, 2);
+		assertEquals(0, recorder.cancelled.get());
+	}
+
+	@Test
+	public void droppedRequestsAreCancelled() throws Exception
+	{
+		gate = new CountDownLatch(1);
+		fetcher = new TileFetcher("test", 1, 1);
+		Recorder recorder = new Recorder();
+		fetcher.fetch(provider, archive, 10, 0, 0, recorder);
+		// Wait until the first tile is being downloaded
+		for (long start = System.currentTimeMillis(); server.hits.get() == 0 && System.currentTimeMillis() - start < TIMEOUT; )
+			Thread.sleep(10);
+		for (int x = 1; x < 10; x++)
+			fetcher.fetch(provider, archive, 10, x, 0, recorder);
+		fetcher.fetch(provider, archive, 11, 0, 0, recorder);
+		assertEquals(11, fetcher.getPendingCount());
+
+		fetcher.retain(provider, 10, 0, 0, 4, 0);
+		assertEquals(6, recorder.cancelled.get());
+		assertEquals(5, fetcher.getPendingCount());
+		fetcher.cancel(provider);
+		assertEquals(10, recorder.cancelled.get());
+		assertEquals(10, fetcher.getStatistics().dropped);
+
+		gate.countDown();
+		assertArrayEquals(tile(10, 0, 0), recorder.next());
+		fetcher.fetch(provider, archive, 10, 5, 0, recorder);
+		assertNotNull(recorder.next());
+		assertEquals(2, server.hits.get());
+	}
+
+	@Test
+	public void stopCancelsQueuedRequests() throws Exception
+	{
+		gate = new CountDownLatch(1);
+		fetcher = new TileFetcher("test", 1, 1);
+		Recorder recorder = new Recorder();
+		for (int x = 0; x < 5; x++)
+			fetcher.fetch(provider, archive, 10, x, 0, recorder);
+		fetcher.stop();
+		assertTrue(recorder.cancelled.get() >= 4);
+		assertEquals(0, fetcher.getPendingCount());
+	}
+
+	/**
+	 * Waits until fetcher has revalidated and downloaded specified number of tiles.
+	 */
+	private static void waitFor(TileFetcher fetcher, int revalidated, int downloaded) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		TileFetcher.Statistics statistics = fetcher.getStatistics();
+		while ((statistics.revalidated < revalidated || statistics.downloaded < downloaded) && System.currentTimeMillis() - start < TIMEOUT)
+		{
+			Thread.sleep(10);
+			statistics = fetcher.getStatistics();
+		}
+		assertEquals(revalidated, statistics.revalidated);
+		assertEquals(downloaded, statistics.downloaded);
+	}
+
+	private void serve(HttpExchange exchange, int z, int x, int y) throws IOException
+	{
+		int n = active.incrementAndGet();
+		synchronized (maxActive)
+		{
+			maxActive.set(Math.max(maxActive.get(), n));
+		}
+		try
+		{
+			CountDownLatch g = gate;
+			if (g != null)
+				g.await(TIMEOUT, TimeUnit.MILLISECONDS);
+			if (delay > 0)
+				Thread.sleep(delay);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		active.decrementAndGet();
+
+		if (y == 404 || y == 500)
+		{
+			StubTileServer.send(exchange, y);
+			return;
+		}
+		String etag = "\"" + z + "-" + x + "-" + y + "-" + version + "\"";
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+		{
+			StubTileServer.send(exchange, 304);
+			return;
+		}
+		exchange.getResponseHeaders().set("ETag", etag);
+		StubTileServer.send(exchange, tile(z, x, y));
+	}
+
+	private byte[] tile(int z, int x, int y)
+	{
+		return ("tile " + z + "/" + x + "/" + y + " version " + version).getBytes();
+	}
+
+	private static class Recorder implements TileFetcher.OnTileFetchedListener
+	{
+		private static final byte[] NONE = new byte[0];
+
+		final LinkedBlockingQueue<byte[]> fetched = new LinkedBlockingQueue<>();
+		final AtomicInteger cancelled = new AtomicInteger();
+		volatile Thread thread;
+
+		@Override
+		public void onTileFetched(TileProvider provider, int z, int x, int y, byte[] tile)
+		{
+			thread = Thread.currentThread();
+			fetched.add(tile != null ? tile : NONE);
+		}
+
+		@Override
+		public void onTileCancelled(TileProvider provider, int z, int x, int y)
+		{
+			cancelled.incrementAndGet();
+		}
+
+		/**
+		 * Returns next fetched tile, fails if none arrives in time.
+		 */
+		byte[] next() throws InterruptedException
+		{
+			byte[] tile = fetched.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull("Tile has not been fetched", tile);
+			return tile != NONE ? tile : null;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+/**
+ * Host stand-in for the decoder class of map library, it only declares methods exported
+ * by ozfdecoder.cpp so that native library can be loaded by desktop JVM.
+ */
+class OzfDecoder
+{
+	static
+	{
+		System.loadLibrary("ozfdecoder");
+	}
+
+	static native long openImageNative(String path);
+
+	static native void closeImageNative(long ptr);
+
+	static native int[] getTileNative(long ptr, int type, int key, int depth, int offset, int i, int w, int h, byte[] palette);
+
+	static native boolean getTileIntoNative(long ptr, int type, int key, int depth, int offset, int i, int w, int h, byte[] palette, int[] dest);
+}
@@ -0,0 +1,202 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Host benchmark of tile transfer through JNI. Tiles of generated OZF image are read
+ * with getTileNative, which allocates new array for every tile, and with getTileIntoNative,
+ * which fills one reused array. Time per tile, Java heap allocated by benchmark thread and
+ * garbage collections are reported. Build and run with "make jni" in src/test/jni.
+ */
+public class OzfDecoderBenchmark
+{
+	private static final int TILE_SIZE = 64;
+	// tiles in row and in column
+	private static final int TILES = 32;
+	private static final int ROUNDS = 20;
+	private static final int[] SIZES = {TILE_SIZE, TILE_SIZE / 2};
+
+	private static final int HEADER_SIZE = 4 + 4 + 2 + 2 + 1024;
+
+	public static void main(String[] args) throws IOException
+	{
+		File file = File.createTempFile("benchmark", ".ozf2");
+		file.deleteOnExit();
+		byte[] palette = writeImage(file);
+
+		long ptr = OzfDecoder.openImageNative(file.getAbsolutePath());
+		if (ptr == 0)
+			throw new IOException("Failed to open " + file);
+		try
+		{
+			int count = TILES * TILES;
+			for (int size : SIZES)
+			{
+				int[] buffer = new int[size * size];
+				for (int i = 0; i < count; i++)
+				{
+					int[] pixels = OzfDecoder.getTileNative(ptr, 0, 0, 0, 0, i, size, size, palette);
+					if (pixels == null || !OzfDecoder.getTileIntoNative(ptr, 0, 0, 0, 0, i, size, size, palette, buffer) || !Arrays.equals(pixels, buffer))
+						throw new AssertionError("Tile " + i + " differs at " + size + "x" + size);
+				}
+				// warm up
+				run(ptr, palette, size, false);
+				run(ptr, palette, size, true);
+
+				System.out.println(String.format(Locale.US, "%dx%d tiles, %d reads:", size, size, count * ROUNDS));
+				report("  getTileNative    ", ptr, palette, size, false);
+				report("  getTileIntoNative", ptr, palette, size, true);
+			}
+		}
+		finally
+		{
+			OzfDecoder.closeImageNative(ptr);
+		}
+	}
+
+	private static void report(String name, long ptr, byte[] palette, int size, boolean reuse)
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long bytes = getAllocatedBytes(threads, id);
+		long collections = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			collections -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+
+		long time = run(ptr, palette, size, reuse);
+
+		bytes = getAllocatedBytes(threads, id) - bytes;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			collections += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+		int reads = TILES * TILES * ROUNDS;
+		System.out.println(String.format(Locale.US, "%s %6.2f us/tile, %7d bytes/tile, %d GCs in %d ms", name, time / 1e3 / reads, bytes / reads, collections, gcTime));
+	}
+
+	private static long run(long ptr, byte[] palette, int size, boolean reuse)
+	{
+		int count = TILES * TILES;
+		int[] buffer = new int[size * size];
+		int sum = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (reuse)
+				{
+					OzfDecoder.getTileIntoNative(ptr, 0, 0, 0, 0, i, size, size, palette, buffer);
+					sum += buffer[i % buffer.length];
+				}
+				else
+				{
+					int[] pixels = OzfDecoder.getTileNative(ptr, 0, 0, 0, 0, i, size, size, palette);
+					sum += pixels[i % pixels.length];
+				}
+			}
+		}
+		long time = System.nanoTime() - start;
+		// keeps JIT from dropping the reads
+		if (sum == 42)
+			System.out.println();
+		return time;
+	}
+
+	private static long getAllocatedBytes(ThreadMXBean threads, long id)
+	{
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(id);
+		return 0;
+	}
+
+	/**
+	 * Writes unencrypted image of single scale at offset 0: scale header, tile positions and
+	 * zlib compressed tiles of palette indexes. Returns palette in OZF (BGRx) byte order.
+	 */
+	private static byte[] writeImage(File file) throws IOException
+	{
+		Random random = new Random(1);
+		byte[] palette = new byte[1024];
+		random.nextBytes(palette);
+
+		int count = TILES * TILES;
+		byte[][] tiles = new byte[count][];
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		byte[] data = new byte[TILE_SIZE * TILE_SIZE];
+		byte[] compressed = new byte[data.length * 2];
+		for (int i = 0; i < count; i++)
+		{
+			// smooth gradients with noise compress as real map tiles do
+			for (int j = 0; j < data.length; j++)
+				data[j] = (byte) ((j / TILE_SIZE + j % TILE_SIZE + i) / 4 + (random.nextInt(8) == 0 ? random.nextInt(16) : 0));
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			int n = deflater.deflate(compressed);
+			tiles[i] = Arrays.copyOf(compressed, n);
+		}
+		deflater.end();
+
+		int position = HEADER_SIZE + (count + 1) * 4;
+		ByteBuffer header = ByteBuffer.allocate(position).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(TILES * TILE_SIZE).putInt(TILES * TILE_SIZE);
+		header.putShort((short) TILES).putShort((short) TILES);
+		header.put(palette);
+		for (int i = 0; i < count; i++)
+		{
+			header.putInt(position);
+			position += tiles[i].length;
+		}
+		header.putInt(position);
+
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(header.array());
+			for (byte[] tile : tiles)
+				out.write(tile);
+		}
+		finally
+		{
+			out.close();
+		}
+		return palette;
+	}
+}
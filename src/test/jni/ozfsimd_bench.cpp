@@ -0,0 +1,166 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Host benchmark of vectorized tile conversion. Vector routines are checked against
+ * the portable code of ozfdecoder.cpp and both are timed on random tiles. Build and
+ * run with "make" in this directory; on x86-64 SSE2 code is measured, NEON code is
+ * measured if the benchmark is built for ARM with NEON=1.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "ozfsimd.h"
+
+#define TILE_SIZE	64
+#define TILES		2000
+#define ROUNDS		200
+
+static double now()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+// Portable palette conversion as it was in ozfdecoder.cpp
+static void palette_lut(const unsigned char* palette, uint32_t* lut)
+{
+	for (int i = 0; i < 256; i++)
+	{
+		uint32_t c;
+		memcpy(&c, palette + i * 4, 4);
+		lut[i] = c | 0xFF000000;
+	}
+}
+
+// Portable exact 2x downscale of Resize_HQ_4ch
+static void resize_half(const unsigned char* src, int w1, int h1, unsigned char* dest)
+{
+	int w2 = w1 / 2;
+	int h2 = h1 / 2;
+	const uint32_t* dsrc = (const uint32_t*) src;
+	uint32_t* ddest = (uint32_t*) dest;
+	uint32_t remainder = 0;
+	int i = 0;
+	for (int y2 = 0; y2 < h2; y2++)
+	{
+		const uint32_t* temp_src = &dsrc[y2 * 2 * w1];
+		for (int x2 = 0; x2 < w2; x2++)
+		{
+			uint32_t xUL = temp_src[0];
+			uint32_t xUR = temp_src[1];
+			uint32_t xLL = temp_src[w1];
+			uint32_t xLR = temp_src[w1 + 1];
+			uint32_t redblue = (xUL & 0x00FF00FF) + (xUR & 0x00FF00FF) + (xLL & 0x00FF00FF) + (xLR & 0x00FF00FF) + (remainder & 0x00FF00FF);
+			uint32_t green   = (xUL & 0x0000FF00) + (xUR & 0x0000FF00) + (xLL & 0x0000FF00) + (xLR & 0x0000FF00) + (remainder & 0x0000FF00);
+			remainder =  (redblue & 0x00030003) | (green & 0x00000300);
+			ddest[i++] = ((redblue & 0x03FC03FC) | (green & 0x0003FC00)) >> 2;
+			temp_src += 2;
+		}
+	}
+}
+
+static void fill(unsigned char* buf, int size)
+{
+	for (int i = 0; i < size; i++)
+		buf[i] = rand() & 0xFF;
+}
+
+int main()
+{
+	const int pixels = TILE_SIZE * TILE_SIZE;
+	unsigned char palette[1024];
+	uint32_t lut1[256], lut2[256];
+	unsigned char* src = (unsigned char*) malloc(pixels * 4);
+	unsigned char* dest1 = (unsigned char*) malloc(pixels);
+	unsigned char* dest2 = (unsigned char*) malloc(pixels);
+
+	printf("vector code: %s\n", ozf_simd_supported() ? "yes" : "no");
+
+	srand(1);
+	for (int t = 0; t < TILES; t++)
+	{
+		fill(palette, sizeof(palette));
+		palette_lut(palette, lut1);
+		ozf_palette_lut(palette, lut2);
+		if (memcmp(lut1, lut2, sizeof(lut1)) != 0)
+		{
+			printf("palette mismatch on tile %d\n", t);
+			return 1;
+		}
+		fill(src, pixels * 4);
+		resize_half(src, TILE_SIZE, TILE_SIZE, dest1);
+		if (! ozf_resize_half(src, TILE_SIZE, TILE_SIZE, dest2))
+		{
+			printf("vector downscale is not available\n");
+			break;
+		}
+		if (memcmp(dest1, dest2, pixels) != 0)
+		{
+			printf("downscale mismatch on tile %d\n", t);
+			return 1;
+		}
+	}
+	printf("%d random tiles match\n", TILES);
+
+	int rounds = ROUNDS * 100;
+	double start = now();
+	for (int r = 0; r < rounds; r++)
+	{
+		palette[r & 1023]++;
+		palette_lut(palette, lut1);
+	}
+	double portable = now() - start;
+	start = now();
+	for (int r = 0; r < rounds; r++)
+	{
+		palette[r & 1023]++;
+		ozf_palette_lut(palette, lut2);
+	}
+	double vector = now() - start;
+	printf("palette: portable %.0f Mpx/s, vector %.0f Mpx/s\n", rounds * 256 / portable / 1e6, rounds * 256 / vector / 1e6);
+
+	rounds = ROUNDS * 10;
+	start = now();
+	for (int r = 0; r < rounds; r++)
+	{
+		src[r % (pixels * 4)]++;
+		resize_half(src, TILE_SIZE, TILE_SIZE, dest1);
+	}
+	portable = now() - start;
+	start = now();
+	for (int r = 0; r < rounds; r++)
+	{
+		src[r % (pixels * 4)]++;
+		ozf_resize_half(src, TILE_SIZE, TILE_SIZE, dest2);
+	}
+	vector = now() - start;
+	printf("2x downscale: portable %.0f Mpx/s, vector %.0f Mpx/s (source pixels)\n", (double) rounds * pixels / portable / 1e6, (double) rounds * pixels / vector / 1e6);
+
+	free(src);
+	free(dest1);
+	free(dest2);
+	return 0;
+}